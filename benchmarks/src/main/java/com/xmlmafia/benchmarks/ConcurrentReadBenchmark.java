@@ -0,0 +1,88 @@
+package com.xmlmafia.benchmarks;
+
+import com.xmlmafia.SegmentedFileBackend;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Random reads from one shared {@link SegmentedFileBackend} by several
+ * threads, as the line loads, prefetch and search do. Every read is checked
+ * against a copy of the file read up front, so a read that races with another
+ * thread or with a window being evicted fails the benchmark. With small
+ * windows most reads map a window and evict another. Run with {@code -t} to
+ * compare thread counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Threads(4)
+@Fork(1)
+public class ConcurrentReadBenchmark {
+    private static final int MAX_READ_LENGTH = 8192;
+
+    @Param({"64MB"})
+    public String size;
+
+    @Param({"1MB", "64MB"})
+    public String windowSize;
+
+    @Param({"4"})
+    public int maxResidentWindows;
+
+    private SegmentedFileBackend backend;
+    private byte[] expected;
+
+    /**
+     * Per-thread random source and read buffer
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+        final SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+        final byte[] buffer = new byte[MAX_READ_LENGTH];
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        File file = XmlGenerator.file(XmlGenerator.Shape.FLAT, size);
+        expected = Files.readAllBytes(file.toPath());
+        backend = new SegmentedFileBackend(file, (int) XmlGenerator.parseSize(windowSize), maxResidentWindows);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        backend.close();
+    }
+
+    @Benchmark
+    public int randomRead(Reader reader) {
+        long offset = reader.random.nextLong(expected.length);
+        int length = 1 + reader.random.nextInt(MAX_READ_LENGTH);
+        int bytesRead = backend.read(offset, reader.buffer, 0, length);
+        int from = (int) offset;
+        if (bytesRead != Math.min(length, expected.length - from)
+                || !Arrays.equals(reader.buffer, 0, bytesRead, expected, from, from + bytesRead)) {
+            throw new IllegalStateException("Read at " + offset + " returned wrong bytes");
+        }
+        return bytesRead;
+    }
+}
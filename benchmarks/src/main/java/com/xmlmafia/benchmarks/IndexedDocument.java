@@ -0,0 +1,39 @@
+package com.xmlmafia.benchmarks;
+
+import com.xmlmafia.LineIndexer;
+import com.xmlmafia.LineOffsetIndex;
+import com.xmlmafia.SegmentedFileBackend;
+import com.xmlmafia.XmlDocument;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A generated file, opened and fully indexed once per trial
+ */
+@State(Scope.Benchmark)
+public class IndexedDocument {
+    @Param({"FLAT", "NESTED", "LONG_LINES", "MULTIBYTE", "COMMENT_CDATA"})
+    public XmlGenerator.Shape shape;
+
+    @Param({"1MB", "64MB"})
+    public String size;
+
+    public XmlDocument document;
+    public long lineCount;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        document = XmlDocument.open(XmlGenerator.file(shape, size), SegmentedFileBackend::open);
+        lineCount = document.buildLineIndex(new LineIndexer(), LineOffsetIndex.DEFAULT_DENSITY, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        document.close();
+    }
+}
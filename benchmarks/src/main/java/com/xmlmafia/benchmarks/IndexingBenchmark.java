@@ -0,0 +1,55 @@
+package com.xmlmafia.benchmarks;
+
+import com.xmlmafia.LineIndexer;
+import com.xmlmafia.LineOffsetIndex;
+import com.xmlmafia.SegmentedFileBackend;
+import com.xmlmafia.XmlDocument;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Opening a file and building its full line index, as done for every load
+ * that misses the sidecar cache. Files are in the page cache after the first
+ * iteration, so this measures scanning rather than disk speed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexingBenchmark {
+    @Param({"FLAT", "NESTED", "LONG_LINES", "MULTIBYTE", "COMMENT_CDATA"})
+    public XmlGenerator.Shape shape;
+
+    @Param({"1MB", "64MB"})
+    public String size;
+
+    private File file;
+    private LineIndexer indexer;
+
+    @Setup
+    public void generate() throws IOException {
+        file = XmlGenerator.file(shape, size);
+        indexer = new LineIndexer();
+    }
+
+    @Benchmark
+    public long buildLineIndex() throws IOException {
+        try (XmlDocument document = XmlDocument.open(file, SegmentedFileBackend::open)) {
+            return document.buildLineIndex(indexer, LineOffsetIndex.DEFAULT_DENSITY, null);
+        }
+    }
+}
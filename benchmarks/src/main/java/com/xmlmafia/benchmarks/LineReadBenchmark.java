@@ -0,0 +1,60 @@
+package com.xmlmafia.benchmarks;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading and decoding single lines through the line index, bypassing the
+ * line cache so every call takes the uncached path a cell miss would take
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineReadBenchmark {
+    private static final int RANDOM_LINES = 1 << 16;
+
+    /**
+     * Per-thread position in the file and a fixed sequence of random lines
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        long next;
+        int randomIndex;
+        long[] randomLines;
+
+        @Setup
+        public void prepare(IndexedDocument indexed) {
+            SplittableRandom random = new SplittableRandom(42);
+            randomLines = new long[RANDOM_LINES];
+            for (int i = 0; i < RANDOM_LINES; i++) {
+                randomLines[i] = random.nextLong(indexed.lineCount);
+            }
+        }
+    }
+
+    @Benchmark
+    public String randomReadLine(IndexedDocument indexed, Cursor cursor) {
+        long line = cursor.randomLines[cursor.randomIndex];
+        cursor.randomIndex = (cursor.randomIndex + 1) & (RANDOM_LINES - 1);
+        return indexed.document.readLine(line);
+    }
+
+    @Benchmark
+    public String sequentialReadLine(IndexedDocument indexed, Cursor cursor) {
+        long line = cursor.next;
+        cursor.next = line + 1 < indexed.lineCount ? line + 1 : 0;
+        return indexed.document.readLine(line);
+    }
+}
@@ -0,0 +1,100 @@
+package com.xmlmafia.benchmarks;
+
+import com.xmlmafia.LiteralMatcher;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding a literal in 1MB of content held in memory, without any I/O: the
+ * Boyer-Moore-Horspool matcher over bytes, a first-byte scan over bytes, and a
+ * quoted regex over the decoded text
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LiteralMatcherBenchmark {
+    @Param({"FLAT", "MULTIBYTE"})
+    public XmlGenerator.Shape shape;
+
+    @Param({"value", "not-in-the-file", "</record>"})
+    public String query;
+
+    @Param({"true", "false"})
+    public boolean caseSensitive;
+
+    private byte[] content;
+    private String text;
+    private byte[] pattern;
+    private LiteralMatcher matcher;
+    private Pattern regex;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        byte[] file = Files.readAllBytes(XmlGenerator.file(shape, "1MB").toPath());
+        content = Arrays.copyOf(file, (int) XmlGenerator.parseSize("1MB"));
+        text = new String(content, StandardCharsets.UTF_8);
+        pattern = query.getBytes(StandardCharsets.UTF_8);
+        matcher = new LiteralMatcher(pattern, !caseSensitive);
+        regex = Pattern.compile(Pattern.quote(query), caseSensitive ? 0 : Pattern.CASE_INSENSITIVE);
+    }
+
+    @Benchmark
+    public int horspool() {
+        int matches = 0;
+        for (int i = matcher.indexOf(content, 0, content.length); i >= 0; i = matcher.indexOf(content, i + 1, content.length)) {
+            matches++;
+        }
+        return matches;
+    }
+
+    /**
+     * Checks every position whose first byte matches; case folding is left out
+     */
+    @Benchmark
+    public int firstByteScan() {
+        int matches = 0;
+        byte first = pattern[0];
+        for (int i = 0; i <= content.length - pattern.length; i++) {
+            if (content[i] == first) {
+                int j = 1;
+                while (j < pattern.length && content[i + j] == pattern[j]) {
+                    j++;
+                }
+                if (j == pattern.length) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int regexOnDecodedText() {
+        int matches = 0;
+        Matcher m = regex.matcher(text);
+        while (m.find()) {
+            matches++;
+        }
+        return matches;
+    }
+}
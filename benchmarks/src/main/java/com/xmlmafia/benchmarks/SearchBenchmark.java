@@ -0,0 +1,77 @@
+package com.xmlmafia.benchmarks;
+
+import com.xmlmafia.SearchEngine;
+import com.xmlmafia.SearchResultStore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Searching the whole file for a literal: decoding and matching line by line,
+ * against the parallel byte-level {@link SearchEngine}; and an element path
+ * query on the engine
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class SearchBenchmark {
+    @Param({"value", "not-in-the-file", "NA\u00cfVE"})
+    public String query;
+
+    @Param({"true", "false"})
+    public boolean caseSensitive;
+
+    private final SearchEngine engine = new SearchEngine();
+
+    @Benchmark
+    public long fullFileSearch(IndexedDocument indexed) {
+        Pattern pattern = Pattern.compile(Pattern.quote(query), caseSensitive ? 0 : Pattern.CASE_INSENSITIVE);
+        long matches = 0;
+        for (long i = 0; i < indexed.lineCount; i++) {
+            String line = indexed.document.readLine(i);
+            if (line != null) {
+                Matcher matcher = pattern.matcher(line);
+                while (matcher.find()) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Keeps the matches the way the controller does, so allocation covers the result store
+     */
+    @Benchmark
+    public long fullFileSearchEngine(IndexedDocument indexed) {
+        SearchResultStore results = new SearchResultStore();
+        engine.search(indexed.document, query, caseSensitive, (offsets, lengths, lines, count) -> {
+            for (int i = 0; i < count; i++) {
+                results.add(offsets[i], lengths[i]);
+            }
+        }, null);
+        return results.size();
+    }
+
+    /**
+     * A structural query needing the enclosing elements, scanned in file order
+     */
+    @Benchmark
+    public long pathSearchEngine(IndexedDocument indexed) {
+        return engine.search(indexed.document, "/dataset/*[@id]", SearchEngine.Mode.XPATH, caseSensitive,
+            (offsets, lengths, lines, count) -> { }, null);
+    }
+}
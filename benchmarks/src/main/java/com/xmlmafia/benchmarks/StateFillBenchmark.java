@@ -0,0 +1,51 @@
+package com.xmlmafia.benchmarks;
+
+import com.xmlmafia.LexerStateTable;
+import com.xmlmafia.XmlTokenizer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lexing every line of a file to find the lexer state each line starts in,
+ * as a jump to the end of a file requires: from decoded Strings, and directly
+ * from the line bytes, copied a checkpoint interval at a time
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StateFillBenchmark {
+    private static final int CHECKPOINT_INTERVAL = LexerStateTable.DEFAULT_INTERVAL;
+
+    private final XmlTokenizer tokenizer = new XmlTokenizer();
+    private final int[] endStates = new int[CHECKPOINT_INTERVAL];
+
+    @Benchmark
+    public int lexDecodedLines(IndexedDocument indexed) {
+        int state = XmlTokenizer.INITIAL_STATE;
+        for (long line = 0; line < indexed.lineCount; line++) {
+            state = tokenizer.endState(indexed.document.readLine(line), state);
+        }
+        return state;
+    }
+
+    @Benchmark
+    public int lexLineBytes(IndexedDocument indexed) {
+        int state = XmlTokenizer.INITIAL_STATE;
+        for (long line = 0; line < indexed.lineCount; line += CHECKPOINT_INTERVAL) {
+            int count = indexed.document.lexLines(tokenizer, line, CHECKPOINT_INTERVAL, state, endStates);
+            state = endStates[count - 1];
+        }
+        return state;
+    }
+}
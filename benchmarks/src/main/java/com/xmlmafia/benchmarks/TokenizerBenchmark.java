@@ -0,0 +1,80 @@
+package com.xmlmafia.benchmarks;
+
+import com.xmlmafia.TokenSpans;
+import com.xmlmafia.XmlTokenizer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Syntax highlighting of one screen's worth of lines, as a cell refresh of the
+ * whole viewport would do, through the Token list API and the span API
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenizerBenchmark {
+    private static final int SCREEN_LINES = 100;
+
+    @Param({"FLAT", "NESTED", "LONG_LINES", "MULTIBYTE", "COMMENT_CDATA"})
+    public XmlGenerator.Shape shape;
+
+    private final XmlTokenizer tokenizer = new XmlTokenizer();
+    private final TokenSpans spans = new TokenSpans();
+    private List<String> lines;
+
+    @Setup(Level.Trial)
+    public void readLines() throws IOException {
+        IndexedDocument indexed = new IndexedDocument();
+        indexed.shape = shape;
+        indexed.size = "1MB";
+        indexed.open();
+        try {
+            lines = new ArrayList<>();
+            for (long line = 0; line < Math.min(SCREEN_LINES, indexed.lineCount); line++) {
+                lines.add(indexed.document.readLine(line));
+            }
+        } finally {
+            indexed.close();
+        }
+    }
+
+    @Benchmark
+    public void tokenizeScreen(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(tokenizer.tokenize(line));
+        }
+    }
+
+    /**
+     * The span API carrying lexer state from line to line, as cells use it;
+     * should allocate nothing per line
+     */
+    @Benchmark
+    public int tokenizeScreenSpans() {
+        int state = XmlTokenizer.INITIAL_STATE;
+        int tokens = 0;
+        for (String line : lines) {
+            state = tokenizer.tokenize(line, state, spans);
+            tokens += spans.count();
+        }
+        return tokens + state;
+    }
+}
@@ -0,0 +1,221 @@
+package com.xmlmafia.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Writes synthetic XML files of a given shape and approximate size. Output is
+ * deterministic, so generated files are kept in a directory and reused by
+ * later runs and forks instead of being written again.
+ */
+public final class XmlGenerator {
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final long SEED = 0x5EEDL;
+
+    /**
+     * The kinds of content the viewer is expected to handle
+     */
+    public enum Shape {
+        /** Short records, one element per line */
+        FLAT,
+        /** Indented elements nested up to 64 levels deep */
+        NESTED,
+        /** Minified content with lines of about 256KB */
+        LONG_LINES,
+        /** Text in Cyrillic, Greek, CJK and emoji, mostly multi-byte UTF-8 */
+        MULTIBYTE,
+        /** Multi-line comments and CDATA sections between short elements */
+        COMMENT_CDATA
+    }
+
+    private XmlGenerator() {
+    }
+
+    /**
+     * @return The directory generated files are kept in: {@code xmlmafia.bench.dir} if set, else a temp subdirectory
+     */
+    public static Path directory() {
+        String configured = System.getProperty("xmlmafia.bench.dir");
+        if (configured != null) {
+            return Paths.get(configured);
+        }
+        return Paths.get(System.getProperty("java.io.tmpdir"), "xml-mafia-bench");
+    }
+
+    /**
+     * Returns a generated file, writing it first if it does not exist yet
+     * @param shape The content shape
+     * @param size The size, e.g. "1MB", "64MB" or "4GB"
+     * @return The generated file
+     */
+    public static File file(Shape shape, String size) throws IOException {
+        long bytes = parseSize(size);
+        Path target = directory().resolve(shape.name().toLowerCase(Locale.ROOT) + "-" + size + ".xml");
+        if (Files.isRegularFile(target) && Files.size(target) >= bytes) {
+            return target.toFile();
+        }
+
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), "generate", ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), WRITE_BUFFER_SIZE)) {
+            generate(shape, bytes, out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return target.toFile();
+    }
+
+    /**
+     * Writes a complete document of at least the given size
+     * @param shape The content shape
+     * @param bytes Minimum number of bytes to write
+     * @param out The destination
+     */
+    public static void generate(Shape shape, long bytes, OutputStream out) throws IOException {
+        Counter counter = new Counter(out);
+        Random random = new Random(SEED);
+        counter.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<dataset shape=\"" + shape + "\">\n");
+        for (long record = 0; counter.written < bytes; record++) {
+            switch (shape) {
+                case FLAT:
+                    writeFlat(counter, record, random);
+                    break;
+                case NESTED:
+                    writeNested(counter, record, random);
+                    break;
+                case LONG_LINES:
+                    writeLongLine(counter, record, random);
+                    break;
+                case MULTIBYTE:
+                    writeMultibyte(counter, record, random);
+                    break;
+                case COMMENT_CDATA:
+                    writeCommentCdata(counter, record, random);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown shape: " + shape);
+            }
+        }
+        counter.write("</dataset>\n");
+    }
+
+    /**
+     * @param size A byte count with an optional KB, MB or GB suffix
+     * @return The number of bytes
+     */
+    public static long parseSize(String size) {
+        String normalized = size.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (normalized.endsWith("KB")) {
+            unit = 1024L;
+        } else if (normalized.endsWith("MB")) {
+            unit = 1024L * 1024;
+        } else if (normalized.endsWith("GB")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        String digits = unit == 1 ? normalized : normalized.substring(0, normalized.length() - 2);
+        return Long.parseLong(digits.trim()) * unit;
+    }
+
+    private static void writeFlat(Counter out, long record, Random random) throws IOException {
+        out.write("  <record id=\"" + record + "\" status=\"" + (random.nextBoolean() ? "active" : "closed")
+            + "\"><name>item " + record + "</name><value>" + random.nextInt(1_000_000) + "</value></record>\n");
+    }
+
+    private static void writeNested(Counter out, long record, Random random) throws IOException {
+        int depth = 1 + (int) (record % 64);
+        StringBuilder text = new StringBuilder();
+        for (int level = 0; level < depth; level++) {
+            indent(text, level + 1).append("<level n=\"").append(level).append("\">\n");
+        }
+        indent(text, depth + 1).append("<leaf id=\"").append(record).append("\">")
+            .append(random.nextLong()).append("</leaf>\n");
+        for (int level = depth - 1; level >= 0; level--) {
+            indent(text, level + 1).append("</level>\n");
+        }
+        out.write(text.toString());
+    }
+
+    private static void writeLongLine(Counter out, long record, Random random) throws IOException {
+        StringBuilder text = new StringBuilder(256 * 1024 + 128);
+        text.append("<batch id=\"").append(record).append("\">");
+        for (int item = 0; text.length() < 256 * 1024; item++) {
+            text.append("<item n=\"").append(item).append("\" code=\"").append(Integer.toHexString(random.nextInt()))
+                .append("\">value ").append(random.nextInt(100_000)).append("</item>");
+        }
+        text.append("</batch>\n");
+        out.write(text.toString());
+    }
+
+    private static final String[] MULTIBYTE_WORDS = {
+        "Привет", "мир", "данные", "Καλημέρα", "κόσμε", "数据", "文件", "查看器", "日本語", "テキスト",
+        "한국어", "😀", "🚀", "naïve", "façade", "Ελληνικά"
+    };
+
+    private static void writeMultibyte(Counter out, long record, Random random) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append("  <entry id=\"").append(record).append("\" lang=\"").append(MULTIBYTE_WORDS[random.nextInt(MULTIBYTE_WORDS.length)])
+            .append("\">");
+        int words = 4 + random.nextInt(12);
+        for (int i = 0; i < words; i++) {
+            text.append(MULTIBYTE_WORDS[random.nextInt(MULTIBYTE_WORDS.length)]).append(' ');
+        }
+        text.append("</entry>\n");
+        out.write(text.toString());
+    }
+
+    private static void writeCommentCdata(Counter out, long record, Random random) throws IOException {
+        StringBuilder text = new StringBuilder();
+        if (record % 2 == 0) {
+            text.append("  <!-- record ").append(record).append(" spans several lines\n");
+            for (int i = 0; i < 3; i++) {
+                text.append("       note ").append(random.nextInt()).append(" <not-a-tag attr=\"x\">\n");
+            }
+            text.append("  -->\n");
+        } else {
+            text.append("  <script id=\"").append(record).append("\"><![CDATA[\n");
+            for (int i = 0; i < 3; i++) {
+                text.append("    if (a < ").append(random.nextInt(1000)).append(" && b > c) { emit(\"<tag>\"); }\n");
+            }
+            text.append("  ]]></script>\n");
+        }
+        text.append("  <value>").append(record).append("</value>\n");
+        out.write(text.toString());
+    }
+
+    private static StringBuilder indent(StringBuilder text, int level) {
+        for (int i = 0; i < level; i++) {
+            text.append("  ");
+        }
+        return text;
+    }
+
+    /**
+     * Counts the bytes written so generation can stop at the requested size
+     */
+    private static final class Counter {
+        private final OutputStream out;
+        long written;
+
+        Counter(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes);
+            written += bytes.length;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.xmlmafia;
+
+import java.util.List;
+
+/**
+ * Lines read at an estimated position in a part of the file the line index
+ * has not reached yet, under the line numbers the estimate gives them. They
+ * let the viewer show any part of a large file right after opening it; once
+ * the index covers them, the exact lines take their place.
+ * <p>
+ * Immutable, so it can be replaced as a whole while cells read it.
+ */
+public class ApproximateLines {
+    private final XmlDocument document;
+    private final int firstLine;
+    private final String[] lines;
+
+    /**
+     * @param document The document the lines were read from
+     * @param firstLine The estimated number of the first line
+     * @param lines The lines, consecutive in the file
+     */
+    public ApproximateLines(XmlDocument document, int firstLine, List<String> lines) {
+        this.document = document;
+        this.firstLine = firstLine;
+        this.lines = lines.toArray(new String[0]);
+    }
+
+    /**
+     * Estimates where a line starts from the part of the file indexed so far,
+     * assuming the lines past it are as long as the rest of the file divided
+     * by the lines estimated to be left
+     * @param document The document
+     * @param line A line past the indexed lines
+     * @param estimatedLines The estimated number of lines in the file
+     * @return The estimated offset of the line, to read the lines after it from
+     */
+    public static long estimateOffset(XmlDocument document, long line, long estimatedLines) {
+        long indexedLines = document.indexedLines();
+        long indexedBytes = document.indexedBytes();
+        long remainingLines = estimatedLines - indexedLines;
+        if (line <= indexedLines || remainingLines <= 0) {
+            return indexedBytes;
+        }
+        double bytesPerLine = (double) (document.size() - indexedBytes) / remainingLines;
+        return Math.min(document.size(), indexedBytes + (long) ((line - indexedLines) * bytesPerLine));
+    }
+
+    /**
+     * Finds the line holding a byte offset: exactly within the indexed part of
+     * the file, and past it by the same estimate as {@link #estimateOffset}
+     * @param document The document
+     * @param offset A file offset
+     * @param estimatedLines The estimated number of lines in the file
+     * @return The line number
+     */
+    public static long lineAt(XmlDocument document, long offset, long estimatedLines) {
+        long indexedLines = document.indexedLines();
+        long indexedBytes = document.indexedBytes();
+        long remainingLines = estimatedLines - indexedLines;
+        long remainingBytes = document.size() - indexedBytes;
+        if (offset < indexedBytes || remainingLines <= 0 || remainingBytes <= 0) {
+            return document.lineOf(Math.min(offset, indexedBytes), 0);
+        }
+        double linesPerByte = (double) remainingLines / remainingBytes;
+        return Math.min(estimatedLines - 1, indexedLines + (long) ((offset - indexedBytes) * linesPerByte));
+    }
+
+    /**
+     * @param document The document shown
+     * @param line A line number
+     * @return Whether the lines were read from the document and hold the line
+     */
+    public boolean covers(XmlDocument document, int line) {
+        return this.document == document && line >= firstLine && line < endLine();
+    }
+
+    /**
+     * @return The estimated number of the first line
+     */
+    public int firstLine() {
+        return firstLine;
+    }
+
+    /**
+     * @return The estimated number of the line after the last one
+     */
+    public int endLine() {
+        return firstLine + lines.length;
+    }
+
+    /**
+     * @param line A line number between {@link #firstLine()} and {@link #endLine()}
+     * @return The line read under that number
+     */
+    public String get(int line) {
+        return lines[line - firstLine];
+    }
+}
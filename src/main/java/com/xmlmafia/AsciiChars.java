@@ -0,0 +1,56 @@
+package com.xmlmafia;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable CharSequence view of bytes in an {@link LineDecoder#isAsciiSafe ASCII-safe}
+ * encoding, one char per byte as in ISO-8859-1. Bytes of multi-byte characters
+ * never look like markup, so lexing the view finds the same tags, comments and quotes as
+ * lexing the decoded line, without decoding it.
+ */
+final class AsciiChars implements CharSequence {
+    private byte[] bytes = new byte[512];
+    private int offset;
+    private int length;
+
+    /**
+     * @param capacity Number of bytes the next lines need
+     * @return The backing array, grown to at least the capacity; its content is undefined
+     */
+    byte[] buffer(int capacity) {
+        if (bytes.length < capacity) {
+            bytes = new byte[Math.max(capacity, bytes.length * 2)];
+        }
+        return bytes;
+    }
+
+    /**
+     * Selects the bytes the view presents
+     * @param offset Start of the range in the buffer
+     * @param length Number of bytes in the range
+     */
+    void setRange(int offset, int length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (bytes[offset + index] & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,591 @@
+package com.xmlmafia;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The elements of a file in document order, with their start and end offsets,
+ * depth, parent and name, for navigating the structure without building a DOM.
+ * <p>
+ * Each element is a number; its columns are primitive and bit-packed: start
+ * offsets like line starts, and lengths, parent distances, depths and name
+ * ids in fixed-size segments at the width of each segment's largest value.
+ * Names are interned in a {@link SymbolTable}, with an element count per
+ * name. An element is followed by its descendants, so its subtree is the
+ * range of numbers whose starts are before its end.
+ * <p>
+ * The index holds at most {@code Integer.MAX_VALUE - 1} elements and takes at
+ * most a quarter of the maximum heap. A file with more elements is indexed up
+ * to that point only: the index is marked truncated, and covers the elements
+ * starting before {@link #coveredBytes()}.
+ * <p>
+ * An index is built once, like {@link SearchEngine}'s structural queries:
+ * chunks are scanned in parallel as if they started outside markup, and then
+ * linked in file order, rescanning a chunk whose predecessor ended inside
+ * markup. An end tag closes the innermost open element of the same name;
+ * elements still open inside that one end where the end tag starts, and an
+ * end tag no open element matches is ignored. Elements left open at the end
+ * of the file have no end. The index is
+ * read-only afterwards.
+ */
+public class ElementIndex {
+    private static final Logger logger = LoggerFactory.getLogger(ElementIndex.class);
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    private static final long NO_END = 0; // Length of an element that is never closed; tags are never empty
+    private static final int MAX_ELEMENTS = Integer.MAX_VALUE - 1;
+    private static final long MAX_MEMORY_BYTES = Runtime.getRuntime().maxMemory() / 4; // Heap the index may take
+
+    private final LineOffsetIndex starts = new LineOffsetIndex(1, true);
+    private final PackedColumn lengths = new PackedColumn();
+    private final PackedColumn parentDistances = new PackedColumn(); // 0 for top-level elements
+    private final PackedColumn depths = new PackedColumn();
+    private final PackedColumn nameIds = new PackedColumn();
+    private final SymbolTable names = new SymbolTable();
+    private long[] counts = new long[16];
+    private int size;
+    private long coveredBytes;
+    private boolean truncated;
+
+    private ElementIndex() {
+    }
+
+    /**
+     * Scans a file for its elements. Stops early when the calling thread is
+     * interrupted.
+     * @param document The file to index
+     * @param pool The pool chunks are scanned on
+     * @return The index, or null if the build was interrupted
+     */
+    public static ElementIndex build(XmlDocument document, ForkJoinPool pool) {
+        long startNanos = System.nanoTime();
+        long fileSize = document.size();
+        ElementIndex index = new ElementIndex();
+        Linker linker = index.new Linker(document.decoder().charset());
+        long chunkCount = (fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int waveSize = Math.max(1, pool.getParallelism() * 2);
+        Chunk previous = null;
+
+        scan:
+        for (long firstChunk = 0; firstChunk < chunkCount; firstChunk += waveSize) {
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            Chunk[] wave = new Chunk[(int) Math.min(waveSize, chunkCount - firstChunk)];
+            for (int i = 0; i < wave.length; i++) {
+                long start = (firstChunk + i) * CHUNK_SIZE;
+                wave[i] = new Chunk(start, Math.min(fileSize, start + CHUNK_SIZE));
+            }
+            pool.invoke(new ScanTask(document, wave, 0, wave.length));
+
+            for (Chunk chunk : wave) {
+                if (previous != null && !previous.scanner.isInText()) {
+                    // The chunk's own scan started inside markup; continue the previous one over it
+                    chunk.events = new Events();
+                    chunk.scanner = previous.scanner;
+                    chunk.scanner.setListener(chunk.events);
+                    chunk.scan(document);
+                }
+                boolean complete = linker.link(chunk.events);
+                chunk.events = null;
+                previous = chunk;
+                if (!complete) {
+                    break scan;
+                }
+                if (index.memoryBytes() > MAX_MEMORY_BYTES) {
+                    index.truncate(chunk.scanEnd);
+                    break scan;
+                }
+            }
+        }
+        if (!index.truncated) {
+            index.coveredBytes = fileSize;
+        } else {
+            logger.warn(String.format("Element index of %s truncated at %d of %d bytes (%d elements)",
+                document.file().getName(), index.coveredBytes, fileSize, index.size));
+        }
+
+        long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+        logger.info(String.format("Indexed %d elements with %d names (%d KB) in %d ms (%.1f MB/s)",
+            index.size, index.names.size(), index.memoryBytes() / 1024, elapsedNanos / 1_000_000,
+            fileSize / (elapsedNanos / 1e9) / (1024.0 * 1024.0)));
+        return index;
+    }
+
+    /**
+     * @return The number of elements
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Whether the file has more elements than the index could hold
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return The length of the file prefix whose elements are all in the index
+     */
+    public long coveredBytes() {
+        return coveredBytes;
+    }
+
+    /**
+     * @param element An element number, 0 <= element < size()
+     * @return The file offset of the element's start tag
+     */
+    public long start(int element) {
+        return starts.get(element);
+    }
+
+    /**
+     * @param element An element number
+     * @return The file offset just past the element's end tag, or -1 if it is never closed
+     */
+    public long end(int element) {
+        long length = lengths.get(element);
+        return length == NO_END ? -1 : start(element) + length;
+    }
+
+    /**
+     * @param element An element number
+     * @return The number of elements enclosing it
+     */
+    public int depth(int element) {
+        return (int) depths.get(element);
+    }
+
+    /**
+     * @param element An element number
+     * @return The enclosing element, or -1 for a top-level element
+     */
+    public int parent(int element) {
+        int distance = (int) parentDistances.get(element);
+        return distance == 0 ? -1 : element - distance;
+    }
+
+    /**
+     * @param element An element number
+     * @return The id of the element's name in {@link #name(int)} and {@link #count(int)}
+     */
+    public int nameId(int element) {
+        return (int) nameIds.get(element);
+    }
+
+    /**
+     * @param element An element number
+     * @return The element's qualified name
+     */
+    public String nameOf(int element) {
+        return names.name(nameId(element));
+    }
+
+    /**
+     * @return The number of distinct element names
+     */
+    public int nameCount() {
+        return names.size();
+    }
+
+    /**
+     * @param nameId A name id, 0 <= nameId < nameCount()
+     * @return The name
+     */
+    public String name(int nameId) {
+        return names.name(nameId);
+    }
+
+    /**
+     * @param nameId A name id
+     * @return The number of elements with the name
+     */
+    public long count(int nameId) {
+        return counts[nameId];
+    }
+
+    /**
+     * @param name A qualified element name
+     * @return The number of elements with the name
+     */
+    public long count(String name) {
+        int nameId = names.idOf(name);
+        return nameId < 0 ? 0 : counts[nameId];
+    }
+
+    /**
+     * @param element An element number
+     * @return The element's first child, or -1 if it has none
+     */
+    public int firstChild(int element) {
+        return element + 1 < size && parentDistances.get(element + 1) == 1 ? element + 1 : -1;
+    }
+
+    /**
+     * @param element An element number
+     * @return The next element with the same parent, or -1 if there is none
+     */
+    public int nextSibling(int element) {
+        long end = end(element);
+        if (end < 0) {
+            return -1;
+        }
+        // The element's descendants are the elements that start before its end
+        int next = firstStartingAtOrAfter(end);
+        return next >= 0 && parent(next) == parent(element) ? next : -1;
+    }
+
+    /**
+     * @param element An element number
+     * @return The previous element with the same parent, or -1 if there is none
+     */
+    public int previousSibling(int element) {
+        int parent = parent(element);
+        int sibling = element - 1;
+        // The element before this one is the previous sibling or one of its descendants
+        while (sibling >= 0 && sibling != parent && parent(sibling) != parent) {
+            sibling = parent(sibling);
+        }
+        return sibling >= 0 && sibling != parent ? sibling : -1;
+    }
+
+    /**
+     * @param offset A file offset
+     * @return The innermost element whose tags enclose the offset, or -1 if there is none or the offset is not covered
+     */
+    public int elementAt(long offset) {
+        if (size == 0 || offset < start(0) || offset >= coveredBytes) {
+            return -1;
+        }
+        int element = (int) starts.entryOf(offset, 0);
+        while (element >= 0) {
+            long end = end(element);
+            if (end < 0 || end > offset) {
+                break;
+            }
+            element = parent(element);
+        }
+        return element;
+    }
+
+    /**
+     * @param offset A file offset
+     * @return The first element whose start tag starts at or after the offset, or -1 if there is none
+     */
+    public int firstStartingAtOrAfter(long offset) {
+        if (size == 0 || offset <= start(0)) {
+            return size == 0 ? -1 : 0;
+        }
+        int element = (int) starts.entryOf(offset, 0);
+        if (start(element) < offset) {
+            element++;
+        }
+        return element < size ? element : -1;
+    }
+
+    /**
+     * @return The number of bytes used by the index data
+     */
+    public long memoryBytes() {
+        return starts.memoryBytes() + lengths.memoryBytes() + parentDistances.memoryBytes()
+            + depths.memoryBytes() + nameIds.memoryBytes() + (long) counts.length * Long.BYTES;
+    }
+
+    /**
+     * Stops the index at an offset; elements still open there have no end
+     */
+    private void truncate(long offset) {
+        truncated = true;
+        coveredBytes = offset;
+    }
+
+    /**
+     * Appends the tags of consecutive chunks to the index, pairing end tags
+     * with the open elements
+     */
+    private final class Linker {
+        private final Charset charset;
+        private int[] open = new int[64]; // Open elements, innermost last
+        private int depth;
+
+        Linker(Charset charset) {
+            this.charset = charset;
+        }
+
+        /**
+         * @return Whether all tags were added; false once the index is full and truncated
+         */
+        boolean link(Events events) {
+            int[] nameMap = new int[events.names.size()];
+            Arrays.fill(nameMap, -1);
+            for (int k = 0; k < events.count; k++) {
+                int tag = events.tags[k];
+                long offset = events.offsets[k];
+                int localName = tag >>> Events.NAME_SHIFT;
+                if ((tag & Events.END_TAG) != 0) {
+                    // A name no start tag has used cannot close anything
+                    if (nameMap[localName] < 0) {
+                        nameMap[localName] = names.idOf(decode(events.names.name(localName)));
+                    }
+                    closeMatching(nameMap[localName], offset, offset + events.lengths[k]);
+                    continue;
+                }
+                if (size == MAX_ELEMENTS) {
+                    truncate(offset);
+                    return false;
+                }
+
+                if (nameMap[localName] < 0) {
+                    nameMap[localName] = names.intern(decode(events.names.name(localName)));
+                }
+                int nameId = nameMap[localName];
+                if (nameId == counts.length) {
+                    counts = Arrays.copyOf(counts, nameId * 2);
+                }
+                counts[nameId]++;
+
+                int element = size++;
+                starts.add(offset);
+                parentDistances.add(depth > 0 ? element - open[depth - 1] : 0);
+                depths.add(depth);
+                nameIds.add(nameId);
+                lengths.add(NO_END);
+                if ((tag & Events.EMPTY_ELEMENT) != 0) {
+                    close(element, offset + events.lengths[k]);
+                } else {
+                    if (depth == open.length) {
+                        open = Arrays.copyOf(open, depth * 2);
+                    }
+                    open[depth++] = element;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Pops the open elements up to the innermost one with a name; the
+         * elements above it were never closed and end where its end tag starts
+         */
+        private void closeMatching(int nameId, long endTagStart, long end) {
+            int match = depth - 1;
+            while (match >= 0 && nameIds.get(open[match]) != nameId) {
+                match--;
+            }
+            if (nameId < 0 || match < 0) {
+                return;
+            }
+            while (depth - 1 > match) {
+                close(open[--depth], endTagStart);
+            }
+            close(open[--depth], end);
+        }
+
+        private void close(int element, long end) {
+            lengths.set(element, end - starts.get(element));
+        }
+
+        /**
+         * Turns a name as the scanner reports it into the decoded name
+         */
+        private String decode(String scanned) {
+            boolean utf16 = charset.equals(StandardCharsets.UTF_16LE) || charset.equals(StandardCharsets.UTF_16BE);
+            return utf16 ? scanned : new String(scanned.getBytes(StandardCharsets.ISO_8859_1), charset);
+        }
+    }
+
+    /**
+     * The tags of one chunk, in file order, with names local to the chunk
+     */
+    private static final class Events implements XmlTagScanner.TagListener {
+        static final int EMPTY_ELEMENT = 1; // Flag of a start tag that closes itself
+        static final int END_TAG = 2; // Flag of an end tag
+        static final int NAME_SHIFT = 2; // The local name id is kept above the flags
+
+        final SymbolTable names = new SymbolTable();
+        long[] offsets = new long[1024];
+        int[] lengths = new int[1024];
+        int[] tags = new int[1024]; // Local name id << NAME_SHIFT | flags
+        int count;
+
+        @Override
+        public void onStartTag(XmlTagScanner scanner) {
+            int flags = scanner.isEmptyElement() ? EMPTY_ELEMENT : 0;
+            add(scanner, names.intern(scanner.name()) << NAME_SHIFT | flags);
+        }
+
+        @Override
+        public void onEndTag(XmlTagScanner scanner) {
+            add(scanner, names.intern(scanner.name()) << NAME_SHIFT | END_TAG);
+        }
+
+        private void add(XmlTagScanner scanner, int tag) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                tags = Arrays.copyOf(tags, count * 2);
+            }
+            offsets[count] = scanner.tagStart();
+            lengths[count] = (int) Math.min(scanner.tagLength(), Integer.MAX_VALUE);
+            tags[count] = tag;
+            count++;
+        }
+    }
+
+    /**
+     * A chunk of the file and the scan over it. The scan covers the bytes from
+     * the first '&lt;' in the chunk to the first one after it, so consecutive
+     * scans meet at a tag opening.
+     */
+    private static final class Chunk {
+        final long start;
+        final long end;
+        long scanStart;
+        long scanEnd;
+        XmlTagScanner scanner;
+        Events events;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        void scan(XmlDocument document) {
+            FileBackend backend = document.backend();
+            byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+            for (long position = scanStart; position < scanEnd; ) {
+                int bytesRead = backend.read(position, buffer, 0, (int) Math.min(buffer.length, scanEnd - position));
+                if (bytesRead <= 0) {
+                    break;
+                }
+                scanner.scan(buffer, 0, bytesRead, position);
+                position += bytesRead;
+            }
+        }
+    }
+
+    /**
+     * Splits a range of chunks in halves until a single chunk is left to scan
+     */
+    private static final class ScanTask extends RecursiveAction {
+        private final XmlDocument document;
+        private final Chunk[] wave;
+        private final int from;
+        private final int to;
+
+        ScanTask(XmlDocument document, Chunk[] wave, int from, int to) {
+            this.document = document;
+            this.wave = wave;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                Chunk chunk = wave[from];
+                long fileSize = document.size();
+                chunk.scanStart = chunk.start == 0 ? 0 : document.findTagOpening(chunk.start, fileSize);
+                chunk.scanEnd = document.findTagOpening(chunk.end, fileSize);
+                chunk.events = new Events();
+                chunk.scanner = new XmlTagScanner(document.decoder().charset(), chunk.events);
+                chunk.scan(document);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ScanTask(document, wave, from, mid), new ScanTask(document, wave, mid, to));
+        }
+    }
+
+    /**
+     * A non-negative long per element, in segments bit-packed at the width
+     * of their largest value, so growing never copies the column. A segment
+     * is repacked wider when a larger value is set, a few times at most.
+     */
+    private static final class PackedColumn {
+        private static final int SEGMENT_SHIFT = 16;
+        private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+        private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+        private static final int MIN_WIDENING = 4; // Bits added at least when a segment is repacked
+
+        private long[][] segments = new long[16][];
+        private byte[] widths = new byte[16]; // Bits per value in each segment; 0 while all values are 0
+        private int size;
+        private long words; // Words allocated in all segments
+
+        void add(long value) {
+            int segment = size >>> SEGMENT_SHIFT;
+            if (segment == segments.length) {
+                segments = Arrays.copyOf(segments, segment * 2);
+                widths = Arrays.copyOf(widths, segment * 2);
+            }
+            size++;
+            set(size - 1, value);
+        }
+
+        long get(int index) {
+            int segment = index >>> SEGMENT_SHIFT;
+            return read(segments[segment], widths[segment], index & SEGMENT_MASK);
+        }
+
+        void set(int index, long value) {
+            int segment = index >>> SEGMENT_SHIFT;
+            int width = 64 - Long.numberOfLeadingZeros(value);
+            if (width > widths[segment]) {
+                widen(segment, width);
+            }
+            if (widths[segment] > 0) {
+                write(segments[segment], widths[segment], index & SEGMENT_MASK, value);
+            }
+        }
+
+        long memoryBytes() {
+            return words * Long.BYTES;
+        }
+
+        private void widen(int segment, int width) {
+            int oldWidth = widths[segment];
+            int newWidth = Math.min(64, Math.max(width, oldWidth + MIN_WIDENING));
+            long[] old = segments[segment];
+            long[] packed = new long[SEGMENT_SIZE / 64 * newWidth];
+            for (int slot = 0; oldWidth > 0 && slot < SEGMENT_SIZE; slot++) {
+                write(packed, newWidth, slot, read(old, oldWidth, slot));
+            }
+            words += packed.length - (old == null ? 0 : old.length);
+            segments[segment] = packed;
+            widths[segment] = (byte) newWidth;
+        }
+
+        private static long read(long[] packed, int width, int slot) {
+            if (width == 0) {
+                return 0;
+            }
+            long bitPosition = (long) slot * width;
+            int word = (int) (bitPosition >>> 6);
+            int shift = (int) (bitPosition & 63);
+            long value = packed[word] >>> shift;
+            if (shift + width > 64) {
+                value |= packed[word + 1] << (64 - shift);
+            }
+            return width == 64 ? value : value & ((1L << width) - 1);
+        }
+
+        private static void write(long[] packed, int width, int slot, long value) {
+            long mask = width == 64 ? -1L : (1L << width) - 1;
+            long bitPosition = (long) slot * width;
+            int word = (int) (bitPosition >>> 6);
+            int shift = (int) (bitPosition & 63);
+            packed[word] = packed[word] & ~(mask << shift) | (value << shift);
+            if (shift + width > 64) {
+                int spill = 64 - shift;
+                packed[word + 1] = packed[word + 1] & ~(mask >>> spill) | (value >>> spill);
+            }
+        }
+    }
+}
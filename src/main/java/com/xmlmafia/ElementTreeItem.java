@@ -0,0 +1,122 @@
+package com.xmlmafia;
+
+import java.util.ArrayList;
+import java.util.List;
+import javafx.collections.ObservableList;
+import javafx.scene.control.TreeItem;
+
+/**
+ * A node of the outline tree, backed by an element of an {@link ElementIndex}.
+ * Children are created from the index when the node is first expanded and
+ * dropped again when it is collapsed, so only the expanded part of the tree
+ * holds objects. Elements with many children show them in pages, ending in
+ * a "more" node that is replaced by the next page when it is opened.
+ */
+public class ElementTreeItem extends TreeItem<String> {
+    public static final int PAGE_SIZE = 1000; // Children created at a time
+
+    /**
+     * Describes elements for display
+     */
+    public interface Labeler {
+        /**
+         * @param element An element number
+         * @return The text shown for the element, e.g. its start tag
+         */
+        String label(int element);
+    }
+
+    private final ElementIndex elements;
+    private final Labeler labeler;
+    private final int element; // -1 for the root, whose children are the top-level elements
+    private final boolean more; // A placeholder for the children from this element on
+    private boolean childrenLoaded;
+
+    private ElementTreeItem(ElementIndex elements, Labeler labeler, int element, boolean more) {
+        super(more ? "…" : element < 0 ? "" : labeler.label(element));
+        this.elements = elements;
+        this.labeler = labeler;
+        this.element = element;
+        this.more = more;
+        expandedProperty().addListener((obs, wasExpanded, isExpanded) -> {
+            if (!isExpanded && childrenLoaded) {
+                childrenLoaded = false;
+                super.getChildren().clear();
+            }
+        });
+    }
+
+    /**
+     * @param elements The index of the document
+     * @param labeler Describes the elements
+     * @return A root whose children are the document's top-level elements
+     */
+    public static ElementTreeItem root(ElementIndex elements, Labeler labeler) {
+        ElementTreeItem root = new ElementTreeItem(elements, labeler, -1, false);
+        root.setExpanded(true);
+        return root;
+    }
+
+    /**
+     * @return The element of the node, or -1 for the root
+     */
+    public int element() {
+        return element;
+    }
+
+    /**
+     * @return Whether the node stands for further children of its parent
+     */
+    public boolean isMore() {
+        return more;
+    }
+
+    /**
+     * Replaces a "more" child with the next page of children
+     * @param moreItem The last child of this node
+     */
+    public void showMore(ElementTreeItem moreItem) {
+        ObservableList<TreeItem<String>> children = super.getChildren();
+        int position = children.indexOf(moreItem);
+        if (position < 0 || !moreItem.more) {
+            return;
+        }
+        children.remove(position);
+        children.addAll(page(moreItem.element));
+    }
+
+    @Override
+    public boolean isLeaf() {
+        if (more) {
+            return true;
+        }
+        return element < 0 ? elements.size() == 0 : elements.firstChild(element) < 0;
+    }
+
+    @Override
+    public ObservableList<TreeItem<String>> getChildren() {
+        if (!childrenLoaded && !more) {
+            childrenLoaded = true;
+            int first = element < 0 ? (elements.size() > 0 ? 0 : -1) : elements.firstChild(element);
+            if (first >= 0) {
+                super.getChildren().setAll(page(first));
+            }
+        }
+        return super.getChildren();
+    }
+
+    /**
+     * @return Up to a page of siblings from an element on, followed by a "more" node if there are further ones
+     */
+    private List<TreeItem<String>> page(int first) {
+        List<TreeItem<String>> page = new ArrayList<>();
+        for (int child = first; child >= 0; child = elements.nextSibling(child)) {
+            if (page.size() == PAGE_SIZE) {
+                page.add(new ElementTreeItem(elements, labeler, child, true));
+                break;
+            }
+            page.add(new ElementTreeItem(elements, labeler, child, false));
+        }
+        return page;
+    }
+}
@@ -0,0 +1,55 @@
+package com.xmlmafia;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Random access to the bytes of an open file, addressed by long offsets so
+ * that files larger than 2 GB can be viewed.
+ */
+public interface FileBackend extends Closeable {
+
+    /**
+     * Opens a backend for a file. The controller uses this to stay independent
+     * of how the bytes are actually mapped or read.
+     */
+    interface Factory {
+        FileBackend open(File file) throws IOException;
+    }
+
+    /**
+     * @return The size of the file in bytes
+     */
+    long size();
+
+    /**
+     * Reads a single byte
+     * @param offset Absolute file offset, 0 <= offset < size()
+     * @return The byte at the given offset
+     */
+    byte get(long offset);
+
+    /**
+     * Bulk copies bytes starting at an absolute file offset. Reads may span
+     * internal segment boundaries.
+     * @param offset Absolute file offset to start reading at
+     * @param dst Destination array
+     * @param dstOffset Offset in the destination array
+     * @param length Maximum number of bytes to copy
+     * @return The number of bytes copied, or -1 if offset is at or past the end of the file
+     */
+    int read(long offset, byte[] dst, int dstOffset, int length);
+
+    /**
+     * Hints that a range will be read soon, so it can be brought into memory
+     * ahead of time. Backends that cannot do so ignore the hint.
+     * @param offset Absolute file offset of the range
+     * @param length Length of the range in bytes
+     */
+    default void readAhead(long offset, long length) {
+    }
+
+    @Override
+    void close() throws IOException;
+}
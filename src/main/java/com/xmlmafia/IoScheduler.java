@@ -0,0 +1,351 @@
+package com.xmlmafia;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the viewer's background work on a few worker threads, taking tasks
+ * from separate lanes in priority order: lines a visible cell is waiting for
+ * first, then prefetched lines, then the lexer states of shown lines, then
+ * indexing, then search.
+ * <p>
+ * Long-running lanes never hold every worker, so one is always left for
+ * loading lines, and they can wait between steps while visible lines are
+ * being loaded. A task submitted with a key replaces the task with the same
+ * key still queued in its lane, e.g. the load for a viewport the user has
+ * already scrolled past. Queue depth and queueing latency are kept per lane.
+ */
+public class IoScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(IoScheduler.class);
+
+    /**
+     * Kinds of work, in priority order
+     */
+    public enum Lane {
+        VISIBLE, // Lines shown on screen
+        PREFETCH, // Lines around the viewport
+        HIGHLIGHT, // Lexer states of lines shown far past the lexed part of the file, long-running
+        INDEXING, // Line and element indexes, long-running
+        SEARCH; // Long-running
+
+        boolean isBackground() {
+            return this == HIGHLIGHT || this == INDEXING || this == SEARCH;
+        }
+    }
+
+    /**
+     * A queued or running task. FutureTask keeps what a task throws for
+     * {@link Future#get}, which the viewer never calls, so it is logged here.
+     */
+    private final class Job extends FutureTask<Void> {
+        final Lane lane;
+        final Object key;
+        final long queuedNanos = System.nanoTime();
+
+        Job(Lane lane, Object key, Runnable task) {
+            super(task, null);
+            this.lane = lane;
+            this.key = key;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                get();
+            } catch (ExecutionException e) {
+                logger.error("Unexpected error in " + lane + " task", e.getCause());
+            } catch (InterruptedException e) {
+                // Not reached: the task is done, so get() does not wait
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final int LANES = Lane.values().length;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Condition visibleIdle = lock.newCondition();
+    private final int maxBackgroundWorkers;
+    private final Thread[] workers;
+    private final ArrayDeque<Job>[] queues;
+    private final Map<Object, Job>[] keyedJobs; // Queued jobs by key, per lane
+    private final int[] running = new int[LANES];
+    private final long[] completed = new long[LANES];
+    private final long[] coalesced = new long[LANES];
+    private final long[] totalWaitNanos = new long[LANES];
+    private final long[] maxWaitNanos = new long[LANES];
+    private int runningBackground;
+    private boolean shutdown;
+
+    /**
+     * @param workerCount Number of worker threads, at least 2
+     */
+    @SuppressWarnings("unchecked")
+    public IoScheduler(int workerCount) {
+        if (workerCount < 2) {
+            throw new IllegalArgumentException("At least two workers are required: " + workerCount);
+        }
+        this.maxBackgroundWorkers = workerCount - 1;
+        this.queues = new ArrayDeque[LANES];
+        this.keyedJobs = new Map[LANES];
+        for (int lane = 0; lane < LANES; lane++) {
+            queues[lane] = new ArrayDeque<>();
+            keyedJobs[lane] = new HashMap<>();
+        }
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::work, "xml-io-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * @param lane The lane to queue the task in
+     * @param task The task
+     * @return A future to wait for or cancel the task
+     */
+    public Future<?> submit(Lane lane, Runnable task) {
+        return submit(lane, null, task);
+    }
+
+    /**
+     * Queues a task, replacing the task with the same key still queued in the
+     * lane. The replaced task is cancelled.
+     * @param lane The lane to queue the task in
+     * @param key Identifies tasks that supersede each other, or null
+     * @param task The task
+     * @return A future to wait for or cancel the task
+     */
+    public Future<?> submit(Lane lane, Object key, Runnable task) {
+        Job job = new Job(lane, key, task);
+        lock.lock();
+        try {
+            if (shutdown) {
+                job.cancel(false);
+                return job;
+            }
+            int l = lane.ordinal();
+            if (key != null) {
+                Job superseded = keyedJobs[l].put(key, job);
+                if (superseded != null) {
+                    queues[l].remove(superseded);
+                    superseded.cancel(false);
+                    coalesced[l]++;
+                }
+            }
+            queues[l].addLast(job);
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        return job;
+    }
+
+    /**
+     * Drops the tasks queued in a lane, e.g. line loads for a file that is no
+     * longer shown
+     * @param lane The lane
+     */
+    public void clear(Lane lane) {
+        lock.lock();
+        try {
+            int l = lane.ordinal();
+            for (Job job : queues[l]) {
+                job.cancel(false);
+            }
+            queues[l].clear();
+            keyedJobs[l].clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lets a long-running task step aside while visible lines are loaded:
+     * waits until no such load is queued or running, for at most a time limit.
+     * Returns early, keeping the interrupt, if the calling task is cancelled.
+     * @param maxMillis Longest time to wait
+     */
+    public void awaitVisibleIdle(long maxMillis) {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+            int visible = Lane.VISIBLE.ordinal();
+            while ((running[visible] > 0 || !queues[visible].isEmpty()) && remaining > 0) {
+                remaining = visibleIdle.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane A lane
+     * @return The number of tasks queued in the lane
+     */
+    public int queueDepth(Lane lane) {
+        lock.lock();
+        try {
+            return queues[lane.ordinal()].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane A lane
+     * @return The average time the lane's tasks waited before running, in milliseconds
+     */
+    public double averageWaitMillis(Lane lane) {
+        lock.lock();
+        try {
+            int l = lane.ordinal();
+            return completed[l] == 0 ? 0 : totalWaitNanos[l] / 1e6 / completed[l];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane A lane
+     * @return The longest time one of the lane's tasks waited before running, in milliseconds
+     */
+    public double maxWaitMillis(Lane lane) {
+        lock.lock();
+        try {
+            return maxWaitNanos[lane.ordinal()] / 1e6;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the workers, cancelling queued tasks and interrupting running ones
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            for (int l = 0; l < LANES; l++) {
+                for (Job job : queues[l]) {
+                    job.cancel(false);
+                }
+                queues[l].clear();
+                keyedJobs[l].clear();
+            }
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder("IoScheduler[");
+        lock.lock();
+        try {
+            for (Lane lane : Lane.values()) {
+                int l = lane.ordinal();
+                if (l > 0) {
+                    summary.append(", ");
+                }
+                summary.append(String.format("%s: %d queued, %d running, %d done, %d coalesced, wait avg %.1f ms max %.1f ms",
+                    lane, queues[l].size(), running[l], completed[l], coalesced[l],
+                    completed[l] == 0 ? 0 : totalWaitNanos[l] / 1e6 / completed[l], maxWaitNanos[l] / 1e6));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return summary.append(']').toString();
+    }
+
+    private void work() {
+        while (true) {
+            Job job = take();
+            if (job == null) {
+                return;
+            }
+            try {
+                job.run();
+            } finally {
+                finish(job);
+                // A cancelled task may have left the interrupt meant for it
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Waits for the highest priority task this worker may run
+     * @return The task, or null once the scheduler is shut down
+     */
+    private Job take() {
+        lock.lock();
+        try {
+            while (true) {
+                if (shutdown) {
+                    return null;
+                }
+                for (Lane lane : Lane.values()) {
+                    int l = lane.ordinal();
+                    if (queues[l].isEmpty() || (lane.isBackground() && runningBackground >= maxBackgroundWorkers)) {
+                        continue;
+                    }
+                    Job job = queues[l].pollFirst();
+                    if (job.key != null) {
+                        keyedJobs[l].remove(job.key, job);
+                    }
+                    long waitNanos = System.nanoTime() - job.queuedNanos;
+                    totalWaitNanos[l] += waitNanos;
+                    maxWaitNanos[l] = Math.max(maxWaitNanos[l], waitNanos);
+                    running[l]++;
+                    if (lane.isBackground()) {
+                        runningBackground++;
+                    }
+                    return job;
+                }
+                workAvailable.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finish(Job job) {
+        lock.lock();
+        try {
+            int l = job.lane.ordinal();
+            running[l]--;
+            completed[l]++;
+            if (job.lane.isBackground()) {
+                runningBackground--;
+                // A background slot is free; a queued background task may now run
+                workAvailable.signal();
+            }
+            if (job.lane == Lane.VISIBLE && running[l] == 0 && queues[l].isEmpty()) {
+                visibleIdle.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.xmlmafia;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the lexer state each line starts in, so any line can be
+ * highlighted correctly without re-lexing the file from the top.
+ * <p>
+ * The start state of every {@code interval}-th line is kept as a one-byte
+ * checkpoint. Checkpoints are filled in order from the start of the file, but
+ * only as far as a requested line needs. Exact per-line states are kept for a
+ * bounded number of recently resolved blocks of lines, which covers the
+ * viewport and its surroundings.
+ * <p>
+ * {@link #startState} never blocks and may be called from the FX thread;
+ * {@link #resolve} reads lines and belongs on a background thread. Resolves
+ * take turns one checkpoint or block at a time, so a resolve close to the
+ * known checkpoints is not held up by one lexing a long way forward.
+ */
+public class LexerStateTable {
+    public static final int DEFAULT_INTERVAL = 64;
+    public static final int UNKNOWN = -1;
+    private static final int INITIAL_CHECKPOINTS = 1024;
+    private static final int MAX_CACHED_BLOCKS = 64;
+
+    /**
+     * Lexes runs of lines of the file
+     */
+    public interface LineLexer {
+        /**
+         * @param firstLine The first line to lex
+         * @param count Number of lines to lex
+         * @param startState The lexer state the first line starts in
+         * @param endStates Receives the state after each lexed line
+         * @return The number of lines lexed, fewer than count if the rest cannot be read (yet)
+         */
+        int lex(long firstLine, int count, int startState, int[] endStates);
+    }
+
+    private final int interval;
+    private final Object resolveLock = new Object();
+    private final int[] endStates; // Scratch space, guarded by resolveLock
+
+    // Start state of line k * interval, valid for k < checkpointCount
+    private volatile byte[] checkpoints;
+    private volatile int checkpointCount;
+
+    // Exact start states of every line in recently resolved blocks
+    private final Map<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > MAX_CACHED_BLOCKS;
+        }
+    };
+
+    public LexerStateTable() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param interval Number of lines between checkpoints
+     */
+    public LexerStateTable(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Interval must be at least 1: " + interval);
+        }
+        this.interval = interval;
+        this.endStates = new int[interval];
+        this.checkpoints = new byte[INITIAL_CHECKPOINTS];
+        this.checkpoints[0] = (byte) XmlTokenizer.INITIAL_STATE;
+        this.checkpointCount = 1;
+    }
+
+    /**
+     * Looks up the state a line starts in without doing any work
+     * @param line The line number
+     * @return The lexer state, or {@link #UNKNOWN} if the line has not been resolved
+     */
+    public int startState(long line) {
+        long block = line / interval;
+        int slot = (int) (line % interval);
+        if (slot == 0 && block < checkpointCount) {
+            return checkpoints[(int) block];
+        }
+        synchronized (blocks) {
+            byte[] states = blocks.get(block);
+            return states == null || slot >= states.length ? UNKNOWN : states[slot];
+        }
+    }
+
+    /**
+     * @return The number of lines from the start of the file up to the last known checkpoint's block
+     */
+    public long checkpointedLines() {
+        return (long) checkpointCount * interval;
+    }
+
+    /**
+     * Resolves the start states of a range of lines, lexing forward from the
+     * last known checkpoint as far as necessary. Stops early when a line
+     * cannot be read.
+     * @param from First line, inclusive
+     * @param to Last line, exclusive
+     * @param lexer Lexes the lines
+     * @return Whether every line in the range was resolved
+     */
+    public boolean resolve(long from, long to, LineLexer lexer) {
+        for (long block = from / interval; block * interval < to; block++) {
+            long firstLine = block * interval;
+            int needed = (int) Math.min(interval, to - firstLine);
+            if (hasBlock(block, needed)) {
+                continue;
+            }
+            while (checkpointCount <= block) {
+                if (!fillNextCheckpoint(lexer)) {
+                    return false;
+                }
+            }
+
+            int known;
+            synchronized (resolveLock) {
+                if (hasBlock(block, needed)) {
+                    continue;
+                }
+                // Lex the whole block; at the end of the readable lines only its head is known
+                byte[] states = new byte[interval];
+                states[0] = checkpoints[(int) block];
+                known = 1 + lexer.lex(firstLine, interval - 1, states[0], endStates);
+                for (int i = 1; i < known; i++) {
+                    states[i] = (byte) endStates[i - 1];
+                }
+                synchronized (blocks) {
+                    blocks.put(block, known == interval ? states : Arrays.copyOf(states, known));
+                }
+            }
+            if (known < needed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasBlock(long block, int needed) {
+        synchronized (blocks) {
+            byte[] existing = blocks.get(block);
+            return existing != null && existing.length >= needed;
+        }
+    }
+
+    /**
+     * Lexes forward from the last checkpoint to the next one
+     * @return Whether the lines up to the next checkpoint could be read
+     */
+    private boolean fillNextCheckpoint(LineLexer lexer) {
+        synchronized (resolveLock) {
+            int count = checkpointCount;
+            long firstLine = (long) (count - 1) * interval;
+            if (lexer.lex(firstLine, interval, checkpoints[count - 1], endStates) < interval) {
+                return false;
+            }
+            int state = endStates[interval - 1];
+            byte[] table = checkpoints;
+            if (count == table.length) {
+                table = Arrays.copyOf(table, table.length * 2);
+            }
+            table[count] = (byte) state;
+            // Publish the array before the count that makes the new entry visible
+            checkpoints = table;
+            checkpointCount = count + 1;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.xmlmafia;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe cache of decoded lines, bounded by an estimate of their heap size.
+ * <p>
+ * Eviction follows W-TinyLFU: new lines enter a small LRU window, and lines
+ * leaving the window are only admitted to the main segmented LRU if they have
+ * been requested more often than the line they would replace. Access counts
+ * are kept approximately in a 4-bit count-min sketch that is periodically
+ * halved. A full-file scan therefore cannot flush the lines the viewport keeps
+ * coming back to.
+ * <p>
+ * Lookups only read a concurrent map, so the FX thread never waits on the
+ * loaders. Hits are recorded in a small lossy buffer that is replayed against
+ * the sketch and queues under the eviction lock, either by the next put or by
+ * the first lookup to find the buffer filling up and the lock free. Puts take
+ * that lock to admit lines and evict others.
+ */
+public class LineCache {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024; // 64MB
+    private static final int ENTRY_OVERHEAD = 96; // Node, boxed key, map entry and String headers
+    private static final int AVERAGE_ENTRY_BYTES = 256;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final long maxBytes;
+    private final long windowMaxBytes;
+    private final long mainMaxBytes;
+    private final long protectedMaxBytes;
+    private final Map<Long, Node> nodes = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ReadBuffer readBuffer = new ReadBuffer();
+    // Guarded by evictionLock
+    private final AccessQueue[] queues = {new AccessQueue(), new AccessQueue(), new AccessQueue()};
+    private final FrequencySketch sketch;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long evictions;
+
+    private static final class Node {
+        final long key;
+        final String value;
+        final long weight;
+        int queue;
+        Node prev;
+        Node next;
+
+        Node(long key, String value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Intrusive doubly linked list ordered from least to most recently used
+     */
+    private static final class AccessQueue {
+        Node head;
+        Node tail;
+        long weight;
+
+        void append(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        void unlink(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            weight = 0;
+        }
+    }
+
+    /**
+     * Ring of recently hit nodes waiting to be replayed under the eviction
+     * lock. Offers are dropped rather than waited on when the ring is full or
+     * another thread claims the same slot; losing a few accesses only makes
+     * the frequency estimates slightly less precise.
+     */
+    private static final class ReadBuffer {
+        static final int SIZE = 128;
+        static final int MASK = SIZE - 1;
+        static final int DRAIN_THRESHOLD = SIZE / 4;
+
+        final AtomicReferenceArray<Node> slots = new AtomicReferenceArray<>(SIZE);
+        final AtomicLong writes = new AtomicLong();
+        volatile long reads; // Only advanced under the eviction lock
+
+        /**
+         * @return Whether enough accesses are pending that the buffer should be drained
+         */
+        boolean offer(Node node) {
+            long tail = writes.get();
+            long pending = tail - reads;
+            if (pending >= SIZE) {
+                return true;
+            }
+            if (!writes.compareAndSet(tail, tail + 1)) {
+                return false;
+            }
+            slots.lazySet((int) (tail & MASK), node);
+            return pending + 1 >= DRAIN_THRESHOLD;
+        }
+
+        /**
+         * @return The oldest pending node, or null if there is none or its writer has not stored it yet
+         */
+        Node poll() {
+            long head = reads;
+            if (head == writes.get()) {
+                return null;
+            }
+            int index = (int) (head & MASK);
+            Node node = slots.get(index);
+            if (node == null) {
+                return null;
+            }
+            slots.lazySet(index, null);
+            reads = head + 1;
+            return node;
+        }
+    }
+
+    public LineCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes Upper bound for the estimated heap size of all cached lines
+     */
+    public LineCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.windowMaxBytes = Math.max(1, maxBytes / 100);
+        this.mainMaxBytes = maxBytes - windowMaxBytes;
+        this.protectedMaxBytes = mainMaxBytes * 4 / 5;
+        this.sketch = new FrequencySketch(maxBytes / AVERAGE_ENTRY_BYTES);
+    }
+
+    /**
+     * Looks up a line, counting a hit or a miss
+     * @param line The line number
+     * @return The cached text, or null if the line is not cached
+     */
+    public String get(long line) {
+        Node node = nodes.get(line);
+        if (node == null) {
+            // The sketch counts the line when the caller loads and puts it
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (readBuffer.offer(node) && evictionLock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    /**
+     * Checks for a line without counting it as an access
+     * @param line The line number
+     * @return Whether the line is cached
+     */
+    public boolean contains(long line) {
+        return nodes.containsKey(line);
+    }
+
+    /**
+     * Adds or replaces a line. Lines larger than the whole cache are not stored.
+     * @param line The line number
+     * @param text The decoded line
+     */
+    public void put(long line, String text) {
+        long weight = ENTRY_OVERHEAD + 2L * text.length();
+        if (weight > maxBytes) {
+            return;
+        }
+        Node node = new Node(line, text, weight);
+        node.queue = WINDOW;
+        evictionLock.lock();
+        try {
+            drainReads();
+            sketch.increment(line);
+            Node existing = nodes.put(line, node);
+            if (existing != null) {
+                queues[existing.queue].unlink(existing);
+            }
+            queues[WINDOW].append(node);
+            evictFromWindow();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return A copy of the cached lines, which may miss lines put or evicted while it is taken
+     */
+    public Map<Long, String> snapshot() {
+        Map<Long, String> copy = new LinkedHashMap<>(nodes.size() * 2);
+        for (Node node : nodes.values()) {
+            copy.put(node.key, node.value);
+        }
+        return copy;
+    }
+
+    /**
+     * Removes all lines; counters are kept
+     */
+    public void clear() {
+        evictionLock.lock();
+        try {
+            // Pending hits refer to the removed nodes and are dropped when drained
+            nodes.clear();
+            for (AccessQueue queue : queues) {
+                queue.clear();
+            }
+            sketch.clear();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public long weightedSize() {
+        evictionLock.lock();
+        try {
+            return queues[WINDOW].weight + queues[PROBATION].weight + queues[PROTECTED].weight;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        evictionLock.lock();
+        try {
+            return evictions;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = hitCount();
+        long missCount = missCount();
+        long requests = hitCount + missCount;
+        return String.format("LineCache[entries=%d, bytes=%d/%d, hits=%d, misses=%d, hitRate=%.1f%%, evictions=%d]",
+            size(), weightedSize(), maxBytes, hitCount, missCount,
+            requests == 0 ? 0.0 : 100.0 * hitCount / requests, evictionCount());
+    }
+
+    /**
+     * Replays buffered hits against the sketch and queues; the caller holds the eviction lock
+     */
+    private void drainReads() {
+        Node node;
+        while ((node = readBuffer.poll()) != null) {
+            sketch.increment(node.key);
+            // Lines replaced or evicted since the hit are no longer queued
+            if (nodes.get(node.key) == node) {
+                onAccess(node);
+            }
+        }
+    }
+
+    private void onAccess(Node node) {
+        AccessQueue queue = queues[node.queue];
+        queue.unlink(node);
+        if (node.queue == PROBATION) {
+            // A second access promotes the line to the protected segment
+            node.queue = PROTECTED;
+            queues[PROTECTED].append(node);
+            demoteExcessProtected();
+        } else {
+            queue.append(node);
+        }
+    }
+
+    private void demoteExcessProtected() {
+        AccessQueue protectedQueue = queues[PROTECTED];
+        while (protectedQueue.weight > protectedMaxBytes && protectedQueue.head != null) {
+            Node demoted = protectedQueue.head;
+            protectedQueue.unlink(demoted);
+            demoted.queue = PROBATION;
+            queues[PROBATION].append(demoted);
+        }
+    }
+
+    private void evictFromWindow() {
+        AccessQueue window = queues[WINDOW];
+        while (window.weight > windowMaxBytes && window.head != null) {
+            Node candidate = window.head;
+            window.unlink(candidate);
+            admit(candidate);
+        }
+    }
+
+    /**
+     * Moves a line leaving the window into the main segment if it is used more
+     * often than the lines it would displace, and evicts the loser otherwise
+     */
+    private void admit(Node candidate) {
+        AccessQueue probation = queues[PROBATION];
+        AccessQueue protectedQueue = queues[PROTECTED];
+        while (probation.weight + protectedQueue.weight + candidate.weight > mainMaxBytes) {
+            Node victim = probation.head != null ? probation.head : protectedQueue.head;
+            if (victim == null || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                evict(candidate);
+                return;
+            }
+            queues[victim.queue].unlink(victim);
+            evict(victim);
+        }
+        candidate.queue = PROBATION;
+        probation.append(candidate);
+    }
+
+    private void evict(Node node) {
+        nodes.remove(node.key, node);
+        evictions++;
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, sixteen to a long, with four hash rows.
+     * The table has a long per expected entry, so a scan does not saturate the
+     * counters before aging. All counters are halved once the number of
+     * increments reaches ten times the expected entries so old popularity fades.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+            0x97CB3127E5A3F1D7L, 0xC2B2AE3D27D4EB4FL, 0x9E3779B97F4A7C15L, 0x165667B19E3779F9L
+        };
+        private static final long HALVE_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int mask;
+        private final long sampleSize;
+        private long additions;
+
+        FrequencySketch(long expectedEntries) {
+            int length = Integer.highestOneBit((int) Math.max(16, Math.min(1 << 22, expectedEntries)) * 2 - 1);
+            this.table = new long[length];
+            this.mask = length - 1;
+            this.sampleSize = 10L * length;
+        }
+
+        void increment(long key) {
+            boolean added = false;
+            for (long seed : SEEDS) {
+                long hash = rehash(key, seed);
+                int index = (int) (hash >>> 32) & mask;
+                int shift = (int) (hash & 15) << 2;
+                if (((table[index] >>> shift) & 0xF) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & HALVE_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(long key) {
+            int frequency = 15;
+            for (long seed : SEEDS) {
+                long hash = rehash(key, seed);
+                int index = (int) (hash >>> 32) & mask;
+                int shift = (int) (hash & 15) << 2;
+                frequency = Math.min(frequency, (int) ((table[index] >>> shift) & 0xF));
+            }
+            return frequency;
+        }
+
+        void clear() {
+            Arrays.fill(table, 0);
+            additions = 0;
+        }
+
+        private static long rehash(long key, long seed) {
+            long hash = (key + seed) * 0x9E3779B97F4A7C15L;
+            hash ^= hash >>> 29;
+            hash *= 0xBF58476D1CE4E5B9L;
+            return hash ^ (hash >>> 32);
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.xmlmafia;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes byte ranges of a file into line Strings using the file's encoding,
+ * as given by its byte order mark or XML declaration. Each thread reuses its
+ * own decoder and buffers, and lines made of ASCII only are copied straight
+ * into a Latin-1 String without going through the decoder.
+ * <p>
+ * Besides ASCII-compatible encodings such as UTF-8 and ISO-8859-1, UTF-16 in
+ * either byte order is supported; its newline is two bytes wide, which
+ * {@link #lineStartAfter} and {@link #newlineWidth} account for. Multi-byte
+ * legacy encodings such as Shift_JIS or GBK keep '\n' a single byte, but the
+ * trail bytes of their characters can look like ASCII, so their lines always
+ * go through the decoder.
+ */
+public class LineDecoder {
+    private static final Logger logger = LoggerFactory.getLogger(LineDecoder.class);
+    public static final LineDecoder UTF_8 = new LineDecoder(StandardCharsets.UTF_8, 0);
+    private static final int DECLARATION_PROBE_SIZE = 1024;
+    private static final Pattern ENCODING_DECLARATION =
+        Pattern.compile("^<\\?xml[^>]*?encoding\\s*=\\s*[\"']([A-Za-z][A-Za-z0-9._:-]*)[\"']");
+
+    private static final VarHandle LONG_VIEW =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private final Charset charset;
+    private final int bomLength;
+    private final boolean asciiCompatible;
+    private final boolean asciiSafe;
+    private final boolean bigEndianUtf16;
+    private final ThreadLocal<Buffers> buffers;
+
+    /**
+     * Per-thread decoder and scratch buffers, grown on demand
+     */
+    private static final class Buffers {
+        final CharsetDecoder decoder;
+        byte[] bytes = new byte[512];
+        CharBuffer chars = CharBuffer.allocate(512);
+
+        Buffers(Charset charset) {
+            this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    }
+
+    /**
+     * @param charset The file encoding; must be ASCII-compatible or UTF-16
+     * @param bomLength Number of byte order mark bytes at the start of the file
+     */
+    public LineDecoder(Charset charset, int bomLength) {
+        this.charset = charset;
+        this.bomLength = bomLength;
+        this.asciiCompatible = isAsciiCompatible(charset);
+        this.asciiSafe = asciiCompatible && isAsciiSafe(charset);
+        this.bigEndianUtf16 = charset.equals(StandardCharsets.UTF_16BE);
+        if (!asciiCompatible && !charset.equals(StandardCharsets.UTF_16LE) && !bigEndianUtf16) {
+            throw new IllegalArgumentException("Unsupported line encoding: " + charset);
+        }
+        this.buffers = ThreadLocal.withInitial(() -> new Buffers(charset));
+    }
+
+    /**
+     * Determines the encoding of a file from its byte order mark, the layout of
+     * its first characters or its XML declaration, defaulting to UTF-8
+     * @param backend The file to inspect
+     * @return A decoder for the file
+     */
+    public static LineDecoder detect(FileBackend backend) {
+        byte[] head = new byte[(int) Math.min(DECLARATION_PROBE_SIZE, backend.size())];
+        int length = head.length == 0 ? 0 : Math.max(0, backend.read(0, head, 0, head.length));
+
+        if (startsWith(head, length, 0xEF, 0xBB, 0xBF)) {
+            return new LineDecoder(StandardCharsets.UTF_8, 3);
+        }
+        if (startsWith(head, length, 0xFE, 0xFF)) {
+            return new LineDecoder(StandardCharsets.UTF_16BE, 2);
+        }
+        if (startsWith(head, length, 0xFF, 0xFE)) {
+            return new LineDecoder(StandardCharsets.UTF_16LE, 2);
+        }
+        // "<?" without a byte order mark
+        if (startsWith(head, length, 0x00, 0x3C, 0x00, 0x3F)) {
+            return new LineDecoder(StandardCharsets.UTF_16BE, 0);
+        }
+        if (startsWith(head, length, 0x3C, 0x00, 0x3F, 0x00)) {
+            return new LineDecoder(StandardCharsets.UTF_16LE, 0);
+        }
+
+        Matcher matcher = ENCODING_DECLARATION.matcher(new String(head, 0, length, StandardCharsets.ISO_8859_1));
+        if (matcher.find()) {
+            String declared = matcher.group(1);
+            try {
+                Charset charset = Charset.forName(declared);
+                if (isAsciiCompatible(charset)) {
+                    return new LineDecoder(charset, 0);
+                }
+                logger.warn("Declared encoding " + declared + " does not match the file layout, using UTF-8");
+            } catch (Exception e) {
+                logger.warn("Unknown declared encoding " + declared + ", using UTF-8");
+            }
+        }
+        return UTF_8;
+    }
+
+    public Charset charset() {
+        return charset;
+    }
+
+    /**
+     * @return Whether ASCII characters, including '\n', are single bytes in this encoding
+     */
+    public boolean isAsciiCompatible() {
+        return asciiCompatible;
+    }
+
+    /**
+     * @return Whether every byte below 0x80 is the ASCII character it looks like, never part of a
+     *         longer character, so markup can be found and ASCII lines copied without decoding
+     */
+    public boolean isAsciiSafe() {
+        return asciiSafe;
+    }
+
+    /**
+     * @return Whether the start of a character can be told from its offset alone, so text
+     *         found in the raw bytes at a {@link #isUnitStart unit start} is a real occurrence
+     */
+    public boolean isSelfSynchronizing() {
+        return asciiSafe || !asciiCompatible;
+    }
+
+    /**
+     * @return The number of bytes in an encoded '\n'
+     */
+    public int newlineWidth() {
+        return asciiCompatible ? 1 : 2;
+    }
+
+    /**
+     * @param offset A file offset
+     * @return Whether a character can start at the offset; in UTF-16 only even offsets past the byte order mark can.
+     *         Offsets in encodings that are not {@link #isSelfSynchronizing self-synchronizing} always qualify.
+     */
+    public boolean isUnitStart(long offset) {
+        return asciiCompatible || ((offset - bomLength) & 1) == 0;
+    }
+
+    /**
+     * Checks whether a '\n' byte found by a byte scan is a real line break.
+     * In UTF-16 the byte may also be half of another character.
+     * @param backend The file
+     * @param newlineByte Offset of a '\n' byte
+     * @return The offset where the next line starts, or -1 if the byte is not a line break
+     */
+    public long lineStartAfter(FileBackend backend, long newlineByte) {
+        if (asciiCompatible) {
+            return newlineByte + 1;
+        }
+        boolean evenUnit = ((newlineByte - bomLength) & 1) == 0;
+        if (bigEndianUtf16) {
+            return !evenUnit && backend.get(newlineByte - 1) == 0 ? newlineByte + 1 : -1;
+        }
+        return evenUnit && newlineByte + 1 < backend.size() && backend.get(newlineByte + 1) == 0 ? newlineByte + 2 : -1;
+    }
+
+    /**
+     * @param lineStart Offset of the first byte of a line
+     * @return Offset of the line's first character, past the byte order mark on the first line
+     */
+    public long contentStart(long lineStart) {
+        return Math.max(lineStart, bomLength);
+    }
+
+    /**
+     * Decodes a line. A byte order mark at the start of the file and a
+     * trailing carriage return are not part of the result.
+     * @param backend The file
+     * @param start Offset of the first byte of the line
+     * @param end Offset just past the last byte of the line, excluding the newline
+     * @return The decoded line
+     */
+    public String decodeLine(FileBackend backend, long start, long end) {
+        start = contentStart(start);
+        int length = (int) Math.max(0, end - start);
+        Buffers scratch = buffers.get();
+        if (scratch.bytes.length < length) {
+            scratch.bytes = new byte[Math.max(length, scratch.bytes.length * 2)];
+        }
+        int bytesRead = length == 0 ? 0 : Math.max(0, backend.read(start, scratch.bytes, 0, length));
+        return decode(scratch, scratch.bytes, 0, bytesRead);
+    }
+
+    /**
+     * Decodes bytes that have already been copied out of the file, dropping a
+     * trailing carriage return
+     * @param bytes Source array
+     * @param offset Start of the line in the array
+     * @param length Length of the line in bytes, excluding the newline
+     * @return The decoded line
+     */
+    public String decode(byte[] bytes, int offset, int length) {
+        return decode(buffers.get(), bytes, offset, length);
+    }
+
+    /**
+     * Decodes the start of a byte range, for matching a line too long for one
+     * String piece by piece. Unless the range ends the line, a trailing
+     * carriage return is kept and the bytes of a character cut off at the end
+     * are left for the next piece.
+     * @param bytes Source array
+     * @param offset Start of the piece in the array, at the start of a character
+     * @param length Length of the range in bytes
+     * @param endOfLine Whether the range ends the line
+     * @param consumed Receives the number of bytes decoded in its first element
+     * @return The decoded piece
+     */
+    public String decodePiece(byte[] bytes, int offset, int length, boolean endOfLine, int[] consumed) {
+        consumed[0] = length;
+        if (endOfLine) {
+            return decode(bytes, offset, length);
+        }
+        if (asciiSafe && (charset.equals(StandardCharsets.ISO_8859_1) || isAscii(bytes, offset, length))) {
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        }
+        Buffers scratch = buffers.get();
+        CharBuffer out = charBuffer(scratch, length);
+        ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+        scratch.decoder.reset();
+        scratch.decoder.decode(in, out, false);
+        consumed[0] = in.position() - offset;
+        return new String(out.array(), 0, out.position());
+    }
+
+    /**
+     * Counts the bytes the first characters of a decoded range came from, so
+     * that positions in decoded text map back to file offsets even where
+     * malformed bytes were replaced
+     * @param bytes Source array
+     * @param offset Start of the range in the array, at the start of a character
+     * @param length Length of the range in bytes
+     * @param chars Number of chars of the decoded range
+     * @return The number of bytes that decode to those chars
+     */
+    public int byteLength(byte[] bytes, int offset, int length, int chars) {
+        if (asciiSafe && chars <= length && isAscii(bytes, offset, chars)) {
+            return chars;
+        }
+        Buffers scratch = buffers.get();
+        CharBuffer out = charBuffer(scratch, length);
+        out.limit(Math.min(chars, out.capacity()));
+        ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+        scratch.decoder.reset();
+        // Decoding stops when the chars are filled, before the next character's bytes
+        scratch.decoder.decode(in, out, true);
+        return in.position() - offset;
+    }
+
+    /**
+     * Moves an offset back to the start of the character it falls in. Only
+     * {@link #isSelfSynchronizing self-synchronizing} encodings can tell.
+     * @param backend The file
+     * @param offset A file offset
+     * @return The offset of the character holding the offset's byte
+     */
+    public long characterStart(FileBackend backend, long offset) {
+        if (offset <= bomLength) {
+            return Math.min(offset, bomLength);
+        }
+        if (!asciiCompatible) {
+            offset -= (offset - bomLength) & 1;
+            // A low surrogate continues the character before it
+            if (offset - bomLength < 2 || offset + 1 >= backend.size()) {
+                return offset;
+            }
+            int high = backend.get(bigEndianUtf16 ? offset : offset + 1) & 0xFF;
+            return (high & 0xFC) == 0xDC ? offset - 2 : offset;
+        }
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            // At most three continuation bytes follow a lead byte
+            for (int i = 0; i < 3 && offset > bomLength && (backend.get(offset) & 0xC0) == 0x80; i++) {
+                offset--;
+            }
+        }
+        return offset;
+    }
+
+    private String decode(Buffers scratch, byte[] bytes, int offset, int length) {
+        length -= carriageReturnLength(bytes, offset, length);
+        if (length <= 0) {
+            return "";
+        }
+
+        // Pure ASCII maps one byte to one char, which a Latin-1 String copies directly
+        if (asciiSafe && (charset.equals(StandardCharsets.ISO_8859_1) || isAscii(bytes, offset, length))) {
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        }
+
+        CharsetDecoder decoder = scratch.decoder;
+        CharBuffer out = charBuffer(scratch, length);
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(bytes, offset, length), out, true);
+        decoder.flush(out);
+        return new String(out.array(), 0, out.position());
+    }
+
+    /**
+     * @return The thread's char buffer, cleared and large enough for the chars of a byte range
+     */
+    private static CharBuffer charBuffer(Buffers scratch, int length) {
+        int maxChars = (int) (length * (double) scratch.decoder.maxCharsPerByte()) + 1;
+        if (scratch.chars.capacity() < maxChars) {
+            scratch.chars = CharBuffer.allocate(Math.max(maxChars, scratch.chars.capacity() * 2));
+        }
+        CharBuffer out = scratch.chars;
+        out.clear();
+        return out;
+    }
+
+    private int carriageReturnLength(byte[] bytes, int offset, int length) {
+        if (asciiCompatible) {
+            return length >= 1 && bytes[offset + length - 1] == '\r' ? 1 : 0;
+        }
+        if (length < 2) {
+            return 0;
+        }
+        byte first = bytes[offset + length - 2];
+        byte second = bytes[offset + length - 1];
+        boolean carriageReturn = bigEndianUtf16 ? first == 0 && second == '\r' : first == '\r' && second == 0;
+        return carriageReturn ? 2 : 0;
+    }
+
+    /**
+     * Checks eight bytes at a time whether any byte has its high bit set
+     */
+    static boolean isAscii(byte[] bytes, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        for (; i + Long.BYTES <= end; i += Long.BYTES) {
+            if (((long) LONG_VIEW.get(bytes, i) & HIGH_BITS) != 0) {
+                return false;
+            }
+        }
+        for (; i < end; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        if (charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.ISO_8859_1)
+                || charset.equals(StandardCharsets.US_ASCII)) {
+            return true;
+        }
+        if (!charset.canEncode()) {
+            return false;
+        }
+        String probe = "\n\r<>=\"'/?!-[]&;abcXYZ019 ";
+        byte[] encoded = probe.getBytes(charset);
+        return new String(encoded, StandardCharsets.ISO_8859_1).equals(probe);
+    }
+
+    /**
+     * UTF-8 and single-byte encodings never use bytes below 0x80 inside a
+     * longer character; Shift_JIS, GBK, Big5 and ISO-2022-JP do
+     */
+    private static boolean isAsciiSafe(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+            || charset.name().startsWith("ISO-8859-")
+            || (charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1);
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, int... prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if ((bytes[i] & 0xFF) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,202 @@
+package com.xmlmafia;
+
+import java.util.Arrays;
+
+/**
+ * The folded line ranges of the line view, mapping the rows the view shows
+ * to the file lines behind them. A fold keeps its first line visible and
+ * hides the lines after it up to its end.
+ * <p>
+ * Folds are disjoint and kept sorted in primitive arrays with the number of
+ * lines hidden before each, so both mappings are binary searches and the
+ * memory used depends only on the number of folds. Folding a range that
+ * contains other folds replaces them.
+ * <p>
+ * Not thread-safe; the line view uses it on the FX application thread.
+ */
+public class LineFolds {
+    private int[] starts = new int[16]; // First line of each fold, the one left visible
+    private int[] ends = new int[16]; // Line after the last hidden line of each fold
+    private long[] hiddenBefore = new long[16]; // Lines hidden by the folds before each fold
+    private int count;
+
+    /**
+     * @return The number of folds
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return The number of lines hidden by all folds
+     */
+    public long hiddenLines() {
+        return count == 0 ? 0 : hiddenBefore[count - 1] + hidden(count - 1);
+    }
+
+    /**
+     * @return The line after the last fold, or 0 if there are no folds
+     */
+    public int end() {
+        return count == 0 ? 0 : ends[count - 1];
+    }
+
+    /**
+     * @param row A row of the view
+     * @return The line shown in the row
+     */
+    public int lineAt(int row) {
+        // Last fold whose first line is shown before the row
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] - hiddenBefore[mid] < row) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int fold = low - 1;
+        return fold < 0 ? row : (int) (row + hiddenBefore[fold] + hidden(fold));
+    }
+
+    /**
+     * @param line A line
+     * @return The row showing the line, or the first line of the fold hiding it
+     */
+    public int rowOf(int line) {
+        int fold = foldAtOrBefore(line);
+        if (fold < 0) {
+            return line;
+        }
+        if (line < ends[fold]) {
+            return (int) (starts[fold] - hiddenBefore[fold]);
+        }
+        return (int) (line - hiddenBefore[fold] - hidden(fold));
+    }
+
+    /**
+     * @param line A line
+     * @return Whether the line is the visible first line of a fold
+     */
+    public boolean isFoldStart(int line) {
+        int fold = foldAtOrBefore(line);
+        return fold >= 0 && starts[fold] == line;
+    }
+
+    /**
+     * @param line A line
+     * @return Whether a fold hides the line
+     */
+    public boolean isHidden(int line) {
+        int fold = foldAtOrBefore(line);
+        return fold >= 0 && starts[fold] < line && line < ends[fold];
+    }
+
+    /**
+     * Hides the lines after a range's first line. Folds inside the range are
+     * merged into it; a fold the range starts in leaves it unchanged.
+     * @param start First line of the range, which stays visible
+     * @param end Line after the range
+     * @return Whether the folds changed
+     */
+    public boolean fold(int start, int end) {
+        if (end - start < 2 || isHidden(start)) {
+            return false;
+        }
+        int first = foldAtOrBefore(start);
+        if (first < 0 || starts[first] < start) {
+            first++;
+        }
+        int last = first;
+        while (last < count && starts[last] < end) {
+            end = Math.max(end, ends[last]);
+            last++;
+        }
+
+        // Replace folds first..last-1 by the new one
+        int removed = last - first;
+        if (removed == 0 && count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+            hiddenBefore = Arrays.copyOf(hiddenBefore, count * 2);
+        }
+        int shift = 1 - removed;
+        System.arraycopy(starts, last, starts, last + shift, count - last);
+        System.arraycopy(ends, last, ends, last + shift, count - last);
+        starts[first] = start;
+        ends[first] = end;
+        count += shift;
+        updateHiddenBefore(first);
+        return true;
+    }
+
+    /**
+     * @param line The first line of a fold
+     * @return Whether there was a fold starting at the line
+     */
+    public boolean unfold(int line) {
+        int fold = foldAtOrBefore(line);
+        if (fold < 0 || starts[fold] != line) {
+            return false;
+        }
+        System.arraycopy(starts, fold + 1, starts, fold, count - fold - 1);
+        System.arraycopy(ends, fold + 1, ends, fold, count - fold - 1);
+        count--;
+        updateHiddenBefore(fold);
+        return true;
+    }
+
+    /**
+     * @param line A line
+     * @return The first line of the fold that shows or hides the line, or -1 if there is none
+     */
+    public int foldStart(int line) {
+        int fold = foldAtOrBefore(line);
+        return fold >= 0 && line < ends[fold] ? starts[fold] : -1;
+    }
+
+    /**
+     * @param line The first line of a fold
+     * @return The number of lines the fold hides, or 0 if there is no fold starting at the line
+     */
+    public int hiddenBy(int line) {
+        int fold = foldAtOrBefore(line);
+        return fold >= 0 && starts[fold] == line ? hidden(fold) : 0;
+    }
+
+    /**
+     * Removes all folds
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * @return The last fold starting at or before a line, or -1 if there is none
+     */
+    private int foldAtOrBefore(int line) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= line) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    private int hidden(int fold) {
+        return ends[fold] - starts[fold] - 1;
+    }
+
+    private void updateHiddenBefore(int from) {
+        for (int i = from; i < count; i++) {
+            hiddenBefore[i] = i == 0 ? 0 : hiddenBefore[i - 1] + hidden(i - 1);
+        }
+    }
+}
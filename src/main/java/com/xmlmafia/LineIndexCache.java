@@ -0,0 +1,357 @@
+package com.xmlmafia;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps finished line indexes, and the trigram indexes searches narrow their
+ * scans with, in sidecar files so reopening a large file does not require
+ * another full scan. Entries are keyed by the file's path and
+ * validated against its size, modification time and a hash of sampled content
+ * before use; stale or unreadable entries are discarded. The cache directory is
+ * kept under a byte budget by deleting the least recently used entries.
+ */
+public class LineIndexCache {
+    private static final Logger logger = LoggerFactory.getLogger(LineIndexCache.class);
+    public static final long DEFAULT_MAX_CACHE_BYTES = 1024L * 1024 * 1024; // 1GB
+    public static final long MIN_CACHED_FILE_SIZE = 8L * 1024 * 1024; // Smaller files index faster than a cache lookup pays off
+    private static final String SUFFIX = ".lidx";
+    private static final String TRIGRAM_SUFFIX = ".tidx";
+    private static final long MAGIC = 0x31305844494C4D58L; // "XMLIDX01"
+    private static final long TRIGRAM_MAGIC = 0x31304952544C4D58L; // "XMLTRI01"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final int SAMPLE_COUNT = 16;
+    private static final int SAMPLE_SIZE = 4096;
+
+    private final Path directory;
+    private final long maxCacheBytes;
+
+    public LineIndexCache() {
+        this(defaultDirectory(), DEFAULT_MAX_CACHE_BYTES);
+    }
+
+    /**
+     * @param directory Directory holding the sidecar files
+     * @param maxCacheBytes Total size the directory is trimmed to after each store
+     */
+    public LineIndexCache(Path directory, long maxCacheBytes) {
+        this.directory = directory;
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    /**
+     * @return The cache directory: {@code xmlmafia.cacheDir} if set, else ~/.cache/xml-mafia
+     */
+    static Path defaultDirectory() {
+        String configured = System.getProperty("xmlmafia.cacheDir");
+        if (configured != null) {
+            return Paths.get(configured);
+        }
+        return Paths.get(System.getProperty("user.home"), ".cache", "xml-mafia");
+    }
+
+    /**
+     * A restored index and the line count it was built for
+     */
+    public static final class Entry {
+        public final LineOffsetIndex index;
+        public final long totalLines;
+
+        Entry(LineOffsetIndex index, long totalLines) {
+            this.index = index;
+            this.totalLines = totalLines;
+        }
+    }
+
+    /**
+     * Looks up a cached index for a file
+     * @param file The indexed file
+     * @param backend The open backend of the file, used to validate sampled content
+     * @return The cached index mapped from disk, or null if there is no valid entry
+     */
+    public Entry load(File file, FileBackend backend) {
+        ByteBuffer body = loadSidecar(file, backend, SUFFIX, MAGIC, "line index");
+        if (body == null) {
+            return null;
+        }
+        try {
+            return new Entry(LineOffsetIndex.read(body), body.getLong(40));
+        } catch (Exception e) {
+            discard(file, SUFFIX, "line index", e);
+            return null;
+        }
+    }
+
+    /**
+     * Looks up a cached trigram index for a file
+     * @param file The indexed file
+     * @param backend The open backend of the file, used to validate sampled content
+     * @return The cached index mapped from disk, or null if there is no valid entry
+     */
+    public TrigramIndex loadTrigrams(File file, FileBackend backend) {
+        ByteBuffer body = loadSidecar(file, backend, TRIGRAM_SUFFIX, TRIGRAM_MAGIC, "trigram index");
+        if (body == null) {
+            return null;
+        }
+        try {
+            return TrigramIndex.read(body);
+        } catch (Exception e) {
+            discard(file, TRIGRAM_SUFFIX, "trigram index", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a finished index for a file and trims the cache to its budget
+     * @param file The indexed file
+     * @param backend The open backend of the file
+     * @param index The complete line index
+     * @param totalLines The number of lines in the file
+     */
+    public void store(File file, FileBackend backend, LineOffsetIndex index, long totalLines) {
+        // Sidecars are mapped back in as a single buffer, which is limited to 2GB
+        if (index.memoryBytes() >= Integer.MAX_VALUE - 1024 * 1024) {
+            return;
+        }
+        storeSidecar(file, backend, SUFFIX, MAGIC, totalLines, index::write, "line index");
+    }
+
+    /**
+     * Writes a trigram index for a file and trims the cache to its budget
+     * @param file The indexed file
+     * @param backend The open backend of the file
+     * @param index The trigram index built for the file
+     */
+    public void storeTrigrams(File file, FileBackend backend, TrigramIndex index) {
+        if (index.memoryBytes() >= Integer.MAX_VALUE - 1024 * 1024) {
+            return;
+        }
+        storeSidecar(file, backend, TRIGRAM_SUFFIX, TRIGRAM_MAGIC, index.blockCount(), index::write, "trigram index");
+    }
+
+    /**
+     * Writes the body of a sidecar after its header
+     */
+    private interface SidecarWriter {
+        void write(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Maps a sidecar and validates its header against the file
+     * @return The mapped sidecar positioned at its body, or null if there is no valid entry
+     */
+    private ByteBuffer loadSidecar(File file, FileBackend backend, String suffix, long magic, String kind) {
+        if (backend.size() < MIN_CACHED_FILE_SIZE) {
+            return null;
+        }
+        Path sidecar = sidecarPath(file, suffix);
+        if (!Files.isRegularFile(sidecar)) {
+            return null;
+        }
+
+        // An interrupt would fail the channel operations and get a valid sidecar discarded; it is kept for the caller instead
+        boolean interrupted = Thread.interrupted();
+        try (FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ByteBuffer header = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            if (header.remaining() < HEADER_SIZE || header.getLong(0) != magic || header.getInt(8) != VERSION) {
+                throw new IOException("Unrecognised sidecar format");
+            }
+            int pathLength = header.getInt(12);
+            byte[] pathBytes = new byte[pathLength];
+            header.position(HEADER_SIZE);
+            header.get(pathBytes);
+
+            if (!canonicalPath(file).equals(new String(pathBytes, StandardCharsets.UTF_8))
+                    || header.getLong(16) != backend.size()
+                    || header.getLong(24) != file.lastModified()
+                    || header.getLong(32) != sampleHash(backend)) {
+                logger.info("Discarding stale " + kind + " for " + file.getName());
+                Files.deleteIfExists(sidecar);
+                return null;
+            }
+
+            header.position(HEADER_SIZE + align(pathLength));
+            Files.setLastModifiedTime(sidecar, FileTime.fromMillis(System.currentTimeMillis()));
+            return header;
+        } catch (ClosedByInterruptException e) {
+            interrupted = true;
+            logger.debug("Loading " + kind + " for " + file.getName() + " interrupted", e);
+            return null;
+        } catch (Exception e) {
+            discard(file, suffix, kind, e);
+            return null;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void discard(File file, String suffix, String kind, Exception e) {
+        logger.warn("Ignoring unreadable " + kind + " for " + file.getName(), e);
+        Path sidecar = sidecarPath(file, suffix);
+        try {
+            Files.deleteIfExists(sidecar);
+        } catch (IOException deleteError) {
+            logger.debug("Failed to delete " + sidecar, deleteError);
+        }
+    }
+
+    private void storeSidecar(File file, FileBackend backend, String suffix, long magic, long extra,
+                              SidecarWriter body, String kind) {
+        if (backend.size() < MIN_CACHED_FILE_SIZE) {
+            return;
+        }
+        Path sidecar = sidecarPath(file, suffix);
+        Path temp = null;
+        try {
+            Files.createDirectories(directory);
+            byte[] pathBytes = canonicalPath(file).getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + align(pathBytes.length)).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(magic)
+                .putInt(VERSION)
+                .putInt(pathBytes.length)
+                .putLong(backend.size())
+                .putLong(file.lastModified())
+                .putLong(sampleHash(backend))
+                .putLong(extra)
+                .put(pathBytes);
+            header.clear();
+
+            // Write to a temporary file first so readers never see a partial sidecar
+            temp = Files.createTempFile(directory, "index", ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                body.write(channel);
+            }
+            Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Stored " + kind + " for " + file.getName() + " (" + Files.size(sidecar) + " bytes)");
+            evict(sidecar);
+        } catch (Exception e) {
+            logger.warn("Failed to store " + kind + " for " + file.getName(), e);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException deleteError) {
+                    logger.debug("Failed to delete " + temp, deleteError);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used sidecars until the cache fits its budget
+     * @param keep A sidecar that must not be deleted
+     */
+    private void evict(Path keep) throws IOException {
+        List<Path> sidecars = new ArrayList<>();
+        long totalBytes = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*{" + SUFFIX + "," + TRIGRAM_SUFFIX + "}")) {
+            for (Path sidecar : stream) {
+                sidecars.add(sidecar);
+                totalBytes += Files.size(sidecar);
+            }
+        }
+        if (totalBytes <= maxCacheBytes) {
+            return;
+        }
+
+        sidecars.sort(Comparator.comparingLong(LineIndexCache::lastUsed));
+        for (Path sidecar : sidecars) {
+            if (totalBytes <= maxCacheBytes) {
+                break;
+            }
+            if (sidecar.equals(keep)) {
+                continue;
+            }
+            long sidecarBytes = Files.size(sidecar);
+            if (Files.deleteIfExists(sidecar)) {
+                totalBytes -= sidecarBytes;
+                logger.debug("Evicted index " + sidecar.getFileName());
+            }
+        }
+    }
+
+    private static long lastUsed(Path sidecar) {
+        try {
+            return Files.getLastModifiedTime(sidecar).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private Path sidecarPath(File file, String suffix) {
+        return directory.resolve(sha256Hex(canonicalPath(file)) + suffix);
+    }
+
+    /**
+     * Hashes evenly spaced samples of the file, catching in-place edits that
+     * keep the size and modification time unchanged
+     * @param backend The file to sample
+     * @return CRC32 of the samples and the file size
+     */
+    static long sampleHash(FileBackend backend) {
+        CRC32 crc = new CRC32();
+        long size = backend.size();
+        byte[] sample = new byte[SAMPLE_SIZE];
+        long span = Math.max(0, size - SAMPLE_SIZE);
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            long offset = span * i / (SAMPLE_COUNT - 1);
+            int bytesRead = backend.read(offset, sample, 0, SAMPLE_SIZE);
+            if (bytesRead > 0) {
+                crc.update(sample, 0, bytesRead);
+            }
+        }
+        return crc.getValue() ^ (size << 32);
+    }
+
+    private static String canonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    private static String sha256Hex(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+}
@@ -0,0 +1,215 @@
+package com.xmlmafia;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds all newlines in a file by scanning fixed-size chunks in parallel on a
+ * ForkJoinPool. Chunks are processed in waves so only a bounded number of
+ * partial results is held at once; the partial results of each wave are
+ * stitched together in file order by a prefix sum over their newline counts.
+ * The first wave is a single chunk so callers can show the start of the file
+ * before the rest has been scanned.
+ */
+public class LineIndexer {
+    private static final Logger logger = LoggerFactory.getLogger(LineIndexer.class);
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024; // 4MB chunks
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    // Word-at-a-time (SWAR) constants for finding '\n' bytes eight at a time
+    private static final VarHandle LONG_VIEW =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    /**
+     * Receives the newlines of one chunk. Calls are made in file order from the
+     * thread that called {@link #index}.
+     */
+    public interface NewlineSink {
+        /**
+         * @param baseLine Number of newlines before this chunk
+         * @param chunkStart File offset of the chunk
+         * @param newlineOffsets Offsets of the newlines relative to chunkStart, ascending
+         * @param count Number of valid entries in newlineOffsets
+         */
+        void accept(long baseLine, long chunkStart, int[] newlineOffsets, int count);
+    }
+
+    /**
+     * Notified after each wave has been passed to the sink
+     */
+    public interface ProgressListener {
+        /**
+         * @param scannedBytes Length of the file prefix scanned so far
+         * @param newlines Number of newlines found in that prefix
+         */
+        void onProgress(long scannedBytes, long newlines);
+    }
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    public LineIndexer() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public LineIndexer(ForkJoinPool pool, int chunkSize) {
+        if (chunkSize < SCAN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be at least " + SCAN_BUFFER_SIZE);
+        }
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Scans the whole file for newlines
+     * @param backend The file to scan
+     * @param sink Receives the newline offsets chunk by chunk, in file order
+     * @return The total number of newlines in the file
+     */
+    public long index(FileBackend backend, NewlineSink sink) {
+        return index(backend, sink, null);
+    }
+
+    /**
+     * Scans the whole file for newlines, reporting progress after each wave
+     * @param backend The file to scan
+     * @param sink Receives the newline offsets chunk by chunk, in file order
+     * @param progress Notified after each wave, may be null
+     * @return The total number of newlines in the file
+     */
+    public long index(FileBackend backend, NewlineSink sink, ProgressListener progress) {
+        long startNanos = System.nanoTime();
+        long fileSize = backend.size();
+        long chunkCount = (fileSize + chunkSize - 1) / chunkSize;
+        int waveSize = Math.max(1, pool.getParallelism() * 2);
+        long newlines = 0;
+        long scannedBytes = 0;
+
+        for (long firstChunk = 0; firstChunk < chunkCount; ) {
+            // Scan the first chunk on its own so the start of the file is available quickly
+            int chunksInWave = (int) Math.min(firstChunk == 0 ? 1 : waveSize, chunkCount - firstChunk);
+            Chunk[] wave = new Chunk[chunksInWave];
+            for (int i = 0; i < chunksInWave; i++) {
+                long start = (firstChunk + i) * chunkSize;
+                wave[i] = new Chunk(start, (int) Math.min(chunkSize, fileSize - start));
+            }
+
+            pool.invoke(new ScanTask(backend, wave, 0, chunksInWave));
+
+            // Stitch the partial indexes: each chunk's base line is the prefix sum of the counts before it
+            for (Chunk chunk : wave) {
+                sink.accept(newlines, chunk.start, chunk.offsets, chunk.count);
+                newlines += chunk.count;
+                scannedBytes += chunk.length;
+            }
+            firstChunk += chunksInWave;
+
+            if (progress != null) {
+                progress.onProgress(scannedBytes, newlines);
+            }
+
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+
+        long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+        logger.info(String.format("Indexed %d lines in %.1f MB over %d chunks in %d ms (%.2f GB/s, parallelism %d)",
+            newlines + 1, fileSize / (1024.0 * 1024.0), chunkCount, elapsedNanos / 1_000_000,
+            fileSize / (elapsedNanos / 1e9) / (1024.0 * 1024.0 * 1024.0), pool.getParallelism()));
+        return newlines;
+    }
+
+    /**
+     * A file range and the newlines found in it
+     */
+    private static final class Chunk {
+        final long start;
+        final int length;
+        int[] offsets;
+        int count;
+
+        Chunk(long start, int length) {
+            this.start = start;
+            this.length = length;
+            this.offsets = new int[Math.max(16, length / 64)];
+        }
+
+        void add(int offset) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[count++] = offset;
+        }
+    }
+
+    /**
+     * Splits a range of chunks in halves until a single chunk is left to scan
+     */
+    private static final class ScanTask extends RecursiveAction {
+        private final FileBackend backend;
+        private final Chunk[] chunks;
+        private final int from;
+        private final int to;
+
+        ScanTask(FileBackend backend, Chunk[] chunks, int from, int to) {
+            this.backend = backend;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                scanChunk(backend, chunks[from]);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ScanTask(backend, chunks, from, mid), new ScanTask(backend, chunks, mid, to));
+        }
+    }
+
+    private static void scanChunk(FileBackend backend, Chunk chunk) {
+        byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+        int scanned = 0;
+        while (scanned < chunk.length) {
+            int bytesRead = backend.read(chunk.start + scanned, buffer, 0, Math.min(SCAN_BUFFER_SIZE, chunk.length - scanned));
+            if (bytesRead <= 0) {
+                break;
+            }
+            scanNewlines(buffer, bytesRead, scanned, chunk);
+            scanned += bytesRead;
+        }
+    }
+
+    /**
+     * Finds '\n' bytes eight at a time. For each word the high bit of a byte is
+     * set in {@code found} exactly when that byte equals '\n', so no byte-wise
+     * verification is needed.
+     */
+    private static void scanNewlines(byte[] buffer, int length, int baseOffset, Chunk chunk) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            long word = (long) LONG_VIEW.get(buffer, i) ^ NEWLINES;
+            long found = ~(((word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | word | LOW_SEVEN_BITS);
+            while (found != 0) {
+                chunk.add(baseOffset + i + (Long.numberOfTrailingZeros(found) >>> 3));
+                found &= found - 1;
+            }
+        }
+        for (; i < length; i++) {
+            if (buffer[i] == '\n') {
+                chunk.add(baseOffset + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.xmlmafia;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Append-only index of line start offsets with O(1) random access.
+ * <p>
+ * Every {@code density}-th line start is stored. Entries are grouped in blocks
+ * of {@link #BLOCK_SIZE}; a block keeps its first offset as a long base and
+ * all entries as deltas from that base, bit-packed at the smallest width that
+ * fits the block's span. With 64-byte lines that is about 13 bits per line
+ * plus 16 bytes of block metadata per 128 lines, under 2 bytes per line.
+ * <p>
+ * The index is written by a single thread and may be read concurrently by any
+ * number of threads while it grows. A finished index can be written out and
+ * restored from a memory-mapped file without copying its packed data.
+ */
+public class LineOffsetIndex {
+    public static final int DEFAULT_DENSITY = 1;
+    static final int BLOCK_SHIFT = 7;
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    private static final int INITIAL_BLOCKS = 64;
+    private static final int HEADER_LONGS = 4;
+    private static final int STAGING_LONGS = 8192;
+
+    private final int density;
+    private final boolean offHeap;
+
+    // Per block: first offset, and (word offset << 8 | bit width) of its packed deltas
+    private volatile LongBuffer blockBases;
+    private volatile LongBuffer blockLayouts;
+    private volatile LongBuffer packedWords;
+    private long usedWords;
+
+    // Raw entries of the block being filled
+    private volatile long[] pending;
+    private volatile int sealedBlocks;
+    private volatile long size;
+
+    public LineOffsetIndex() {
+        this(DEFAULT_DENSITY, false);
+    }
+
+    /**
+     * @param density Store the start of every density-th line; 1 stores every line
+     * @param offHeap Keep the packed data in direct buffers instead of on the Java heap
+     */
+    public LineOffsetIndex(int density, boolean offHeap) {
+        if (density < 1) {
+            throw new IllegalArgumentException("Density must be at least 1: " + density);
+        }
+        this.density = density;
+        this.offHeap = offHeap;
+        this.blockBases = allocate(INITIAL_BLOCKS);
+        this.blockLayouts = allocate(INITIAL_BLOCKS);
+        this.packedWords = allocate(INITIAL_BLOCKS * 16);
+        this.pending = new long[BLOCK_SIZE];
+    }
+
+    private LineOffsetIndex(int density, LongBuffer blockBases, LongBuffer blockLayouts, LongBuffer packedWords,
+                            long usedWords, int sealedBlocks, long[] pending, long size) {
+        this.density = density;
+        this.offHeap = packedWords.isDirect();
+        this.blockBases = blockBases;
+        this.blockLayouts = blockLayouts;
+        this.packedWords = packedWords;
+        this.usedWords = usedWords;
+        this.sealedBlocks = sealedBlocks;
+        this.pending = pending;
+        this.size = size;
+    }
+
+    /**
+     * @return The line interval between stored entries
+     */
+    public int density() {
+        return density;
+    }
+
+    /**
+     * @return The number of stored entries
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Appends the next stored line start. Offsets must be ascending.
+     * @param offset File offset of the start of line {@code size() * density()}
+     */
+    public void add(long offset) {
+        long entry = size;
+        int slot = (int) (entry & BLOCK_MASK);
+        pending[slot] = offset;
+        size = entry + 1;
+        if (slot == BLOCK_MASK) {
+            seal();
+        }
+    }
+
+    /**
+     * @param entry Entry number, 0 <= entry < size()
+     * @return The file offset of the start of line {@code entry * density()}
+     */
+    public long get(long entry) {
+        if (entry < 0 || entry >= size) {
+            throw new IndexOutOfBoundsException("Entry " + entry + " outside index of size " + size);
+        }
+        int block = (int) (entry >>> BLOCK_SHIFT);
+        int slot = (int) (entry & BLOCK_MASK);
+        while (true) {
+            int sealed = sealedBlocks;
+            if (block < sealed) {
+                return decode(block, slot);
+            }
+            long value = pending[slot];
+            // If the block was sealed meanwhile the pending array may already be a fresh one
+            if (sealedBlocks == sealed) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Finds the stored line start at or before a file offset. Searches
+     * outward from a hint first, so ascending lookups cost O(log distance).
+     * @param offset A file offset at or after the first stored entry
+     * @param hint An entry expected at or shortly before the result, e.g. the previous result
+     * @return The last entry whose offset is at or before the given offset
+     */
+    public long entryOf(long offset, long hint) {
+        long count = size;
+        long low = hint >= 0 && hint < count && get(hint) <= offset ? hint : 0;
+        // Gallop forward from the hint to bracket the offset
+        long step = 1;
+        long high = low + step;
+        while (high < count && get(high) <= offset) {
+            low = high;
+            step <<= 1;
+            high = low + step;
+        }
+        high = Math.min(high, count);
+        // Invariant: get(low) <= offset, and high is past the last such entry
+        while (high - low > 1) {
+            long mid = (low + high) >>> 1;
+            if (get(mid) <= offset) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The number of bytes used by the index data
+     */
+    public long memoryBytes() {
+        return (long) sealedBlocks * 2 * Long.BYTES + usedWords * Long.BYTES + (long) BLOCK_SIZE * Long.BYTES;
+    }
+
+    /**
+     * @return The average number of index bytes per line of the file
+     */
+    public double bytesPerLine() {
+        long lines = size * density;
+        return lines == 0 ? 0 : (double) memoryBytes() / lines;
+    }
+
+    /**
+     * Writes the index data in little-endian order. Must not be called while
+     * entries are still being added.
+     * @param channel The channel to write to
+     */
+    void write(WritableByteChannel channel) throws IOException {
+        int sealed = sealedBlocks;
+        ByteBuffer staging = ByteBuffer.allocate(STAGING_LONGS * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        staging.putLong(density).putLong(size).putLong(sealed).putLong(usedWords);
+        writeLongs(channel, staging, blockBases, sealed);
+        writeLongs(channel, staging, blockLayouts, sealed);
+        writeLongs(channel, staging, packedWords, usedWords);
+        writeLongs(channel, staging, LongBuffer.wrap(pending), size - (long) sealed * BLOCK_SIZE);
+        flush(channel, staging);
+    }
+
+    /**
+     * Restores an index written by {@link #write}. The packed data is used in
+     * place, so a memory-mapped buffer stays mapped rather than being copied.
+     * @param buffer Buffer positioned at the index data
+     * @return The restored index
+     */
+    static LineOffsetIndex read(ByteBuffer buffer) {
+        ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int density = (int) data.getLong(0);
+        long size = data.getLong(Long.BYTES);
+        int sealed = (int) data.getLong(2 * Long.BYTES);
+        long usedWords = data.getLong(3 * Long.BYTES);
+        long pendingCount = size - (long) sealed * BLOCK_SIZE;
+        if (density < 1 || sealed < 0 || usedWords < 0 || pendingCount < 0 || pendingCount >= BLOCK_SIZE
+                || (HEADER_LONGS + 2L * sealed + usedWords + pendingCount) * Long.BYTES > data.remaining()) {
+            throw new IllegalArgumentException("Corrupt line index data");
+        }
+
+        int position = HEADER_LONGS * Long.BYTES;
+        LongBuffer bases = longs(data, position, sealed);
+        position += sealed * Long.BYTES;
+        LongBuffer layouts = longs(data, position, sealed);
+        position += sealed * Long.BYTES;
+        LongBuffer words = longs(data, position, (int) usedWords);
+        position += (int) usedWords * Long.BYTES;
+        long[] pending = new long[BLOCK_SIZE];
+        longs(data, position, (int) pendingCount).get(pending, 0, (int) pendingCount);
+
+        return new LineOffsetIndex(density, bases, layouts, words, usedWords, sealed, pending, size);
+    }
+
+    private static LongBuffer longs(ByteBuffer data, int position, int count) {
+        ByteBuffer section = data.duplicate();
+        section.position(position);
+        section.limit(position + count * Long.BYTES);
+        return section.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+
+    private static void writeLongs(WritableByteChannel channel, ByteBuffer staging, LongBuffer source, long count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (!staging.hasRemaining()) {
+                flush(channel, staging);
+            }
+            staging.putLong(source.get(i));
+        }
+    }
+
+    private static void flush(WritableByteChannel channel, ByteBuffer staging) throws IOException {
+        staging.flip();
+        while (staging.hasRemaining()) {
+            channel.write(staging);
+        }
+        staging.clear();
+    }
+
+    private long decode(int block, int slot) {
+        long base = blockBases.get(block);
+        long layout = blockLayouts.get(block);
+        int width = (int) (layout & 0xFF);
+        if (width == 0) {
+            return base;
+        }
+        long bitPosition = (long) slot * width;
+        int word = (int) ((layout >>> 8) + (bitPosition >>> 6));
+        int shift = (int) (bitPosition & 63);
+        LongBuffer words = packedWords;
+        long delta = words.get(word) >>> shift;
+        if (shift + width > 64) {
+            delta |= words.get(word + 1) << (64 - shift);
+        }
+        if (width < 64) {
+            delta &= (1L << width) - 1;
+        }
+        return base + delta;
+    }
+
+    private void seal() {
+        long[] entries = pending;
+        long base = entries[0];
+        long maxDelta = entries[BLOCK_MASK] - base;
+        int width = 64 - Long.numberOfLeadingZeros(maxDelta);
+        int block = sealedBlocks;
+
+        // A block of 128 entries at width w takes exactly 2 * w words
+        long wordOffset = usedWords;
+        int blockWords = 2 * width;
+        LongBuffer words = ensureCapacity(packedWords, (int) (wordOffset + blockWords));
+        for (int slot = 0; slot < BLOCK_SIZE && width > 0; slot++) {
+            long delta = entries[slot] - base;
+            long bitPosition = (long) slot * width;
+            int word = (int) (wordOffset + (bitPosition >>> 6));
+            int shift = (int) (bitPosition & 63);
+            words.put(word, words.get(word) | (delta << shift));
+            if (shift + width > 64) {
+                words.put(word + 1, words.get(word + 1) | (delta >>> (64 - shift)));
+            }
+        }
+        usedWords = wordOffset + blockWords;
+
+        LongBuffer bases = ensureCapacity(blockBases, block + 1);
+        LongBuffer layouts = ensureCapacity(blockLayouts, block + 1);
+        bases.put(block, base);
+        layouts.put(block, wordOffset << 8 | width);
+
+        // Publish the grown buffers before the block becomes visible to readers
+        packedWords = words;
+        blockBases = bases;
+        blockLayouts = layouts;
+        sealedBlocks = block + 1;
+        pending = new long[BLOCK_SIZE];
+    }
+
+    private LongBuffer ensureCapacity(LongBuffer buffer, int required) {
+        if (required <= buffer.capacity()) {
+            return buffer;
+        }
+        LongBuffer grown = allocate(Math.max(required, buffer.capacity() * 2));
+        LongBuffer source = buffer.duplicate();
+        source.clear();
+        grown.put(source);
+        grown.clear();
+        return grown;
+    }
+
+    private LongBuffer allocate(int capacity) {
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(capacity * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+        return LongBuffer.wrap(new long[capacity]);
+    }
+}
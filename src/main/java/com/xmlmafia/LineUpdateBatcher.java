@@ -0,0 +1,137 @@
+package com.xmlmafia;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.scene.Node;
+import javafx.scene.control.IndexedCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.skin.VirtualFlow;
+
+/**
+ * Tells the line view about lines loaded by background threads at most once
+ * per frame. Arrived lines are collected from any thread into one pending
+ * range and published on the next pulse as a single change covering the
+ * rows that are on screen at that moment; rows that have scrolled out of
+ * view are left alone, since their cells read the cache again when they are
+ * shown. A timer runs only while there is something to publish.
+ */
+public class LineUpdateBatcher {
+    private static final long FRAME_NANOS = 16_000_000; // Budget of one frame at 60 fps
+
+    private final VirtualLineList items;
+    private final ListView<String> view;
+    private final AnimationTimer timer;
+    private final Object lock = new Object();
+    private int pendingFrom = Integer.MAX_VALUE; // First arrived line, inclusive
+    private int pendingTo = Integer.MIN_VALUE; // Last arrived line, exclusive
+    private boolean flushScheduled;
+
+    // Statistics, only touched on the FX application thread
+    private long flushes;
+    private long published;
+    private long dropped;
+    private long maxFlushNanos;
+    private long slowFlushes;
+
+    /**
+     * @param items The lines shown by the view
+     * @param view The view
+     */
+    public LineUpdateBatcher(VirtualLineList items, ListView<String> view) {
+        this.items = items;
+        this.view = view;
+        this.timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                flush();
+            }
+        };
+    }
+
+    /**
+     * Queues lines that became available for publishing on the next pulse.
+     * May be called from any thread.
+     * @param from First line, inclusive
+     * @param to Last line, exclusive
+     */
+    public void linesArrived(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        boolean schedule;
+        synchronized (lock) {
+            pendingFrom = Math.min(pendingFrom, from);
+            pendingTo = Math.max(pendingTo, to);
+            schedule = !flushScheduled;
+            flushScheduled = true;
+        }
+        if (schedule) {
+            Platform.runLater(timer::start);
+        }
+    }
+
+    /**
+     * Drops the lines not published yet, e.g. those of a file that is no longer shown
+     */
+    public void clear() {
+        synchronized (lock) {
+            pendingFrom = Integer.MAX_VALUE;
+            pendingTo = Integer.MIN_VALUE;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LineUpdateBatcher[%d flushes, %d rows published, %d rows dropped, max flush %.1f ms, %d over a frame]",
+            flushes, published, dropped, maxFlushNanos / 1e6, slowFlushes);
+    }
+
+    private void flush() {
+        int from;
+        int to;
+        synchronized (lock) {
+            from = pendingFrom;
+            to = Math.min(pendingTo, items.lineCount());
+            pendingFrom = Integer.MAX_VALUE;
+            pendingTo = Integer.MIN_VALUE;
+            // Lines arriving from now on start the timer again
+            flushScheduled = false;
+        }
+        timer.stop();
+        if (from >= to) {
+            return;
+        }
+
+        long started = System.nanoTime();
+        int firstRow = items.rowOf(from);
+        int endRow = items.rowOf(to - 1) + 1;
+        int arrivedRows = endRow - firstRow;
+        VirtualFlow<?> flow = flow();
+        IndexedCell<?> firstVisible = flow == null ? null : flow.getFirstVisibleCell();
+        IndexedCell<?> lastVisible = flow == null ? null : flow.getLastVisibleCell();
+        if (firstVisible != null && lastVisible != null) {
+            firstRow = Math.max(firstRow, firstVisible.getIndex());
+            endRow = Math.min(endRow, lastVisible.getIndex() + 1);
+        }
+        if (firstRow < endRow) {
+            items.linesArrived(items.lineAt(firstRow), items.lineAt(endRow - 1) + 1);
+            published += endRow - firstRow;
+        }
+        dropped += arrivedRows - Math.max(0, endRow - firstRow);
+        flushes++;
+
+        long elapsed = System.nanoTime() - started;
+        maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+        if (elapsed > FRAME_NANOS) {
+            slowFlushes++;
+        }
+    }
+
+    /**
+     * @return The view's scrolling container, or null before the view has a skin
+     */
+    private VirtualFlow<?> flow() {
+        Node node = view.lookup(".virtual-flow");
+        return node instanceof VirtualFlow ? (VirtualFlow<?>) node : null;
+    }
+}
@@ -0,0 +1,93 @@
+package com.xmlmafia;
+
+import java.util.Arrays;
+
+/**
+ * Finds a byte string in byte buffers with Boyer-Moore-Horspool skipping,
+ * optionally folding ASCII letters to lower case. The bytes of a match are
+ * compared from the last to the first, and on a mismatch the scan skips ahead
+ * by how far the last byte of the window is from the end of the pattern, so
+ * most bytes of the buffer are never looked at for longer queries.
+ * <p>
+ * Single-byte patterns are scanned byte by byte, where skipping gains nothing.
+ */
+public final class LiteralMatcher {
+    private final byte[] pattern; // Already folded
+    private final byte[] fold = new byte[256];
+    private final int[] skip = new int[256];
+
+    /**
+     * @param pattern The bytes to find, at least one
+     * @param foldAscii Whether ASCII letters match regardless of case
+     */
+    public LiteralMatcher(byte[] pattern, boolean foldAscii) {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("Pattern must not be empty");
+        }
+        for (int i = 0; i < 256; i++) {
+            fold[i] = (byte) (foldAscii && i >= 'A' && i <= 'Z' ? i + ('a' - 'A') : i);
+        }
+        this.pattern = new byte[pattern.length];
+        for (int i = 0; i < pattern.length; i++) {
+            this.pattern[i] = fold[pattern[i] & 0xFF];
+        }
+
+        // Distance from the last occurrence of each byte to the end of the pattern, excluding the last byte
+        Arrays.fill(skip, pattern.length);
+        for (int i = 0; i < pattern.length - 1; i++) {
+            int b = this.pattern[i] & 0xFF;
+            skip[b] = pattern.length - 1 - i;
+            if (foldAscii && b >= 'a' && b <= 'z') {
+                skip[b - ('a' - 'A')] = skip[b];
+            }
+        }
+    }
+
+    /**
+     * @return The length of a match in bytes
+     */
+    public int length() {
+        return pattern.length;
+    }
+
+    /**
+     * Finds the first match that starts at or after {@code from} and ends at or before {@code to}
+     * @param buffer The bytes to search
+     * @param from Index to start searching at
+     * @param to Index the match must end before
+     * @return The index where the match starts, or -1 if there is none
+     */
+    public int indexOf(byte[] buffer, int from, int to) {
+        byte[] pattern = this.pattern;
+        byte[] fold = this.fold;
+        int last = pattern.length - 1;
+        byte lastByte = pattern[last];
+
+        if (last == 0) {
+            for (int i = from; i < to; i++) {
+                if (fold[buffer[i] & 0xFF] == lastByte) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int[] skip = this.skip;
+        for (int end = from + last; end < to; ) {
+            byte b = buffer[end];
+            if (fold[b & 0xFF] == lastByte) {
+                int j = last - 1;
+                int i = end - 1;
+                while (j >= 0 && fold[buffer[i] & 0xFF] == pattern[j]) {
+                    i--;
+                    j--;
+                }
+                if (j < 0) {
+                    return end - last;
+                }
+            }
+            end += skip[b & 0xFF];
+        }
+        return -1;
+    }
+}
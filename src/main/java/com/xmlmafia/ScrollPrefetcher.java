@@ -0,0 +1,108 @@
+package com.xmlmafia;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sizes the range of rows loaded around the viewport from how fast and in
+ * which direction the user scrolls. Standing still, a fixed margin is loaded
+ * on both sides; while scrolling, the side the view moves towards grows by
+ * the rows it will pass in the next half second, and the range beyond that
+ * is worth paging in ahead of time.
+ * <p>
+ * Also counts how often a cell found its line already loaded, the measure
+ * of whether prefetching keeps up with scrolling.
+ */
+public class ScrollPrefetcher {
+    public static final int MIN_MARGIN = 100; // Rows loaded on each side of the viewport
+    public static final int MAX_MARGIN = 5000; // Rows loaded ahead at most, however fast the scrolling
+    private static final double LOOKAHEAD_SECONDS = 0.5; // Scrolling time covered by the rows loaded ahead
+    private static final double SMOOTHING = 0.5; // Weight of the latest scroll step in the velocity
+    private static final long IDLE_NANOS = 300_000_000; // Pause after which scrolling counts as stopped
+
+    private int lastRow;
+    private long lastNanos;
+    private double velocity; // Rows per second, negative when scrolling up
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Records a new viewport position
+     * @param row The row at the viewport
+     * @param nanos The time of the move, from {@link System#nanoTime()}
+     */
+    public synchronized void scrolled(int row, long nanos) {
+        long elapsed = nanos - lastNanos;
+        if (lastNanos == 0 || elapsed > IDLE_NANOS) {
+            velocity = 0;
+        } else if (elapsed > 0) {
+            double step = (row - lastRow) * 1e9 / elapsed;
+            velocity = SMOOTHING * step + (1 - SMOOTHING) * velocity;
+        }
+        lastRow = row;
+        lastNanos = nanos;
+    }
+
+    /**
+     * @param nanos The current time, from {@link System#nanoTime()}
+     * @return The scrolling speed in rows per second, negative when scrolling up, 0 after a pause
+     */
+    public synchronized double velocity(long nanos) {
+        return nanos - lastNanos > IDLE_NANOS ? 0 : velocity;
+    }
+
+    /**
+     * @param nanos The current time
+     * @return The rows to load before the viewport
+     */
+    public int marginBefore(long nanos) {
+        double velocity = velocity(nanos);
+        return velocity < 0 ? margin(-velocity) : MIN_MARGIN;
+    }
+
+    /**
+     * @param nanos The current time
+     * @return The rows to load after the viewport
+     */
+    public int marginAfter(long nanos) {
+        double velocity = velocity(nanos);
+        return velocity > 0 ? margin(velocity) : MIN_MARGIN;
+    }
+
+    /**
+     * Records whether a cell found its line loaded
+     * @param loaded Whether the line was in the cache
+     */
+    public void recordLookup(boolean loaded) {
+        (loaded ? hits : misses).incrementAndGet();
+    }
+
+    /**
+     * @return The fraction of line lookups by cells that found the line loaded, or 1 before any lookup
+     */
+    public double hitRate() {
+        long hit = hits.get();
+        long total = hit + misses.get();
+        return total == 0 ? 1 : (double) hit / total;
+    }
+
+    /**
+     * Starts over for another file
+     */
+    public synchronized void reset() {
+        lastRow = 0;
+        lastNanos = 0;
+        velocity = 0;
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ScrollPrefetcher[hit rate %.1f%% of %d lookups, velocity %.0f rows/s]",
+            hitRate() * 100, hits.get() + misses.get(), velocity(System.nanoTime()));
+    }
+
+    private static int margin(double speed) {
+        return (int) Math.min(MAX_MARGIN, MIN_MARGIN + speed * LOOKAHEAD_SECONDS);
+    }
+}
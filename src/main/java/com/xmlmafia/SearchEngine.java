@@ -0,0 +1,859 @@
+package com.xmlmafia;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Searches the raw bytes of a document for a literal, in fixed-size chunks
+ * scanned in parallel on a ForkJoinPool. Like {@link LineIndexer}, chunks are
+ * processed in waves and the matches of each wave are delivered in file order,
+ * so results stream in while the rest of the file is being scanned. Match
+ * offsets are mapped to line numbers through the document's line index inside
+ * the parallel tasks.
+ * <p>
+ * The query is encoded in the document's charset and found with a
+ * {@link LiteralMatcher}, without decoding the file. Case-insensitive search
+ * folds ASCII letters; in UTF-16, where a folded byte could also be half of
+ * another character, candidates are confirmed by decoding them. A
+ * case-insensitive query containing non-ASCII letters has case variants that
+ * may differ in length, so it falls back to decoding the chunk's lines and
+ * matching them with a regular expression.
+ * <p>
+ * When the document has a {@link TrigramIndex}, blocks whose filters rule out
+ * one of the query's trigrams are skipped without being read. A literal that
+ * extends the literal of a finished search is found by
+ * {@link #refine}, which only reads the positions of the previous matches.
+ * <p>
+ * Regular expressions are matched line by line on the decoded lines of each
+ * chunk; long lines are decoded and matched in pieces, so no part of a line is
+ * left out. Structural queries ({@link StructuralQuery}) are evaluated on the
+ * tags found by an {@link XmlTagScanner}. A query that does not depend on the
+ * enclosing elements is scanned in parallel: each chunk starts at its first
+ * '&lt;' on the assumption that it is outside markup, and is scanned again by
+ * continuing the previous chunk's scanner when that scanner ended inside a
+ * comment, CDATA section or tag. Path queries are scanned by one scanner in
+ * file order.
+ */
+public class SearchEngine {
+    private static final Logger logger = LoggerFactory.getLogger(SearchEngine.class);
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024; // 4MB chunks
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    private static final int CANDIDATE_WINDOW_SIZE = 4 * 1024; // Bytes read around each refined candidate
+    private static final int MIN_CANDIDATE_SPACING = 64; // Denser candidates are found faster by scanning
+    private static final int LINE_PIECE_SIZE = XmlDocument.MAX_LINE_LENGTH; // Bytes of a line matched by the pattern at once
+    private static final int PIECE_CONTEXT = 64 * 1024; // Bytes around a piece of a line that a match may look at or extend into
+
+    /**
+     * How the text of a search is interpreted
+     */
+    public enum Mode {
+        LITERAL, // The text itself
+        REGEX, // A java.util.regex pattern, matched within lines
+        XPATH // Elements selected by a StructuralQuery
+    }
+
+    /**
+     * Receives the matches of one wave of chunks. Calls are made in file order
+     * from the thread that called {@link #search}.
+     */
+    public interface MatchSink {
+        /**
+         * @param offsets File offsets of the matches, ascending
+         * @param lengths Lengths of the matches in bytes
+         * @param lines Line numbers of the matches
+         * @param count Number of valid entries in the arrays
+         */
+        void accept(long[] offsets, int[] lengths, long[] lines, int count);
+    }
+
+    /**
+     * Notified after each wave has been passed to the sink
+     */
+    public interface ProgressListener {
+        /**
+         * @param scannedBytes Length of the file prefix searched so far
+         * @param totalBytes Length of the part of the file being searched
+         * @param matches Number of matches found so far
+         */
+        void onProgress(long scannedBytes, long totalBytes, long matches);
+    }
+
+    /**
+     * Stops a running search. It is checked before each chunk and after each
+     * wave, so a search is stopped without interrupting the threads reading
+     * the file.
+     */
+    public static final class Cancellation {
+        private volatile boolean cancelled;
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    public SearchEngine() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public SearchEngine(ForkJoinPool pool, int chunkSize) {
+        if (chunkSize < SCAN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be at least " + SCAN_BUFFER_SIZE);
+        }
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Finds all occurrences of a literal in the indexed part of a document.
+     * Stops early, without an exception, when the calling thread is interrupted.
+     * @param document The document to search
+     * @param text The literal to find
+     * @param caseSensitive Whether letters must match in case
+     * @param sink Receives the matches wave by wave, in file order
+     * @param progress Notified after each wave, may be null
+     * @return The number of matches found
+     */
+    public long search(XmlDocument document, String text, boolean caseSensitive, MatchSink sink, ProgressListener progress) {
+        return search(document, text, Mode.LITERAL, caseSensitive, sink, progress);
+    }
+
+    /**
+     * Finds all matches of a query in the indexed part of a document.
+     * Stops early, without an exception, when the calling thread is interrupted.
+     * @param document The document to search
+     * @param text The query
+     * @param mode How the query is interpreted
+     * @param caseSensitive Whether letters must match in case
+     * @param sink Receives the matches wave by wave, in file order
+     * @param progress Notified after each wave, may be null
+     * @return The number of matches found
+     * @throws IllegalArgumentException If the query is not valid in its mode
+     */
+    public long search(XmlDocument document, String text, Mode mode, boolean caseSensitive, MatchSink sink, ProgressListener progress) {
+        return search(document, text, mode, caseSensitive, new Cancellation(), sink, progress);
+    }
+
+    /**
+     * Finds all matches of a query in the indexed part of a document.
+     * Stops early, without an exception, when cancelled or when the calling
+     * thread is interrupted.
+     * @param document The document to search
+     * @param text The query
+     * @param mode How the query is interpreted
+     * @param caseSensitive Whether letters must match in case
+     * @param cancellation Stops the search when cancelled
+     * @param sink Receives the matches wave by wave, in file order
+     * @param progress Notified after each wave, may be null
+     * @return The number of matches found
+     * @throws IllegalArgumentException If the query is not valid in its mode
+     */
+    public long search(XmlDocument document, String text, Mode mode, boolean caseSensitive, Cancellation cancellation,
+                       MatchSink sink, ProgressListener progress) {
+        long startNanos = System.nanoTime();
+        LineDecoder decoder = document.decoder();
+        byte[] pattern = text.getBytes(decoder.charset());
+        if (pattern.length == 0) {
+            return 0;
+        }
+        if (mode == Mode.XPATH && !decoder.isSelfSynchronizing()) {
+            logger.warn("Structural search is not supported in " + decoder.charset());
+            return 0;
+        }
+        return run(new Query(document, text, mode, pattern, caseSensitive, null, 0, cancellation), sink, progress, startNanos);
+    }
+
+    /**
+     * Checks whether the matches of a literal search can be narrowed down to
+     * the matches of a longer literal with {@link #refine}
+     * @param previousText The literal searched before
+     * @param text The new literal
+     * @param caseSensitive Whether both searches match letters in case
+     * @return Whether every match of the new literal contains a match of the previous one at a fixed byte offset
+     */
+    public static boolean canRefine(String previousText, String text, boolean caseSensitive) {
+        // Non-ASCII case variants may differ in length, which breaks the fixed offset
+        return !previousText.isEmpty() && text.contains(previousText) && (caseSensitive || Query.isAscii(text));
+    }
+
+    /**
+     * Finds all occurrences of a literal that extends a literal searched
+     * before, checking only the positions of the previous matches instead of
+     * scanning the file. When the previous matches are so dense that checking
+     * them costs more than a scan, the file is scanned instead. Stops early,
+     * without an exception, when the calling thread is interrupted.
+     * @param document The document both searches ran on
+     * @param previousText The literal searched before
+     * @param previous All matches of the previous literal in the indexed part of the document
+     * @param text The new literal, see {@link #canRefine}
+     * @param caseSensitive Whether letters must match in case, as in the previous search
+     * @param sink Receives the matches wave by wave, in file order
+     * @param progress Notified after each wave, may be null
+     * @return The number of matches found
+     */
+    public long refine(XmlDocument document, String previousText, SearchResultStore previous, String text, boolean caseSensitive,
+                       MatchSink sink, ProgressListener progress) {
+        return refine(document, previousText, previous, text, caseSensitive, new Cancellation(), sink, progress);
+    }
+
+    /**
+     * Like {@link #refine(XmlDocument, String, SearchResultStore, String, boolean, MatchSink, ProgressListener)},
+     * also stopping early when cancelled
+     * @param cancellation Stops the search when cancelled
+     */
+    public long refine(XmlDocument document, String previousText, SearchResultStore previous, String text, boolean caseSensitive,
+                       Cancellation cancellation, MatchSink sink, ProgressListener progress) {
+        long startNanos = System.nanoTime();
+        if (!canRefine(previousText, text, caseSensitive)) {
+            throw new IllegalArgumentException("\"" + text + "\" does not refine \"" + previousText + "\"");
+        }
+        // Dense candidates are found faster by scanning, and candidates cannot be confirmed byte by byte in every encoding
+        if (previous.size() > document.indexedBytes() / MIN_CANDIDATE_SPACING || !document.decoder().isSelfSynchronizing()) {
+            return search(document, text, Mode.LITERAL, caseSensitive, cancellation, sink, progress);
+        }
+        Charset charset = document.decoder().charset();
+        // Each new match holds a previous match this many bytes after its start
+        long shift = text.substring(0, text.indexOf(previousText)).getBytes(charset).length;
+        Query query = new Query(document, text, Mode.LITERAL, text.getBytes(charset), caseSensitive, previous, shift, cancellation);
+        return run(query, sink, progress, startNanos);
+    }
+
+    /**
+     * Searches the indexed part of the document in waves of chunks
+     */
+    private long run(Query query, MatchSink sink, ProgressListener progress, long startNanos) {
+        XmlDocument document = query.document;
+        long limit = document.indexedBytes();
+        long chunkCount = (limit + chunkSize - 1) / chunkSize;
+        int waveSize = Math.max(1, pool.getParallelism() * 2);
+        long matches = 0;
+        long scannedBytes = 0;
+        long skippedBytes = 0;
+        StructureScan structureScan = null;
+
+        for (long firstChunk = 0; firstChunk < chunkCount; ) {
+            // Search the first chunk on its own so the first matches show up quickly
+            int chunksInWave = (int) Math.min(firstChunk == 0 ? 1 : waveSize, chunkCount - firstChunk);
+            Chunk[] wave = new Chunk[chunksInWave];
+            for (int i = 0; i < chunksInWave; i++) {
+                long start = (firstChunk + i) * chunkSize;
+                wave[i] = new Chunk(start, (int) Math.min(chunkSize, limit - start));
+            }
+
+            pool.invoke(new SearchTask(query, limit, wave, 0, chunksInWave));
+            if (query.structure != null) {
+                structureScan = resolveStructureScans(query, wave, structureScan);
+            }
+
+            for (Chunk chunk : wave) {
+                if (chunk.count > 0) {
+                    sink.accept(chunk.offsets, chunk.lengths, chunk.lines, chunk.count);
+                }
+                matches += chunk.count;
+                scannedBytes += chunk.length;
+                skippedBytes += chunk.skippedBytes;
+            }
+            firstChunk += chunksInWave;
+
+            if (progress != null) {
+                progress.onProgress(scannedBytes, limit, matches);
+            }
+
+            if (query.cancellation.isCancelled() || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+
+        long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+        logger.info(String.format("Found %d matches%s in %.1f MB in %d ms (%.2f GB/s, parallelism %d, %.1f MB skipped by trigram index)",
+            matches, query.candidates != null ? " among " + query.candidates.size() + " candidates" : "", scannedBytes / (1024.0 * 1024.0), elapsedNanos / 1_000_000,
+            scannedBytes / (elapsedNanos / 1e9) / (1024.0 * 1024.0 * 1024.0), pool.getParallelism(),
+            skippedBytes / (1024.0 * 1024.0)));
+        return matches;
+    }
+
+    /**
+     * Checks a query without searching
+     * @param text The query
+     * @param mode How the query is interpreted
+     * @throws IllegalArgumentException If the query is not valid in its mode
+     */
+    public static void validate(String text, Mode mode) {
+        if (mode == Mode.REGEX) {
+            Pattern.compile(text);
+        } else if (mode == Mode.XPATH) {
+            StructuralQuery.parse(text);
+        }
+    }
+
+    /**
+     * The query and how to find it
+     */
+    private static final class Query {
+        final XmlDocument document;
+        final String text;
+        final boolean caseSensitive;
+        final LiteralMatcher matcher; // Null when lines are matched by the pattern or tags by the structure instead
+        final TrigramIndex trigrams;
+        final int[] trigramBits; // Null when the trigram index cannot narrow the search
+        final Pattern pattern;
+        final StructuralQuery structure;
+        final LiteralMatcher[] anchors; // Encoded case variants of one character of the query, or null
+        final int anchorLength; // Longest anchor in bytes
+        final int anchorReach; // Bytes a match can extend past its anchor
+        final boolean confirmByDecoding;
+        final SearchResultStore candidates; // Matches of a previous search that new matches contain, or null
+        final long candidateShift; // Bytes from the start of a new match to its candidate
+        final Cancellation cancellation;
+
+        Query(XmlDocument document, String text, Mode mode, byte[] encoded, boolean caseSensitive,
+              SearchResultStore candidates, long candidateShift, Cancellation cancellation) {
+            this.document = document;
+            this.cancellation = cancellation;
+            this.candidates = candidates;
+            this.candidateShift = candidateShift;
+            this.text = text;
+            this.caseSensitive = caseSensitive;
+            Charset charset = document.decoder().charset();
+            this.structure = mode == Mode.XPATH ? StructuralQuery.parse(text) : null;
+            if (mode != Mode.LITERAL) {
+                this.matcher = null;
+                this.pattern = mode == Mode.REGEX
+                    ? Pattern.compile(text, caseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE)
+                    : null;
+                this.anchors = null;
+                this.anchorLength = 1;
+                this.anchorReach = 0;
+            } else if ((caseSensitive || isAscii(text)) && document.decoder().isSelfSynchronizing()) {
+                this.matcher = new LiteralMatcher(encoded, !caseSensitive);
+                this.pattern = null;
+                this.anchors = null;
+                this.anchorLength = 1;
+                this.anchorReach = 0;
+            } else {
+                this.matcher = null;
+                // Bytes found in an encoding that is not self-synchronizing may be the tail of another character
+                this.pattern = Pattern.compile(Pattern.quote(text), caseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+                String variants = anchorVariants(text);
+                if (variants == null) {
+                    this.anchors = null;
+                    this.anchorLength = 1;
+                } else {
+                    this.anchors = new LiteralMatcher[variants.length()];
+                    int longest = 1;
+                    for (int i = 0; i < variants.length(); i++) {
+                        anchors[i] = new LiteralMatcher(variants.substring(i, i + 1).getBytes(charset), false);
+                        longest = Math.max(longest, anchors[i].length());
+                    }
+                    this.anchorLength = longest;
+                }
+                // Generous: no character or case variant takes more than 4 bytes
+                this.anchorReach = text.length() * 4;
+            }
+            this.trigrams = document.trigramIndex();
+            this.trigramBits = matcher != null && candidates == null && trigrams != null && encoded.length <= TrigramIndex.BLOCK_SIZE
+                ? TrigramIndex.queryBits(encoded) : null;
+            this.confirmByDecoding = !caseSensitive && !document.decoder().isAsciiCompatible();
+        }
+
+        /**
+         * Checks a match of the folded bytes
+         */
+        boolean confirm(byte[] buffer, int offset, long fileOffset) {
+            if (!document.decoder().isUnitStart(fileOffset)) {
+                return false;
+            }
+            if (!confirmByDecoding) {
+                return true;
+            }
+            String candidate = document.decoder().decode(buffer, offset, matcher.length());
+            return candidate.equalsIgnoreCase(text);
+        }
+
+        /**
+         * Picks a character of the text as anchor. Non-ASCII characters are
+         * rarer in markup, and characters without case need only one matcher.
+         * @return The case variants of the anchor, or null if the text has only surrogates
+         */
+        private static String anchorVariants(String text) {
+            int anchor = -1;
+            for (int i = 0; i < text.length(); i++) {
+                if (!Character.isSurrogate(text.charAt(i)) && (anchor < 0 || anchorRank(text.charAt(i)) < anchorRank(text.charAt(anchor)))) {
+                    anchor = i;
+                }
+            }
+            if (anchor < 0) {
+                return null;
+            }
+
+            char[] foldTable = CaseFolding.TABLE;
+            char folded = foldTable[text.charAt(anchor)];
+            StringBuilder variants = new StringBuilder();
+            for (int x = 0; x < foldTable.length; x++) {
+                if (foldTable[x] == folded && !Character.isSurrogate((char) x)) {
+                    variants.append((char) x);
+                }
+            }
+            return variants.toString();
+        }
+
+        /**
+         * @return 0 for the best anchors, up to 3 for the worst
+         */
+        private static int anchorRank(char c) {
+            boolean caseless = Character.toUpperCase(c) == c && Character.toLowerCase(c) == c;
+            if (c >= 0x80) {
+                return caseless ? 0 : 1;
+            }
+            return caseless && !Character.isWhitespace(c) ? 2 : 3;
+        }
+
+        static boolean isAscii(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) >= 0x80) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Case folding of every char, built on first use of the fallback
+     */
+    private static final class CaseFolding {
+        // The same equivalence Pattern.UNICODE_CASE uses for single characters
+        static final char[] TABLE = new char[Character.MAX_VALUE + 1];
+
+        static {
+            for (int x = 0; x <= Character.MAX_VALUE; x++) {
+                TABLE[x] = Character.toLowerCase(Character.toUpperCase((char) x));
+            }
+        }
+    }
+
+    /**
+     * A file range and the matches that start in it
+     */
+    private static final class Chunk {
+        final long start;
+        final int length;
+        long[] offsets = new long[16];
+        int[] lengths = new int[16];
+        long[] lines = new long[16];
+        int count;
+        long skippedBytes; // Ruled out by the trigram index
+        byte[] lineBytes = new byte[0]; // The line being matched by the pattern
+        long scanStart; // Range of a structure scan, from the first '<' in the chunk to the first after it
+        long scanEnd;
+        StructureScan scan; // The scanner that ended at scanEnd
+
+        Chunk(long start, int length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        void add(long offset, int length, long line) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                lines = Arrays.copyOf(lines, count * 2);
+            }
+            offsets[count] = offset;
+            lengths[count] = length;
+            lines[count] = line;
+            count++;
+        }
+    }
+
+    /**
+     * Splits a range of chunks in halves until a single chunk is left to search
+     */
+    private static final class SearchTask extends RecursiveAction {
+        private final Query query;
+        private final long limit;
+        private final Chunk[] chunks;
+        private final int from;
+        private final int to;
+
+        SearchTask(Query query, long limit, Chunk[] chunks, int from, int to) {
+            this.query = query;
+            this.limit = limit;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                searchChunk(query, limit, chunks[from]);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SearchTask(query, limit, chunks, from, mid), new SearchTask(query, limit, chunks, mid, to));
+        }
+    }
+
+    /**
+     * Finds the matches starting in a chunk, skipping the blocks the trigram
+     * index rules out
+     */
+    private static void searchChunk(Query query, long limit, Chunk chunk) {
+        if (query.cancellation.isCancelled()) {
+            return;
+        }
+        if (query.structure != null) {
+            searchChunkStructure(query, limit, chunk);
+            return;
+        }
+        if (query.candidates != null) {
+            searchCandidates(query, limit, chunk);
+            return;
+        }
+        if (query.matcher == null) {
+            searchChunkLines(query, limit, chunk);
+            return;
+        }
+        long chunkEnd = chunk.start + chunk.length;
+        if (query.trigramBits == null) {
+            searchRange(query, limit, chunk, chunk.start, chunkEnd);
+            return;
+        }
+
+        // Scan only the trigram index blocks that may hold a match
+        long rangeStart = -1;
+        for (long blockStart = chunk.start; blockStart < chunkEnd; ) {
+            long block = blockStart >>> TrigramIndex.BLOCK_SHIFT;
+            long blockEnd = Math.min(chunkEnd, (block + 1) << TrigramIndex.BLOCK_SHIFT);
+            if (query.trigrams.mayStartIn(block, query.trigramBits)) {
+                rangeStart = rangeStart < 0 ? blockStart : rangeStart;
+            } else {
+                chunk.skippedBytes += blockEnd - blockStart;
+                if (rangeStart >= 0) {
+                    searchRange(query, limit, chunk, rangeStart, blockStart);
+                    rangeStart = -1;
+                }
+            }
+            blockStart = blockEnd;
+        }
+        if (rangeStart >= 0) {
+            searchRange(query, limit, chunk, rangeStart, chunkEnd);
+        }
+    }
+
+    /**
+     * Finds the matches starting in part of a chunk. Each read overlaps the next
+     * one by the pattern length so matches across buffer boundaries are found.
+     */
+    private static void searchRange(Query query, long limit, Chunk chunk, long from, long to) {
+        FileBackend backend = query.document.backend();
+        LiteralMatcher matcher = query.matcher;
+        int length = matcher.length();
+        byte[] buffer = new byte[SCAN_BUFFER_SIZE + length - 1];
+        long line = query.document.lineOf(from, chunk.count > 0 ? chunk.lines[chunk.count - 1] : 0);
+
+        for (long position = from; position < to; position += SCAN_BUFFER_SIZE) {
+            int bytesRead = backend.read(position, buffer, 0, (int) Math.min(buffer.length, limit - position));
+            if (bytesRead <= 0) {
+                break;
+            }
+            // Matches must start in this step but may end in the overlap
+            int end = (int) Math.min(Math.min(SCAN_BUFFER_SIZE, to - position) + length - 1, bytesRead);
+            for (int i = matcher.indexOf(buffer, 0, end); i >= 0; i = matcher.indexOf(buffer, i + 1, end)) {
+                if (query.confirm(buffer, i, position + i)) {
+                    line = query.document.lineOf(position + i, line);
+                    chunk.add(position + i, length, line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the positions in a chunk where a match would contain one of the
+     * candidates. Bytes are read in windows starting at a candidate, so nearby
+     * candidates share a read and the file between distant ones is skipped.
+     */
+    private static void searchCandidates(Query query, long limit, Chunk chunk) {
+        FileBackend backend = query.document.backend();
+        SearchResultStore candidates = query.candidates;
+        LiteralMatcher matcher = query.matcher;
+        int length = matcher.length();
+        byte[] buffer = new byte[Math.max(CANDIDATE_WINDOW_SIZE, length)];
+        long windowStart = 0;
+        int windowLength = 0;
+        long chunkEnd = chunk.start + chunk.length;
+        long count = candidates.size();
+        long line = 0;
+
+        for (long i = candidates.indexAtOrAfter(chunk.start + query.candidateShift); i < count; i++) {
+            long position = candidates.offset(i) - query.candidateShift;
+            if (position >= chunkEnd || position + length > limit) {
+                break;
+            }
+            if (position + length > windowStart + windowLength) {
+                windowStart = position;
+                windowLength = Math.max(0, backend.read(position, buffer, 0, (int) Math.min(buffer.length, limit - position)));
+                if (windowLength < length) {
+                    break;
+                }
+            }
+            int offset = (int) (position - windowStart);
+            if (matcher.indexOf(buffer, offset, offset + length) == offset && query.confirm(buffer, offset, position)) {
+                line = query.document.lineOf(position, line);
+                chunk.add(position, length, line);
+            }
+        }
+    }
+
+    /**
+     * Decodes the lines of a chunk and matches them with the pattern, for
+     * regular expressions and as the fallback for queries whose case variants
+     * cannot be matched byte by byte. When the query has an anchor character,
+     * only lines containing one of its case variants are decoded.
+     */
+    private static void searchChunkLines(Query query, long limit, Chunk chunk) {
+        XmlDocument document = query.document;
+        long chunkEnd = chunk.start + chunk.length;
+        long firstLine = document.lineOf(chunk.start, 0);
+
+        if (query.anchors == null) {
+            long lastLine = document.lineOf(chunkEnd - 1, firstLine);
+            for (long line = firstLine; line <= lastLine; line++) {
+                if (!searchLine(query, chunk, line)) {
+                    break;
+                }
+            }
+            return;
+        }
+
+        long[] lines = findAnchorLines(query, limit, chunk, firstLine);
+        for (long line : lines) {
+            if (!searchLine(query, chunk, line)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Finds the lines containing a case variant of the query's anchor character
+     * near enough to the chunk for a match starting in the chunk
+     * @return The line numbers, ascending and without duplicates
+     */
+    private static long[] findAnchorLines(Query query, long limit, Chunk chunk, long firstLine) {
+        FileBackend backend = query.document.backend();
+        long scanEnd = Math.min(chunk.start + chunk.length + query.anchorReach, limit);
+        byte[] buffer = new byte[SCAN_BUFFER_SIZE + query.anchorLength - 1];
+        long[] lines = new long[16];
+        int count = 0;
+
+        for (long position = chunk.start; position < scanEnd; position += SCAN_BUFFER_SIZE) {
+            int bytesRead = backend.read(position, buffer, 0, (int) Math.min(buffer.length, limit - position));
+            if (bytesRead <= 0) {
+                break;
+            }
+            int end = (int) Math.min(SCAN_BUFFER_SIZE, scanEnd - position);
+            for (LiteralMatcher anchor : query.anchors) {
+                long line = firstLine;
+                int to = Math.min(end + anchor.length() - 1, bytesRead);
+                for (int i = anchor.indexOf(buffer, 0, to); i >= 0; i = anchor.indexOf(buffer, i + 1, to)) {
+                    if (!query.document.decoder().isUnitStart(position + i)) {
+                        continue;
+                    }
+                    line = query.document.lineOf(position + i, line);
+                    if (count == lines.length) {
+                        lines = Arrays.copyOf(lines, count * 2);
+                    }
+                    lines[count++] = line;
+                }
+            }
+        }
+
+        Arrays.sort(lines, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || lines[i] != lines[unique - 1]) {
+                lines[unique++] = lines[i];
+            }
+        }
+        return Arrays.copyOf(lines, unique);
+    }
+
+    /**
+     * Matches one line, keeping the non-empty matches that start in the chunk.
+     * The line is decoded in pieces of at most LINE_PIECE_SIZE bytes, each
+     * matched with up to PIECE_CONTEXT bytes of text on either side, so a
+     * match can look back and extend that far past its piece. A long line
+     * spanning many chunks is matched near each chunk only. Match positions
+     * are mapped back to offsets by decoding, so malformed bytes that decode
+     * to a replacement character do not shift them.
+     * @return Whether the line could be read
+     */
+    private static boolean searchLine(Query query, Chunk chunk, long line) {
+        XmlDocument document = query.document;
+        if (line >= document.indexedLines()) {
+            return false;
+        }
+        LineDecoder decoder = document.decoder();
+        FileBackend backend = document.backend();
+        long lineStart = decoder.contentStart(document.lineStart(line));
+        long lineEnd = document.lineEnd(line);
+        long chunkEnd = chunk.start + chunk.length;
+
+        // Start shortly before the chunk; matches before it belong to the previous chunk
+        long position = lineStart;
+        if (chunk.start - PIECE_CONTEXT > lineStart && decoder.isSelfSynchronizing()) {
+            position = decoder.characterStart(backend, chunk.start - PIECE_CONTEXT);
+        }
+        int[] consumed = new int[1];
+        String before = ""; // Text preceding the piece, for look-behind
+        long matchedUpTo = 0; // End of the last match, which the next must not overlap
+
+        while (position < lineEnd && position < chunkEnd) {
+            // The piece ends at the chunk's end at the latest; matches after it belong to the next chunk
+            long pieceEnd = Math.min(position + LINE_PIECE_SIZE, chunkEnd);
+            int readLength = (int) (Math.min(lineEnd, pieceEnd + PIECE_CONTEXT) - position);
+            if (chunk.lineBytes.length < readLength) {
+                chunk.lineBytes = new byte[readLength];
+            }
+            byte[] buffer = chunk.lineBytes;
+            int length = backend.read(position, buffer, 0, readLength);
+            if (length <= 0) {
+                return false;
+            }
+            boolean endOfLine = position + length == lineEnd;
+            int pieceLength = (int) Math.min(length, pieceEnd - position);
+            String piece = decoder.decodePiece(buffer, 0, pieceLength, endOfLine && pieceLength == length, consumed);
+            int pieceBytes = consumed[0];
+            String after = pieceBytes < length ? decoder.decodePiece(buffer, pieceBytes, length - pieceBytes, endOfLine, consumed) : "";
+            String text = before + piece + after;
+
+            // Only the start of the text may be the start of the line, and only its end the end;
+            // a scan that starts inside the line never matches at the start of its text
+            int regionStart = position > lineStart && before.isEmpty() ? Math.min(1, text.length()) : before.length();
+            Matcher matcher = query.pattern.matcher(text)
+                .region(regionStart, text.length())
+                .useAnchoringBounds(false)
+                .useTransparentBounds(true);
+            int charPosition = before.length();
+            int bytePosition = 0;
+            while (matcher.find()) {
+                if (matcher.start() >= before.length() + piece.length()) {
+                    break;
+                }
+                if (matcher.end() == matcher.start() || (!endOfLine && matcher.requireEnd())) {
+                    continue;
+                }
+                bytePosition += decoder.byteLength(buffer, bytePosition, length - bytePosition, matcher.start() - charPosition);
+                charPosition = matcher.start();
+                long offset = position + bytePosition;
+                if (offset >= chunkEnd) {
+                    return true;
+                }
+                int matchLength = decoder.byteLength(buffer, bytePosition, length - bytePosition, matcher.end() - matcher.start());
+                if (offset >= chunk.start && offset >= matchedUpTo) {
+                    chunk.add(offset, Math.min(matchLength, SearchResultStore.MAX_LENGTH), line);
+                }
+                matchedUpTo = Math.max(matchedUpTo, offset + matchLength);
+            }
+            if (pieceBytes == 0) {
+                break;
+            }
+            position += pieceBytes;
+            String seen = before + piece;
+            before = seen.substring(Math.max(0, seen.length() - PIECE_CONTEXT));
+        }
+        return true;
+    }
+
+    /**
+     * A structure scan in progress, adding the matches it finds to a chunk
+     */
+    private static final class StructureScan implements StructuralQuery.MatchListener {
+        final XmlDocument document;
+        final XmlTagScanner scanner;
+        final byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+        Chunk target;
+        long line; // Line of the last match, a hint for the next
+
+        StructureScan(Query query, Chunk target) {
+            Charset charset = query.document.decoder().charset();
+            this.document = query.document;
+            this.scanner = new XmlTagScanner(charset, query.structure.evaluator(charset, query.caseSensitive, this));
+            this.target = target;
+        }
+
+        @Override
+        public void onMatch(long offset, long length) {
+            line = document.lineOf(offset, line);
+            target.add(offset, (int) Math.min(length, SearchResultStore.MAX_LENGTH), line);
+        }
+
+        /**
+         * Feeds a range of the file to the scanner
+         */
+        void scan(long from, long to) {
+            FileBackend backend = document.backend();
+            for (long position = from; position < to; ) {
+                int bytesRead = backend.read(position, buffer, 0, (int) Math.min(buffer.length, to - position));
+                if (bytesRead <= 0) {
+                    break;
+                }
+                scanner.scan(buffer, 0, bytesRead, position);
+                position += bytesRead;
+            }
+        }
+    }
+
+    /**
+     * Finds the range a chunk's structure scan covers and, for queries that do
+     * not depend on enclosing elements, scans it on the assumption that it
+     * starts outside markup
+     */
+    private static void searchChunkStructure(Query query, long limit, Chunk chunk) {
+        chunk.scanStart = chunk.start == 0 ? 0 : query.document.findTagOpening(chunk.start, limit);
+        chunk.scanEnd = query.document.findTagOpening(chunk.start + chunk.length, limit);
+        if (query.structure.isContextFree()) {
+            chunk.scan = new StructureScan(query, chunk);
+            chunk.scan.scan(chunk.scanStart, chunk.scanEnd);
+        }
+    }
+
+    /**
+     * Makes the structure scans of a wave exact, in file order. A chunk's own
+     * scan is kept when the chunk starts the file or the previous scan ended
+     * outside markup; otherwise the chunk's matches are dropped and the
+     * previous scan continues over the chunk.
+     * @param previous The scan that ended where the wave starts, or null for the first wave
+     * @return The scan that ended where the wave ends
+     */
+    private static StructureScan resolveStructureScans(Query query, Chunk[] wave, StructureScan previous) {
+        for (Chunk chunk : wave) {
+            if (query.cancellation.isCancelled()) {
+                break;
+            }
+            boolean exact = chunk.scan != null && (chunk.start == 0 || previous.scanner.isInText());
+            if (!exact) {
+                StructureScan scan = previous != null ? previous : new StructureScan(query, chunk);
+                chunk.count = 0;
+                scan.target = chunk;
+                scan.scan(chunk.scanStart, chunk.scanEnd);
+                chunk.scan = scan;
+            }
+            previous = chunk.scan;
+        }
+        return previous;
+    }
+}
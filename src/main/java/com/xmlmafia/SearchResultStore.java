@@ -0,0 +1,113 @@
+package com.xmlmafia;
+
+import java.util.Arrays;
+
+/**
+ * Append-only list of search matches, packed into primitive longs.
+ * <p>
+ * Each match is stored as one long holding its file offset and its length in
+ * bytes, 8 bytes per match with no per-match objects. Longs are kept in
+ * fixed-size segments, so growing never copies the matches found so far.
+ * Matches are appended in file order, which keeps the list sorted without
+ * re-sorting and allows binary search by offset.
+ * <p>
+ * The store is written by a single thread and may be read concurrently by any
+ * number of threads while it grows.
+ */
+public class SearchResultStore {
+    private static final int SEGMENT_SHIFT = 13;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT; // 64KB of matches per segment
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final int LENGTH_BITS = 24;
+    private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+    public static final long MAX_OFFSET = (1L << (63 - LENGTH_BITS)) - 1; // 512GB
+    public static final int MAX_LENGTH = (int) LENGTH_MASK;
+
+    private long[][] segments = new long[16][];
+    private volatile long size;
+
+    /**
+     * @return The number of matches stored so far
+     */
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Appends a match. Offsets must be ascending.
+     * @param offset File offset of the first byte of the match
+     * @param length Length of the match in bytes
+     */
+    public void add(long offset, int length) {
+        if (offset < 0 || offset > MAX_OFFSET || length < 0 || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Match out of range: offset " + offset + ", length " + length);
+        }
+        long index = size;
+        int segment = (int) (index >>> SEGMENT_SHIFT);
+        int slot = (int) (index & SEGMENT_MASK);
+        if (slot == 0) {
+            if (segment == segments.length) {
+                segments = Arrays.copyOf(segments, segment * 2);
+            }
+            segments[segment] = new long[SEGMENT_SIZE];
+        }
+        segments[segment][slot] = offset << LENGTH_BITS | length;
+        // Publishes the slot and any grown segment table to readers
+        size = index + 1;
+    }
+
+    /**
+     * @param index Match number, 0 <= index < size()
+     * @return The file offset of the match
+     */
+    public long offset(long index) {
+        return packed(index) >>> LENGTH_BITS;
+    }
+
+    /**
+     * @param index Match number, 0 <= index < size()
+     * @return The length of the match in bytes
+     */
+    public int length(long index) {
+        return (int) (packed(index) & LENGTH_MASK);
+    }
+
+    /**
+     * Finds the first match at or after a file offset
+     * @param offset A file offset
+     * @return The match number, or size() if every match starts before the offset
+     */
+    public long indexAtOrAfter(long offset) {
+        long low = 0;
+        long high = size;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (offset(mid) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The number of bytes used by the stored matches
+     */
+    public long memoryBytes() {
+        long segmentCount = (size + SEGMENT_MASK) >>> SEGMENT_SHIFT;
+        return segmentCount * SEGMENT_SIZE * Long.BYTES;
+    }
+
+    private long packed(long index) {
+        long count = size;
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Match " + index + " outside store of size " + count);
+        }
+        return segments[(int) (index >>> SEGMENT_SHIFT)][(int) (index & SEGMENT_MASK)];
+    }
+}
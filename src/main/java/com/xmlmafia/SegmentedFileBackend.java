@@ -0,0 +1,359 @@
+package com.xmlmafia;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * File backend that maps the file as a sequence of fixed-size windows instead
+ * of one mapping for the whole file. Windows are mapped lazily on first access
+ * and unmapped again once more than {@code maxResidentWindows} are mapped, so
+ * the mapped footprint stays bounded no matter how large the file is.
+ * <p>
+ * Reads are absolute and never touch a shared buffer's position, and reading
+ * from a mapped window takes no lock: a window is found in an array and
+ * pinned with a compare-and-set on its reader count, so any number of threads
+ * read concurrently. Only mapping a window and evicting one to make room,
+ * chosen by a clock sweep over the windows read recently, are serialised.
+ * <p>
+ * Mapping is immune to interrupts: an interrupted thread closes a file
+ * channel it maps from, so the channel is reopened and the mapping retried,
+ * and the thread's interrupt is restored afterwards.
+ */
+public class SegmentedFileBackend implements FileBackend {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentedFileBackend.class);
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024; // 64MB windows
+    public static final int DEFAULT_MAX_RESIDENT_WINDOWS = 16;
+    private static final int PAGE_SIZE = 4096; // Stride of the reads that fault pages in ahead of time
+
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            logger.debug("Explicit unmapping unavailable, windows are released on GC", e);
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    private final File source;
+    private RandomAccessFile file; // Reopened, with the channel, after an interrupt closed it; guarded by lock
+    private FileChannel channel;
+    private final long size;
+    private final int windowShift;
+    private final long windowMask;
+    private final int maxResidentWindows;
+    private final Object lock = new Object(); // Serialises mapping and eviction
+    private final AtomicReferenceArray<Window> windows; // Mapped windows by window number
+    private final Window[] residentWindows; // Clock of the mapped windows
+    private int clockHand;
+    private volatile boolean closed;
+
+    /**
+     * A mapped window and the number of reads currently using it. A window
+     * evicted while pinned is unmapped by the last reader to release it; once
+     * unmapped it cannot be pinned again.
+     */
+    private static final class Window {
+        static final int UNMAPPED = -1;
+
+        final int index;
+        final MappedByteBuffer buffer;
+        final AtomicInteger pins = new AtomicInteger();
+        volatile boolean evicted;
+        boolean referenced = true; // Read since the clock hand last passed; races only blur the eviction order
+
+        Window(int index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+
+        boolean tryPin() {
+            while (true) {
+                int count = pins.get();
+                if (count == UNMAPPED) {
+                    return false;
+                }
+                if (pins.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void unpin() {
+            if (pins.decrementAndGet() == 0 && evicted) {
+                unmapIfUnpinned();
+            }
+        }
+
+        void unmapIfUnpinned() {
+            if (pins.compareAndSet(0, UNMAPPED)) {
+                unmap(buffer);
+            }
+        }
+    }
+
+    public SegmentedFileBackend(File file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_RESIDENT_WINDOWS);
+    }
+
+    /**
+     * @param file The file to open read-only
+     * @param windowSize Size of each mapped window, must be a power of two
+     * @param maxResidentWindows Maximum number of windows mapped at the same time
+     */
+    public SegmentedFileBackend(File file, int windowSize, int maxResidentWindows) throws IOException {
+        if (windowSize <= 0 || Integer.bitCount(windowSize) != 1) {
+            throw new IllegalArgumentException("Window size must be a power of two: " + windowSize);
+        }
+        if (maxResidentWindows < 1) {
+            throw new IllegalArgumentException("At least one resident window is required");
+        }
+        this.source = file;
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.size = channel.size();
+        this.windowShift = Integer.numberOfTrailingZeros(windowSize);
+        this.windowMask = windowSize - 1;
+        this.maxResidentWindows = maxResidentWindows;
+        long windowCount = Math.max(1, (size + windowMask) >>> windowShift);
+        if (windowCount > Integer.MAX_VALUE) {
+            this.file.close();
+            throw new IllegalArgumentException("Too many windows of " + windowSize + " bytes for " + size + " bytes");
+        }
+        this.windows = new AtomicReferenceArray<>((int) windowCount);
+        this.residentWindows = new Window[maxResidentWindows];
+    }
+
+    public static FileBackend open(File file) throws IOException {
+        return new SegmentedFileBackend(file);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public byte get(long offset) {
+        if (offset < 0 || offset >= size) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " outside file of size " + size);
+        }
+        Window window = acquire((int) (offset >>> windowShift));
+        try {
+            return window.buffer.get((int) (offset & windowMask));
+        } finally {
+            release(window);
+        }
+    }
+
+    @Override
+    public int read(long offset, byte[] dst, int dstOffset, int length) {
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("Negative offset: " + offset);
+        }
+        if (offset >= size) {
+            return -1;
+        }
+
+        int total = 0;
+        while (total < length && offset < size) {
+            Window window = acquire((int) (offset >>> windowShift));
+            try {
+                int inWindow = (int) (offset & windowMask);
+                int count = Math.min(length - total, window.buffer.capacity() - inWindow);
+                // Read through a private view so the shared window's position is never touched
+                ByteBuffer view = window.buffer.duplicate();
+                view.position(inWindow);
+                view.get(dst, dstOffset + total, count);
+                total += count;
+                offset += count;
+            } finally {
+                release(window);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Maps the windows of the range and reads a byte of each page in it, so
+     * the OS pages the range in now instead of when it is first shown.
+     * {@link MappedByteBuffer#load()} would load whole windows; slices of a
+     * mapping cannot be loaded on their own.
+     */
+    @Override
+    public void readAhead(long offset, long length) {
+        long end = Math.min(size, offset + length);
+        offset = Math.max(0, offset);
+        while (offset < end && !closed) {
+            Window window = acquire((int) (offset >>> windowShift));
+            try {
+                int inWindow = (int) (offset & windowMask);
+                int last = (int) Math.min(window.buffer.capacity(), inWindow + (end - offset));
+                for (int position = inWindow; position < last; position += PAGE_SIZE) {
+                    window.buffer.get(position);
+                }
+                offset += last - inWindow;
+            } finally {
+                release(window);
+            }
+        }
+    }
+
+    private Window acquire(int windowIndex) {
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("Backend is closed");
+            }
+            Window window = windows.get(windowIndex);
+            if (window == null) {
+                window = mapWindow(windowIndex);
+            }
+            if (window.tryPin()) {
+                if (!window.referenced) {
+                    window.referenced = true;
+                }
+                return window;
+            }
+            // Evicted and unmapped since it was looked up; map it again
+        }
+    }
+
+    private void release(Window window) {
+        window.unpin();
+    }
+
+    /**
+     * Maps a window unless another thread has just done so, evicting a
+     * window first if the resident windows are all taken
+     */
+    private Window mapWindow(int windowIndex) {
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Backend is closed");
+            }
+            Window window = windows.get(windowIndex);
+            if (window != null) {
+                return window;
+            }
+            window = new Window(windowIndex, map(windowIndex));
+            residentWindows[evictWindow()] = window;
+            windows.set(windowIndex, window);
+            return window;
+        }
+    }
+
+    private MappedByteBuffer map(int windowIndex) {
+        long start = (long) windowIndex << windowShift;
+        long length = Math.min(1L << windowShift, size - start);
+        // An interrupt would close the channel shared by all readers; it is kept for the caller instead
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                try {
+                    return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                } catch (ClosedByInterruptException e) {
+                    interrupted |= Thread.interrupted();
+                    reopen();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to map window " + windowIndex + " at offset " + start, e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Opens the file again after an interrupt closed its channel. Windows
+     * mapped from the old channel stay valid.
+     */
+    private void reopen() throws IOException {
+        logger.debug("Reopening " + source + " after an interrupted mapping");
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close interrupted channel", e);
+        }
+        file = new RandomAccessFile(source, "r");
+        channel = file.getChannel();
+    }
+
+    /**
+     * Frees a slot of the resident windows, sweeping the clock hand past
+     * windows read since its last pass
+     * @return The free slot
+     */
+    private int evictWindow() {
+        while (true) {
+            int slot = clockHand;
+            clockHand = (slot + 1) % maxResidentWindows;
+            Window window = residentWindows[slot];
+            if (window == null) {
+                return slot;
+            }
+            if (window.referenced) {
+                window.referenced = false;
+                continue;
+            }
+            residentWindows[slot] = null;
+            windows.set(window.index, null);
+            window.evicted = true;
+            window.unmapIfUnpinned();
+            return slot;
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (Exception e) {
+            logger.debug("Failed to unmap window", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (int slot = 0; slot < maxResidentWindows; slot++) {
+                Window window = residentWindows[slot];
+                if (window != null) {
+                    residentWindows[slot] = null;
+                    windows.set(window.index, null);
+                    window.evicted = true;
+                    window.unmapIfUnpinned();
+                }
+            }
+            channel.close();
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.xmlmafia;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A query for elements by name, attributes and position, in a small subset of
+ * XPath that can be evaluated in one streaming pass over the tags of a file:
+ * <ul>
+ * <li>{@code Item} or {@code //Item}: every Item element</li>
+ * <li>{@code /Order/Item}: Item children of a root Order element</li>
+ * <li>{@code Order//Item}: Item elements anywhere below an Order element</li>
+ * <li>{@code Item[@sku]}, {@code Item[@sku='A1']}: with an attribute, or with an attribute value</li>
+ * <li>{@code *[@id]}, {@code @id}, {@code @id=7}, {@code id=7}: any element with an attribute</li>
+ * </ul>
+ * A name without a namespace prefix also matches prefixed names. A match is
+ * reported at the start tag of the element.
+ */
+public class StructuralQuery {
+    private static final int MAX_STEPS = Long.SIZE - 1;
+
+    /**
+     * Receives the start tags of the matching elements
+     */
+    public interface MatchListener {
+        /**
+         * @param offset File offset of the start tag
+         * @param length Length of the start tag in bytes
+         */
+        void onMatch(long offset, long length);
+    }
+
+    /**
+     * One element test of the path
+     */
+    private static final class Step {
+        final boolean descendant; // Anywhere below the previous step rather than a child of it
+        final String name; // Null for any element
+        final String[] attributeNames;
+        final String[] attributeValues; // Null entries only require the attribute
+
+        Step(boolean descendant, String name, List<String[]> predicates) {
+            this.descendant = descendant;
+            this.name = name;
+            this.attributeNames = new String[predicates.size()];
+            this.attributeValues = new String[predicates.size()];
+            for (int i = 0; i < predicates.size(); i++) {
+                attributeNames[i] = predicates.get(i)[0];
+                attributeValues[i] = predicates.get(i)[1];
+            }
+        }
+    }
+
+    private final String expression;
+    private final Step[] steps;
+
+    private StructuralQuery(String expression, Step[] steps) {
+        this.expression = expression;
+        this.steps = steps;
+    }
+
+    /**
+     * @param expression The query
+     * @return The parsed query
+     * @throws IllegalArgumentException If the expression is not supported
+     */
+    public static StructuralQuery parse(String expression) {
+        return new Parser(expression.trim()).parse();
+    }
+
+    /**
+     * @return Whether an element matches regardless of its ancestors, so a
+     * file can be scanned in independent parts
+     */
+    public boolean isContextFree() {
+        return steps.length == 1 && steps[0].descendant;
+    }
+
+    /**
+     * Creates the state for one streaming pass over a file
+     * @param charset The file encoding, which determines how the scanner reports names
+     * @param caseSensitive Whether ASCII letters in names and values must match in case
+     * @param listener Receives the matches
+     * @return A tag listener to scan the file with
+     */
+    public Evaluator evaluator(Charset charset, boolean caseSensitive, MatchListener listener) {
+        return new Evaluator(charset, caseSensitive, listener);
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * Tracks which steps of the path the open elements match. For each open
+     * element it keeps the steps the element itself matches and the steps
+     * matched by it or any of its ancestors.
+     */
+    public final class Evaluator implements XmlTagScanner.TagListener {
+        private final boolean caseSensitive;
+        private final MatchListener listener;
+        private final String[] names; // Step names as the scanner reports them
+        private final String[][] attributeNames;
+        private final String[][] attributeValues;
+        private long[] matched = new long[64];
+        private long[] matchedAbove = new long[64];
+        private int depth;
+
+        private Evaluator(Charset charset, boolean caseSensitive, MatchListener listener) {
+            this.caseSensitive = caseSensitive;
+            this.listener = listener;
+            this.names = new String[steps.length];
+            this.attributeNames = new String[steps.length][];
+            this.attributeValues = new String[steps.length][];
+            for (int k = 0; k < steps.length; k++) {
+                names[k] = scannerForm(steps[k].name, charset);
+                attributeNames[k] = new String[steps[k].attributeNames.length];
+                attributeValues[k] = new String[steps[k].attributeNames.length];
+                for (int i = 0; i < attributeNames[k].length; i++) {
+                    attributeNames[k][i] = scannerForm(steps[k].attributeNames[i], charset);
+                    attributeValues[k][i] = scannerForm(steps[k].attributeValues[i], charset);
+                }
+            }
+        }
+
+        @Override
+        public void onStartTag(XmlTagScanner scanner) {
+            if (isContextFree()) {
+                if (test(0, scanner)) {
+                    listener.onMatch(scanner.tagStart(), scanner.tagLength());
+                }
+                return;
+            }
+
+            long parentMatched = depth > 0 ? matched[depth - 1] : 0;
+            long ancestorMatched = depth > 0 ? matchedAbove[depth - 1] : 0;
+            long bits = 0;
+            for (int k = 0; k < steps.length; k++) {
+                boolean reachable = k == 0
+                    ? steps[0].descendant || depth == 0
+                    : ((steps[k].descendant ? ancestorMatched : parentMatched) >>> (k - 1) & 1) != 0;
+                if (reachable && test(k, scanner)) {
+                    bits |= 1L << k;
+                }
+            }
+            if ((bits >>> (steps.length - 1) & 1) != 0) {
+                listener.onMatch(scanner.tagStart(), scanner.tagLength());
+            }
+
+            if (!scanner.isEmptyElement()) {
+                if (depth == matched.length) {
+                    matched = Arrays.copyOf(matched, depth * 2);
+                    matchedAbove = Arrays.copyOf(matchedAbove, depth * 2);
+                }
+                matched[depth] = bits;
+                matchedAbove[depth] = ancestorMatched | bits;
+                depth++;
+            }
+        }
+
+        @Override
+        public void onEndTag(XmlTagScanner scanner) {
+            // End tags are assumed to close the innermost open element
+            if (depth > 0) {
+                depth--;
+            }
+        }
+
+        private boolean test(int k, XmlTagScanner scanner) {
+            if (names[k] != null && !nameMatches(scanner.name(), names[k])) {
+                return false;
+            }
+            for (int i = 0; i < attributeNames[k].length; i++) {
+                if (!hasAttribute(scanner, attributeNames[k][i], attributeValues[k][i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean hasAttribute(XmlTagScanner scanner, String name, String value) {
+            for (int i = 0; i < scanner.attributeCount(); i++) {
+                if (nameMatches(scanner.attributeName(i), name)
+                    && (value == null || regionEquals(scanner.attributeValue(i), 0, value))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Compares a name exactly, or by its local part when the query has no prefix
+         */
+        private boolean nameMatches(CharSequence actual, String expected) {
+            if (regionEquals(actual, 0, expected)) {
+                return true;
+            }
+            if (expected.indexOf(':') >= 0) {
+                return false;
+            }
+            int colon = actual.length() - expected.length() - 1;
+            return colon > 0 && actual.charAt(colon) == ':' && regionEquals(actual, colon + 1, expected);
+        }
+
+        private boolean regionEquals(CharSequence actual, int offset, String expected) {
+            if (actual.length() - offset != expected.length()) {
+                return false;
+            }
+            for (int i = 0; i < expected.length(); i++) {
+                char a = actual.charAt(offset + i);
+                char e = expected.charAt(i);
+                if (a != e && (caseSensitive || foldAscii(a) != foldAscii(e))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Converts query text to the form {@link XmlTagScanner} reports names and values in
+     */
+    private static String scannerForm(String text, Charset charset) {
+        boolean utf16 = charset.equals(StandardCharsets.UTF_16LE) || charset.equals(StandardCharsets.UTF_16BE);
+        return text == null || utf16 ? text : new String(text.getBytes(charset), StandardCharsets.ISO_8859_1);
+    }
+
+    private static char foldAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Recursive descent over the expression
+     */
+    private static final class Parser {
+        private final String text;
+        private int position;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        StructuralQuery parse() {
+            if (text.isEmpty()) {
+                throw error("Empty query");
+            }
+            List<Step> steps = new ArrayList<>();
+            // A relative path may start anywhere in the document
+            boolean descendant = !text.startsWith("/") || text.startsWith("//");
+            position = text.startsWith("//") ? 2 : text.startsWith("/") ? 1 : 0;
+            while (true) {
+                steps.add(step(descendant));
+                if (position == text.length()) {
+                    break;
+                }
+                if (text.startsWith("//", position)) {
+                    descendant = true;
+                    position += 2;
+                } else if (text.charAt(position) == '/') {
+                    descendant = false;
+                    position++;
+                } else {
+                    throw error("Expected '/' at position " + (position + 1));
+                }
+            }
+            if (steps.size() > MAX_STEPS) {
+                throw error("Too many steps");
+            }
+            return new StructuralQuery(text, steps.toArray(new Step[0]));
+        }
+
+        private Step step(boolean descendant) {
+            List<String[]> predicates = new ArrayList<>();
+            if (position < text.length() && text.charAt(position) == '@') {
+                // An attribute test on its own applies to any element
+                position++;
+                predicates.add(attributeTest("/"));
+                return new Step(descendant, null, predicates);
+            }
+
+            int start = position;
+            while (position < text.length() && "/[=".indexOf(text.charAt(position)) < 0) {
+                position++;
+            }
+            String name = text.substring(start, position).trim();
+            if (position < text.length() && text.charAt(position) == '=') {
+                // name=value is short for [@name=value]
+                position = start;
+                predicates.add(attributeTest("/"));
+                return new Step(descendant, null, predicates);
+            }
+            checkName(name, start);
+
+            while (position < text.length() && text.charAt(position) == '[') {
+                position++;
+                skipWhitespace();
+                if (position == text.length() || text.charAt(position) != '@') {
+                    throw error("Only attribute predicates like [@name] or [@name='value'] are supported");
+                }
+                position++;
+                predicates.add(attributeTest("]"));
+                if (position == text.length() || text.charAt(position) != ']') {
+                    throw error("Missing ']'");
+                }
+                position++;
+                skipWhitespace();
+            }
+            return new Step(descendant, name.equals("*") ? null : name, predicates);
+        }
+
+        /**
+         * Parses name or name=value, up to one of the terminators
+         * @return The attribute name and value, the value null if not given
+         */
+        private String[] attributeTest(String terminators) {
+            int start = position;
+            while (position < text.length() && text.charAt(position) != '=' && terminators.indexOf(text.charAt(position)) < 0) {
+                position++;
+            }
+            String name = text.substring(start, position).trim();
+            checkName(name, start);
+            if (name.equals("*")) {
+                throw error("Attribute names cannot be '*'");
+            }
+            if (position == text.length() || text.charAt(position) != '=') {
+                return new String[] {name, null};
+            }
+            position++;
+            skipWhitespace();
+
+            String value;
+            if (position < text.length() && (text.charAt(position) == '\'' || text.charAt(position) == '"')) {
+                char quote = text.charAt(position);
+                int end = text.indexOf(quote, position + 1);
+                if (end < 0) {
+                    throw error("Unterminated attribute value");
+                }
+                value = text.substring(position + 1, end);
+                position = end + 1;
+                skipWhitespace();
+            } else {
+                int valueStart = position;
+                while (position < text.length() && terminators.indexOf(text.charAt(position)) < 0) {
+                    position++;
+                }
+                value = text.substring(valueStart, position).trim();
+            }
+            return new String[] {name, value};
+        }
+
+        private void checkName(String name, int start) {
+            if (name.isEmpty()) {
+                throw error("Expected a name at position " + (start + 1));
+            }
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (Character.isWhitespace(c) || "<>\"'()@[]".indexOf(c) >= 0 || (c == '*' && name.length() > 1)) {
+                    throw error("Invalid name \"" + name + "\"");
+                }
+            }
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + ": " + text);
+        }
+    }
+}
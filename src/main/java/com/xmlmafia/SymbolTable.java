@@ -0,0 +1,109 @@
+package com.xmlmafia;
+
+import java.util.Arrays;
+
+/**
+ * Interns names into dense int ids, so a name seen millions of times is
+ * stored once. Lookups take any CharSequence and do not allocate unless the
+ * name is new.
+ * <p>
+ * Not thread-safe; parallel scans keep a table each and merge them.
+ */
+public class SymbolTable {
+    private static final int INITIAL_CAPACITY = 64; // Slots, a power of two
+
+    private int[] slots = new int[INITIAL_CAPACITY]; // Id + 1 of the name in each slot, 0 if empty
+    private String[] names = new String[INITIAL_CAPACITY / 2];
+    private int[] hashes = new int[INITIAL_CAPACITY / 2];
+    private int size;
+
+    /**
+     * @return The number of distinct names
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param name A name
+     * @return The name's id, assigning the next id if the name is new
+     */
+    public int intern(CharSequence name) {
+        int hash = hash(name);
+        int slot = find(name, hash);
+        if (slots[slot] != 0) {
+            return slots[slot] - 1;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        names[size] = name.toString();
+        hashes[size] = hash;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    /**
+     * @param name A name
+     * @return The name's id, or -1 if it has not been interned
+     */
+    public int idOf(CharSequence name) {
+        int slot = find(name, hash(name));
+        return slots[slot] - 1;
+    }
+
+    /**
+     * @param id A name id, 0 <= id < size()
+     * @return The name
+     */
+    public String name(int id) {
+        return names[id];
+    }
+
+    private int find(CharSequence name, int hash) {
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == 0 || (hashes[entry - 1] == hash && contentEquals(names[entry - 1], name))) {
+                return slot;
+            }
+        }
+    }
+
+    private void rehash() {
+        int[] grown = new int[slots.length * 2];
+        int mask = grown.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (grown[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            grown[slot] = id + 1;
+        }
+        slots = grown;
+    }
+
+    private static int hash(CharSequence name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + name.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean contentEquals(String a, CharSequence b) {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        for (int i = 0; i < a.length(); i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
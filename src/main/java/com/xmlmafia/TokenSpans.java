@@ -0,0 +1,62 @@
+package com.xmlmafia;
+
+import java.util.Arrays;
+
+/**
+ * Reusable output buffer for {@link XmlTokenizer}: each token is a (start,
+ * length, style) triple in a flat int array referring to the tokenized text,
+ * so tokenizing a line allocates nothing once the buffer has grown to fit.
+ * Not thread-safe; each caller keeps its own.
+ */
+public final class TokenSpans {
+    private static final int INITIAL_SPANS = 64;
+
+    private int[] spans = new int[INITIAL_SPANS * 3];
+    private int count;
+
+    /**
+     * @return The number of tokens
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @param token Token number, 0 <= token < count()
+     * @return Offset of the token's first character in the tokenized text
+     */
+    public int start(int token) {
+        return spans[token * 3];
+    }
+
+    /**
+     * @param token Token number, 0 <= token < count()
+     * @return Number of characters in the token
+     */
+    public int length(int token) {
+        return spans[token * 3 + 1];
+    }
+
+    /**
+     * @param token Token number, 0 <= token < count()
+     * @return The token's style, one of the {@code XmlTokenizer.STYLE_} constants
+     */
+    public int style(int token) {
+        return spans[token * 3 + 2];
+    }
+
+    void clear() {
+        count = 0;
+    }
+
+    void add(int start, int end, int style) {
+        int offset = count * 3;
+        if (offset == spans.length) {
+            spans = Arrays.copyOf(spans, spans.length * 2);
+        }
+        spans[offset] = start;
+        spans[offset + 1] = end - start;
+        spans[offset + 2] = style;
+        count++;
+    }
+}
@@ -0,0 +1,295 @@
+package com.xmlmafia;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Summarises which byte trigrams occur in each fixed-size block of a file, so
+ * a search can skip blocks that cannot contain its query.
+ * <p>
+ * Each block of {@link #BLOCK_SIZE} bytes has a Bloom filter of
+ * {@link #FILTER_BITS} bits holding every trigram that starts in the block,
+ * with ASCII letters folded to lower case. Each trigram sets two bits. The
+ * filters take 1/64 of the file size and may answer "maybe" for a trigram the
+ * block does not hold, but never "no" for one it does.
+ * <p>
+ * An index is built once, by scanning blocks in parallel on a ForkJoinPool,
+ * and is read-only afterwards. Filters of small files are kept in direct
+ * memory; larger ones are written to a memory-mapped scratch file as they are
+ * produced, so they live in the page cache and do not count against the
+ * direct memory limit. It can be written out and restored from a
+ * memory-mapped file without copying its filters.
+ */
+public class TrigramIndex {
+    private static final Logger logger = LoggerFactory.getLogger(TrigramIndex.class);
+    public static final int BLOCK_SHIFT = 18;
+    public static final int BLOCK_SIZE = 1 << BLOCK_SHIFT; // 256KB blocks
+    public static final int FILTER_BITS = 1 << 15; // 4KB filter per block
+    private static final int FILTER_LONGS = FILTER_BITS / Long.SIZE;
+    private static final int HASH_BITS = 15;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private static final int BLOCKS_PER_WAVE = 64;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    private static final int HEADER_LONGS = 2;
+    private static final int STAGING_LONGS = 8192;
+    private static final long MAX_DIRECT_FILTER_BYTES = 16L * 1024 * 1024; // Filters of files up to 1GB stay in direct memory
+
+    private final long fileSize;
+    private final long blockCount;
+    private final LongBuffer filters;
+
+    private TrigramIndex(long fileSize, LongBuffer filters) {
+        this.fileSize = fileSize;
+        this.blockCount = blockCount(fileSize);
+        this.filters = filters;
+    }
+
+    /**
+     * Scans a file and builds its filters off the Java heap. Stops early when
+     * the calling thread is interrupted.
+     * @param backend The file to index
+     * @param pool The pool blocks are scanned on
+     * @return The index, or null if the build was interrupted or its filters could not be allocated
+     */
+    public static TrigramIndex build(FileBackend backend, ForkJoinPool pool) {
+        long startNanos = System.nanoTime();
+        long fileSize = backend.size();
+        long blocks = blockCount(fileSize);
+        if (blocks * FILTER_LONGS > Integer.MAX_VALUE / Long.BYTES) {
+            logger.info("File too large for a trigram index: " + fileSize + " bytes");
+            return null;
+        }
+        LongBuffer filters;
+        try {
+            filters = allocateFilters((int) (blocks * FILTER_LONGS * Long.BYTES));
+        } catch (ClosedByInterruptException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warn("Could not allocate the trigram index of " + fileSize + " bytes", e);
+            return null;
+        }
+
+        int waveSize = Math.max(BLOCKS_PER_WAVE, pool.getParallelism() * 2);
+        for (long firstBlock = 0; firstBlock < blocks; firstBlock += waveSize) {
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            long lastBlock = Math.min(blocks, firstBlock + waveSize);
+            pool.invoke(new BuildTask(backend, filters, firstBlock, lastBlock));
+        }
+
+        long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+        logger.info(String.format("Built trigram index of %d blocks (%d KB) in %d ms (%.2f GB/s)",
+            blocks, blocks * FILTER_LONGS * Long.BYTES / 1024, elapsedNanos / 1_000_000,
+            fileSize / (elapsedNanos / 1e9) / (1024.0 * 1024.0 * 1024.0)));
+        return new TrigramIndex(fileSize, filters);
+    }
+
+    /**
+     * Allocates zeroed filters in direct memory, or for large files in a
+     * scratch file mapped in full. The scratch file is deleted when its
+     * channel closes; the mapping stays valid until it is garbage collected.
+     */
+    private static LongBuffer allocateFilters(int bytes) throws IOException {
+        if (bytes <= MAX_DIRECT_FILTER_BYTES) {
+            return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+        Path scratch = Files.createTempFile("xml-mafia-trigrams", ".tmp");
+        try (FileChannel channel = FileChannel.open(scratch, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes).order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+    }
+
+    /**
+     * @return The size of the file the index was built for
+     */
+    public long fileSize() {
+        return fileSize;
+    }
+
+    public long blockCount() {
+        return blockCount;
+    }
+
+    /**
+     * @return The number of bytes used by the filters
+     */
+    public long memoryBytes() {
+        return blockCount * FILTER_LONGS * Long.BYTES;
+    }
+
+    /**
+     * Computes the filter bits a query needs, two per trigram
+     * @param pattern The encoded query
+     * @return The bit numbers, or null if the query is shorter than a trigram
+     */
+    public static int[] queryBits(byte[] pattern) {
+        if (pattern.length < 3) {
+            return null;
+        }
+        int[] bits = new int[2 * (pattern.length - 2)];
+        for (int i = 0; i + 2 < pattern.length; i++) {
+            int trigram = fold(pattern[i]) << 16 | fold(pattern[i + 1]) << 8 | fold(pattern[i + 2]);
+            long hash = trigram * HASH_MULTIPLIER;
+            bits[2 * i] = (int) (hash >>> (64 - HASH_BITS));
+            bits[2 * i + 1] = (int) (hash >>> (64 - 2 * HASH_BITS)) & (FILTER_BITS - 1);
+        }
+        return bits;
+    }
+
+    /**
+     * Checks whether a match of a query, no longer than a block, may start in a
+     * block. The first trigram starts in the block itself; later ones may start
+     * in the next block.
+     * @param block The block number
+     * @param bits The query's bits from {@link #queryBits}
+     * @return False only if no match can start in the block
+     */
+    public boolean mayStartIn(long block, int[] bits) {
+        if (!hasBit(block, bits[0]) || !hasBit(block, bits[1])) {
+            return false;
+        }
+        boolean hasNext = block + 1 < blockCount;
+        for (int i = 2; i < bits.length; i += 2) {
+            boolean here = hasBit(block, bits[i]) && hasBit(block, bits[i + 1]);
+            if (!here && !(hasNext && hasBit(block + 1, bits[i]) && hasBit(block + 1, bits[i + 1]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasBit(long block, int bit) {
+        long word = filters.get((int) (block * FILTER_LONGS + (bit >>> 6)));
+        return (word & (1L << bit)) != 0;
+    }
+
+    /**
+     * Writes the index data in little-endian order
+     * @param channel The channel to write to
+     */
+    void write(WritableByteChannel channel) throws IOException {
+        ByteBuffer staging = ByteBuffer.allocate(STAGING_LONGS * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        staging.putLong(fileSize).putLong(FILTER_BITS);
+        long count = blockCount * FILTER_LONGS;
+        for (int i = 0; i < count; i++) {
+            if (!staging.hasRemaining()) {
+                flush(channel, staging);
+            }
+            staging.putLong(filters.get(i));
+        }
+        flush(channel, staging);
+    }
+
+    /**
+     * Restores an index written by {@link #write}. The filters are used in
+     * place, so a memory-mapped buffer stays mapped rather than being copied.
+     * @param buffer Buffer positioned at the index data
+     * @return The restored index
+     */
+    static TrigramIndex read(ByteBuffer buffer) {
+        ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        long fileSize = data.getLong(0);
+        long filterBits = data.getLong(Long.BYTES);
+        long count = blockCount(fileSize) * FILTER_LONGS;
+        if (fileSize < 0 || filterBits != FILTER_BITS || (HEADER_LONGS + count) * Long.BYTES > data.remaining()) {
+            throw new IllegalArgumentException("Corrupt trigram index data");
+        }
+        data.position(HEADER_LONGS * Long.BYTES);
+        data.limit((int) ((HEADER_LONGS + count) * Long.BYTES));
+        return new TrigramIndex(fileSize, data.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer());
+    }
+
+    private static long blockCount(long fileSize) {
+        return Math.max(1, (fileSize + BLOCK_SIZE - 1) >>> BLOCK_SHIFT);
+    }
+
+    private static int fold(byte b) {
+        int c = b & 0xFF;
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static void flush(WritableByteChannel channel, ByteBuffer staging) throws IOException {
+        staging.flip();
+        while (staging.hasRemaining()) {
+            channel.write(staging);
+        }
+        staging.clear();
+    }
+
+    /**
+     * Splits a range of blocks in halves until a single block is left to scan
+     */
+    private static final class BuildTask extends RecursiveAction {
+        private final FileBackend backend;
+        private final LongBuffer filters;
+        private final long from;
+        private final long to;
+
+        BuildTask(FileBackend backend, LongBuffer filters, long from, long to) {
+            this.backend = backend;
+            this.filters = filters;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                scanBlock(backend, filters, from);
+                return;
+            }
+            long mid = (from + to) >>> 1;
+            invokeAll(new BuildTask(backend, filters, from, mid), new BuildTask(backend, filters, mid, to));
+        }
+    }
+
+    /**
+     * Adds every trigram starting in a block to its filter, reading two bytes
+     * past the block for the trigrams that end in the next one
+     */
+    private static void scanBlock(FileBackend backend, LongBuffer filters, long block) {
+        long[] filter = new long[FILTER_LONGS];
+        byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+        long start = block << BLOCK_SHIFT;
+        long end = Math.min(backend.size(), start + BLOCK_SIZE + 2);
+        int trigram = 0;
+        int seen = 0;
+
+        for (long position = start; position < end; ) {
+            int bytesRead = backend.read(position, buffer, 0, (int) Math.min(buffer.length, end - position));
+            if (bytesRead <= 0) {
+                break;
+            }
+            for (int i = 0; i < bytesRead; i++) {
+                trigram = (trigram << 8 | fold(buffer[i])) & 0xFFFFFF;
+                if (++seen >= 3) {
+                    long hash = trigram * HASH_MULTIPLIER;
+                    int first = (int) (hash >>> (64 - HASH_BITS));
+                    int second = (int) (hash >>> (64 - 2 * HASH_BITS)) & (FILTER_BITS - 1);
+                    filter[first >>> 6] |= 1L << first;
+                    filter[second >>> 6] |= 1L << second;
+                }
+            }
+            position += bytesRead;
+        }
+
+        int base = (int) (block * FILTER_LONGS);
+        for (int i = 0; i < FILTER_LONGS; i++) {
+            filters.put(base + i, filter[i]);
+        }
+    }
+}
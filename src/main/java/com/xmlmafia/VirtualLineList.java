@@ -0,0 +1,223 @@
+package com.xmlmafia;
+
+import java.util.Collections;
+import javafx.collections.ObservableListBase;
+
+/**
+ * Read-only list model for the line view that holds no per-line state. The
+ * size comes from the line index and each element is looked up lazily when a
+ * cell asks for it, so memory use does not grow with the number of lines.
+ * Lines that are not loaded yet read as null and are requested from the
+ * {@link LineSource}; once they arrive, a change is fired for exactly those
+ * rows so only the affected cells are refreshed.
+ * <p>
+ * Line ranges can be folded away. The list then has a row per visible line
+ * and maps rows to lines through {@link LineFolds}, so folding only fires a
+ * change for the hidden rows and never copies any lines.
+ * <p>
+ * Like any JavaFX list, it must only be modified on the FX application thread.
+ */
+public class VirtualLineList extends ObservableListBase<String> {
+
+    /**
+     * Supplies line text to the list
+     */
+    public interface LineSource {
+        /**
+         * @param index The line number
+         * @return The line if it is already loaded, otherwise null; must not block on I/O
+         */
+        String cachedLine(int index);
+
+        /**
+         * Asks for a line to be loaded in the background. The source reports
+         * arrival through {@link #linesArrived}.
+         * @param index The line number
+         */
+        void requestLine(int index);
+
+        /**
+         * @param index The line number
+         * @return Whether the line was read at an estimated position and its number is only approximate
+         */
+        default boolean isApproximate(int index) {
+            return false;
+        }
+    }
+
+    private final LineSource source;
+    private final LineFolds folds = new LineFolds();
+    private int lineCount;
+    private int size; // Number of rows, the lines not hidden by folds
+
+    public VirtualLineList(LineSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " outside list of size " + size);
+        }
+        int lineNumber = folds.lineAt(index);
+        String line = source.cachedLine(lineNumber);
+        if (line == null) {
+            source.requestLine(lineNumber);
+        }
+        return line;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of lines, including those hidden by folds
+     */
+    public int lineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @param line A line
+     * @return Whether the line's number is only approximate, because the line index has not reached it yet
+     */
+    public boolean isApproximate(int line) {
+        return source.isApproximate(line);
+    }
+
+    /**
+     * @param row A row of the list
+     * @return The line shown in the row
+     */
+    public int lineAt(int row) {
+        return folds.lineAt(row);
+    }
+
+    /**
+     * @param line A line
+     * @return The row showing the line, or the first line of the fold hiding it
+     */
+    public int rowOf(int line) {
+        return folds.rowOf(line);
+    }
+
+    /**
+     * @param row A row of the list
+     * @return The number of lines folded away after the row's line, 0 if it does not start a fold
+     */
+    public int hiddenAfter(int row) {
+        return folds.hiddenBy(folds.lineAt(row));
+    }
+
+    /**
+     * Grows or shrinks the list, firing a single add or remove change.
+     * Shrinking below the end of a fold removes all folds.
+     * @param newLineCount The new number of lines
+     */
+    public void setSize(int newLineCount) {
+        if (newLineCount < folds.end()) {
+            unfoldAll();
+        }
+        lineCount = newLineCount;
+        int oldSize = size;
+        int newSize = (int) (newLineCount - folds.hiddenLines());
+        if (newSize == oldSize) {
+            return;
+        }
+        size = newSize;
+        beginChange();
+        if (newSize > oldSize) {
+            nextAdd(oldSize, newSize);
+        } else {
+            nextRemove(newSize, Collections.nCopies(oldSize - newSize, (String) null));
+        }
+        endChange();
+    }
+
+    /**
+     * Notifies listeners that the content of a range of lines is now available
+     * @param from First line of the range, inclusive
+     * @param to Last line of the range, exclusive
+     */
+    public void linesArrived(int from, int to) {
+        int end = Math.min(to, lineCount);
+        if (from < 0 || from >= end) {
+            return;
+        }
+        int firstRow = folds.rowOf(from);
+        int endRow = folds.rowOf(end - 1) + 1;
+        beginChange();
+        nextReplace(firstRow, endRow, Collections.nCopies(endRow - firstRow, (String) null));
+        endChange();
+    }
+
+    /**
+     * Folds a range of lines, removing the rows of the lines after its first
+     * @param start First line of the range, which stays visible
+     * @param end Line after the range
+     * @return Whether the folds changed
+     */
+    public boolean fold(int start, int end) {
+        if (end > lineCount || !folds.fold(start, end)) {
+            return false;
+        }
+        int row = folds.rowOf(start);
+        int newSize = (int) (lineCount - folds.hiddenLines());
+        int removed = size - newSize;
+        size = newSize;
+        beginChange();
+        nextReplace(row, row + 1, Collections.singletonList((String) null));
+        if (removed > 0) {
+            nextRemove(row + 1, Collections.nCopies(removed, (String) null));
+        }
+        endChange();
+        return true;
+    }
+
+    /**
+     * Unfolds the fold starting at a line, adding back the rows it hid
+     * @param line The first line of a fold
+     * @return Whether there was a fold starting at the line
+     */
+    public boolean unfold(int line) {
+        int hidden = folds.hiddenBy(line);
+        if (!folds.unfold(line)) {
+            return false;
+        }
+        int row = folds.rowOf(line);
+        size += hidden;
+        beginChange();
+        nextReplace(row, row + 1, Collections.singletonList((String) null));
+        nextAdd(row + 1, row + 1 + hidden);
+        endChange();
+        return true;
+    }
+
+    /**
+     * Unfolds the fold hiding a line, if any, so the line has a row of its own
+     * @param line A line
+     */
+    public void reveal(int line) {
+        if (folds.isHidden(line)) {
+            unfold(folds.foldStart(line));
+        }
+    }
+
+    /**
+     * Removes all folds
+     */
+    public void unfoldAll() {
+        if (folds.count() == 0) {
+            return;
+        }
+        int oldSize = size;
+        folds.clear();
+        size = lineCount;
+        beginChange();
+        nextRemove(0, Collections.nCopies(oldSize, (String) null));
+        nextAdd(0, size);
+        endChange();
+    }
+}
@@ -0,0 +1,533 @@
+package com.xmlmafia;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An open file together with its encoding and line index, independent of the
+ * UI. Lines can be read while the index is still being built: every line that
+ * has been terminated by a newline found so far is readable.
+ */
+public class XmlDocument implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(XmlDocument.class);
+    public static final int MAX_LINE_LENGTH = 1024 * 1024; // Longer lines are truncated
+    private static final int BUFFER_SIZE = 8192;
+    private static final int LEX_CHUNK_SIZE = 64 * 1024;
+
+    private final File file;
+    private final FileBackend backend;
+    private final LineDecoder decoder;
+    private final long fileSize;
+    private final LiteralMatcher tagOpening; // The encoded '<'
+    private final AtomicLong indexedLines = new AtomicLong(0);
+    private volatile long indexedBytes;
+    private volatile LineOffsetIndex lineOffsets = new LineOffsetIndex();
+    private volatile TrigramIndex trigramIndex;
+    private volatile ElementIndex elementIndex;
+    private final ThreadLocal<AsciiChars> lexBuffers = ThreadLocal.withInitial(AsciiChars::new);
+
+    /**
+     * Notified while the line index is being built
+     */
+    public interface IndexListener {
+        /**
+         * May throw an unchecked exception to abandon the scan
+         * @param scannedBytes Length of the file prefix scanned so far
+         * @param readableLines Number of lines in that prefix that can be read
+         */
+        void onProgress(long scannedBytes, long readableLines);
+    }
+
+    private XmlDocument(File file, FileBackend backend, LineDecoder decoder) {
+        this.file = file;
+        this.backend = backend;
+        this.decoder = decoder;
+        this.fileSize = backend.size();
+        this.tagOpening = new LiteralMatcher("<".getBytes(decoder.charset()), false);
+    }
+
+    /**
+     * Opens a file and detects its encoding; no lines are readable until the
+     * index has been restored or built
+     * @param file The file to open
+     * @param backendFactory Opens the file's content
+     * @return The opened document
+     */
+    public static XmlDocument open(File file, FileBackend.Factory backendFactory) throws IOException {
+        FileBackend backend = backendFactory.open(file);
+        try {
+            return new XmlDocument(file, backend, LineDecoder.detect(backend));
+        } catch (RuntimeException e) {
+            backend.close();
+            throw e;
+        }
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public FileBackend backend() {
+        return backend;
+    }
+
+    public LineDecoder decoder() {
+        return decoder;
+    }
+
+    public long size() {
+        return fileSize;
+    }
+
+    public LineOffsetIndex lineOffsets() {
+        return lineOffsets;
+    }
+
+    /**
+     * @return The trigram index searches narrow their scans with, or null if there is none (yet)
+     */
+    public TrigramIndex trigramIndex() {
+        return trigramIndex;
+    }
+
+    /**
+     * @return The element index structure navigation uses, or null if there is none (yet)
+     */
+    public ElementIndex elementIndex() {
+        return elementIndex;
+    }
+
+    /**
+     * @return The number of lines that can currently be read
+     */
+    public long indexedLines() {
+        return indexedLines.get();
+    }
+
+    /**
+     * @return The length of the file prefix whose line starts are all in the index
+     */
+    public long indexedBytes() {
+        return indexedBytes;
+    }
+
+    /**
+     * Maps a file offset to the line containing it
+     * @param offset An offset within {@link #indexedBytes()}
+     * @param hint A line at or before the result, e.g. the previous result of ascending lookups, or 0
+     * @return The line number
+     */
+    public long lineOf(long offset, long hint) {
+        LineOffsetIndex index = lineOffsets;
+        int density = index.density();
+        long entry = index.entryOf(offset, hint / density);
+        long line = entry * density;
+        if (density == 1) {
+            return line;
+        }
+        // Count the line breaks between the stored line start and the offset
+        long position = index.get(entry);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (position <= offset) {
+            long next = scanToNextLine(position, offset + 1, buffer);
+            if (next < 0 || next > offset) {
+                break;
+            }
+            position = next;
+            line++;
+        }
+        return line;
+    }
+
+    /**
+     * @param lineNumber A line within {@link #indexedLines()}
+     * @return The file offset of the line's first byte
+     */
+    public long lineStart(long lineNumber) {
+        return findLineStart(lineOffsets, lineNumber);
+    }
+
+    /**
+     * @param lineNumber An indexed line
+     * @return The offset of the line's line break, or the end of the file, however long the line is
+     */
+    public long lineEnd(long lineNumber) {
+        LineOffsetIndex index = lineOffsets;
+        return findLineEnd(index, lineNumber, findLineStart(index, lineNumber), fileSize);
+    }
+
+    /**
+     * Hints that a range of lines will be read soon; lines past the indexed
+     * ones are left out
+     * @param firstLine First line, inclusive
+     * @param endLine Last line, exclusive
+     * @return The number of bytes hinted
+     */
+    public long readAhead(long firstLine, long endLine) {
+        long indexed = indexedLines();
+        firstLine = Math.max(0, firstLine);
+        if (firstLine >= Math.min(endLine, indexed)) {
+            return 0;
+        }
+        long start = lineStart(firstLine);
+        long end = endLine < indexed ? lineStart(endLine) : indexedBytes();
+        if (end <= start) {
+            return 0;
+        }
+        backend.readAhead(start, end - start);
+        return end - start;
+    }
+
+    /**
+     * Adopts a cached index if the file is unchanged since it was stored
+     * @param cache The sidecar cache
+     * @return The number of lines in the file, or -1 if there is no valid cached index
+     */
+    public long restoreIndex(LineIndexCache cache) {
+        LineIndexCache.Entry cached = cache.load(file, backend);
+        if (cached == null) {
+            return -1;
+        }
+        lineOffsets = cached.index;
+        indexedLines.set(cached.totalLines);
+        indexedBytes = fileSize;
+        return cached.totalLines;
+    }
+
+    /**
+     * Stores the finished index in the sidecar cache
+     * @param cache The sidecar cache
+     * @param lineCount The number of lines returned by {@link #buildLineIndex}
+     */
+    public void storeIndex(LineIndexCache cache, long lineCount) {
+        cache.store(file, backend, lineOffsets, lineCount);
+    }
+
+    /**
+     * Adopts a cached trigram index, or builds one in the background thread
+     * calling this and stores it in the cache
+     * @param cache The sidecar cache
+     * @param pool The pool blocks are scanned on when building
+     * @return Whether the document has a trigram index afterwards
+     */
+    public boolean loadTrigramIndex(LineIndexCache cache, ForkJoinPool pool) {
+        TrigramIndex index = cache.loadTrigrams(file, backend);
+        if (index == null) {
+            index = TrigramIndex.build(backend, pool);
+            if (index == null) {
+                return false;
+            }
+            cache.storeTrigrams(file, backend, index);
+        }
+        trigramIndex = index;
+        return true;
+    }
+
+    /**
+     * Builds the element index in the background thread calling this. Files
+     * in encodings the tag scanner cannot read byte by byte get none.
+     * @param pool The pool chunks are scanned on
+     * @return Whether the document has an element index afterwards
+     */
+    public boolean buildElementIndex(ForkJoinPool pool) {
+        if (!decoder.isSelfSynchronizing()) {
+            logger.info("No element index for " + file.getName() + " in " + decoder.charset());
+            return false;
+        }
+        ElementIndex index = ElementIndex.build(this, pool);
+        if (index == null) {
+            return false;
+        }
+        elementIndex = index;
+        return true;
+    }
+
+    /**
+     * Scans the file for line starts. Lines become readable as the scan
+     * progresses.
+     * @param indexer The newline scanner
+     * @param density Store the start of every density-th line
+     * @param listener Notified after each scanned wave of chunks, may be null
+     * @return The number of lines in the file
+     */
+    public long buildLineIndex(LineIndexer indexer, int density, IndexListener listener) {
+        LineOffsetIndex index = new LineOffsetIndex(density, false);
+        long[] lineCount = {1};
+
+        // Store the start position
+        index.add(0);
+        lineOffsets = index;
+        indexedLines.set(0);
+        indexedBytes = 0;
+
+        indexer.index(backend, (baseLine, chunkStart, newlineOffsets, count) -> {
+            // Each line break starts the next line; keep every density-th line start
+            for (int i = 0; i < count; i++) {
+                long lineStart = decoder.lineStartAfter(backend, chunkStart + newlineOffsets[i]);
+                if (lineStart < 0) {
+                    continue; // A '\n' byte inside a UTF-16 character
+                }
+                if (lineCount[0] % density == 0) {
+                    index.add(lineStart);
+                }
+                lineCount[0]++;
+            }
+        }, (scannedBytes, newlines) -> {
+            // Every line terminated so far can now be read
+            indexedLines.set(lineCount[0] - 1);
+            indexedBytes = scannedBytes;
+            if (listener != null) {
+                listener.onProgress(scannedBytes, lineCount[0] - 1);
+            }
+        });
+
+        indexedLines.set(lineCount[0]);
+        indexedBytes = fileSize;
+        logger.info(String.format("Line index holds %d entries in %d bytes (%.2f bytes per line)",
+            index.size(), index.memoryBytes(), index.bytesPerLine()));
+        return lineCount[0];
+    }
+
+    /**
+     * Reads and decodes a line
+     * @param lineNumber The line to read
+     * @return The line without its line break, or null if it is not indexed yet
+     */
+    public String readLine(long lineNumber) {
+        // Lines past the scanned part of the file are not readable yet
+        if (lineNumber < 0 || lineNumber >= indexedLines.get()) {
+            return null;
+        }
+
+        LineOffsetIndex index = lineOffsets;
+        long start = findLineStart(index, lineNumber);
+        long limit = Math.min(fileSize, start + MAX_LINE_LENGTH);
+        long end = Math.min(findLineEnd(index, lineNumber, start, limit), limit);
+
+        // Decode the whole line from one bulk copy
+        return decoder.decodeLine(backend, start, end);
+    }
+
+    /**
+     * Reads consecutive lines from the first line starting after an offset,
+     * without the line index, e.g. to show a part of the file the index has
+     * not reached yet
+     * @param offset A file offset; reading starts after the next line break
+     * @param maxLines Maximum number of lines to read
+     * @param lines Receives the lines without their line breaks
+     * @return The offset of the first line read, or -1 if there is no line break after the offset
+     */
+    public long readLinesAfter(long offset, int maxLines, List<String> lines) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long first = scanToNextLine(Math.max(0, offset), fileSize, buffer);
+        long start = first;
+        while (start >= 0 && lines.size() < maxLines) {
+            long limit = Math.min(fileSize, start + MAX_LINE_LENGTH);
+            long next = scanToNextLine(start, limit, buffer);
+            long end = next < 0 ? limit : next - decoder.newlineWidth();
+            lines.add(decoder.decodeLine(backend, start, end));
+            // The rest of a line longer than the limit is skipped
+            start = next >= 0 ? next : scanToNextLine(limit, fileSize, buffer);
+        }
+        return first;
+    }
+
+    /**
+     * Decodes a match with some context from its line, without reading the
+     * whole line
+     * @param offset File offset of the match
+     * @param length Length of the match in bytes
+     * @param context Maximum number of bytes to include on each side of the match
+     * @return The match and its context, without line breaks
+     */
+    public String snippet(long offset, int length, int context) {
+        long start = Math.max(lineStart(lineOf(offset, 0)), offset - context);
+        long limit = Math.min(fileSize, offset + length + context);
+        long nextLine = scanToNextLine(offset + length, limit, new byte[BUFFER_SIZE]);
+        long end = nextLine < 0 ? limit : nextLine - decoder.newlineWidth();
+
+        // Start on a character boundary
+        if (!decoder.isUnitStart(start)) {
+            start++;
+        } else if (decoder.charset().equals(StandardCharsets.UTF_8)) {
+            byte[] head = new byte[4];
+            int bytesRead = backend.read(start, head, 0, (int) Math.min(head.length, offset - start));
+            for (int i = 0; i < bytesRead && (head[i] & 0xC0) == 0x80; i++) {
+                start++;
+            }
+        }
+        return decoder.decodeLine(backend, start, Math.max(start, end));
+    }
+
+    /**
+     * Lexes consecutive lines to find the state each following line starts in.
+     * In ASCII-safe encodings the lines' bytes are copied in bulk and lexed
+     * as they are, without decoding them.
+     * @param tokenizer The tokenizer
+     * @param firstLine The first line to lex
+     * @param count Number of lines to lex
+     * @param startState The lexer state the first line starts in
+     * @param endStates Receives the state after each lexed line
+     * @return The number of lines lexed, fewer than count past the indexed lines
+     */
+    public int lexLines(XmlTokenizer tokenizer, long firstLine, int count, int startState, int[] endStates) {
+        int available = (int) Math.max(0, Math.min(count, indexedLines.get() - firstLine));
+        LineOffsetIndex index = lineOffsets;
+        int state = startState;
+        if (!decoder.isAsciiSafe() || index.density() != 1) {
+            for (int i = 0; i < available; i++) {
+                state = tokenizer.endState(readLine(firstLine + i), state);
+                endStates[i] = state;
+            }
+            return available;
+        }
+
+        AsciiChars chars = lexBuffers.get();
+        int lexed = 0;
+        while (lexed < available) {
+            // Copy as many whole lines as fit in one chunk; a long line is taken on its own
+            long chunkStart = index.get(firstLine + lexed);
+            int lines = 0;
+            long chunkEnd = chunkStart;
+            while (lexed + lines < available) {
+                long lineEnd = lineEnd(index, firstLine + lexed + lines);
+                if (lines > 0 && lineEnd - chunkStart > LEX_CHUNK_SIZE) {
+                    break;
+                }
+                chunkEnd = lineEnd;
+                lines++;
+            }
+            chunkEnd = Math.min(chunkEnd, chunkStart + Math.max(LEX_CHUNK_SIZE, MAX_LINE_LENGTH));
+            byte[] bytes = chars.buffer((int) (chunkEnd - chunkStart));
+            int bytesRead = chunkEnd == chunkStart ? 0 : Math.max(0, backend.read(chunkStart, bytes, 0, (int) (chunkEnd - chunkStart)));
+
+            for (int i = 0; i < lines; i++) {
+                long line = firstLine + lexed + i;
+                int start = (int) (index.get(line) - chunkStart);
+                int end = (int) Math.min(Math.min(lineEnd(index, line), index.get(line) + MAX_LINE_LENGTH) - chunkStart, bytesRead);
+                // Lex the same characters readLine would return, without the carriage return
+                if (end > start && bytes[end - 1] == '\r') {
+                    end--;
+                }
+                chars.setRange(start, Math.max(0, end - start));
+                state = tokenizer.endState(chars, state);
+                endStates[lexed + i] = state;
+            }
+            lexed += lines;
+        }
+        return available;
+    }
+
+    /**
+     * @return The offset of a line's line break in a complete-density index
+     */
+    private long lineEnd(LineOffsetIndex index, long line) {
+        return line + 1 < index.size() ? index.get(line + 1) - decoder.newlineWidth() : fileSize;
+    }
+
+    /**
+     * Finds the file offset where a line starts, scanning forward from the
+     * nearest stored line start when the index is sparse
+     * @param index The line offset index
+     * @param lineNumber The line to locate
+     * @return The offset of the first byte of the line
+     */
+    private long findLineStart(LineOffsetIndex index, long lineNumber) {
+        long entry = lineNumber / index.density();
+        long position = index.get(entry);
+        long firstLine = entry * index.density();
+        if (firstLine == lineNumber) {
+            return position;
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (long currentLine = firstLine; currentLine < lineNumber; currentLine++) {
+            position = scanToNextLine(position, fileSize, buffer);
+            if (position < 0) {
+                return fileSize;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Finds the file offset where a line ends, excluding its line break
+     * @param index The line offset index
+     * @param lineNumber The line to locate
+     * @param start The offset where the line starts
+     * @param limit Offset to stop scanning at
+     * @return The offset of the line's line break, or the limit if scanning gave up
+     */
+    private long findLineEnd(LineOffsetIndex index, long lineNumber, long start, long limit) {
+        // The next line's start is known directly when it is stored in the index
+        long nextLine = lineNumber + 1;
+        if (nextLine % index.density() == 0 && nextLine / index.density() < index.size()) {
+            return index.get(nextLine / index.density()) - decoder.newlineWidth();
+        }
+
+        long nextStart = scanToNextLine(start, limit, new byte[BUFFER_SIZE]);
+        return nextStart < 0 ? limit : nextStart - decoder.newlineWidth();
+    }
+
+    /**
+     * Finds where markup may start, so that a scan of part of the file can
+     * begin in step with its tags
+     * @param from Offset to start scanning at
+     * @param limit Offset to stop scanning at
+     * @return The offset of the first '&lt;' at or after the offset, or the limit if there is none
+     */
+    public long findTagOpening(long from, long limit) {
+        int overlap = tagOpening.length() - 1;
+        byte[] buffer = new byte[BUFFER_SIZE + overlap];
+        for (long position = from; position < limit; position += BUFFER_SIZE) {
+            int bytesRead = backend.read(position, buffer, 0, (int) Math.min(buffer.length, limit - position));
+            if (bytesRead <= 0) {
+                break;
+            }
+            for (int i = tagOpening.indexOf(buffer, 0, bytesRead); i >= 0; i = tagOpening.indexOf(buffer, i + 1, bytesRead)) {
+                if (decoder.isUnitStart(position + i)) {
+                    return position + i;
+                }
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Scans forward for the next line break
+     * @param from Offset to start scanning at
+     * @param limit Offset to stop scanning at
+     * @param buffer Scratch buffer
+     * @return The offset where the following line starts, or -1 if there is no line break before the limit
+     */
+    private long scanToNextLine(long from, long limit, byte[] buffer) {
+        long position = from;
+        while (position < limit) {
+            int bytesRead = backend.read(position, buffer, 0, (int) Math.min(buffer.length, limit - position));
+            if (bytesRead <= 0) {
+                break;
+            }
+            for (int i = 0; i < bytesRead; i++) {
+                if (buffer[i] == '\n') {
+                    long nextStart = decoder.lineStartAfter(backend, position + i);
+                    if (nextStart >= 0) {
+                        return nextStart;
+                    }
+                }
+            }
+            position += bytesRead;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        backend.close();
+    }
+}
@@ -6,19 +6,45 @@ import javafx.scene.text.Text;
 import javafx.scene.text.TextFlow;
 import javafx.geometry.Pos;
 import javafx.geometry.VPos;
+import java.util.ArrayList;
 import java.util.List;
 
 public class XmlLineCell extends ListCell<String> {
+    
+    /**
+     * Tells a cell which lexer state its line starts in
+     */
+    public interface StateSource {
+        /**
+         * @param lineIndex The line number
+         * @return The lexer state at the start of the line
+         */
+        int startState(int lineIndex);
+    }
+    
     private final XmlTokenizer tokenizer;
+    private final StateSource stateSource;
     private final TextFlow textFlow;
     private final Text lineNumber;
     private final HBox container;
+    private final TokenSpans spans = new TokenSpans();
+    private final List<Text> tokenNodes = new ArrayList<>(); // Reused across updates
+    private final Text foldMarker;
 
     public XmlLineCell(XmlTokenizer tokenizer) {
+        this(tokenizer, lineIndex -> XmlTokenizer.INITIAL_STATE);
+    }
+    
+    public XmlLineCell(XmlTokenizer tokenizer, StateSource stateSource) {
         this.tokenizer = tokenizer;
+        this.stateSource = stateSource;
         this.textFlow = new TextFlow();
         this.lineNumber = new Text();
         this.lineNumber.getStyleClass().add("line-number");
+        this.foldMarker = new Text();
+        this.foldMarker.getStyleClass().add("fold-marker");
+        this.foldMarker.setTextOrigin(VPos.CENTER);
+        this.foldMarker.setTranslateY(2); // Fine-tune vertical position
         
         // Set cell height to 28px for better vertical spacing
         final int CELL_HEIGHT = 28;
@@ -66,28 +92,66 @@ public class XmlLineCell extends ListCell<String> {
             return;
         }
 
-        // Calculate line number width based on total lines
+        // Rows skip the lines hidden by folds
+        int row = getIndex();
+        int lineIndex = row;
+        int hiddenLines = 0;
+        boolean approximate = false;
         int totalLines = getListView().getItems().size();
+        if (getListView().getItems() instanceof VirtualLineList) {
+            VirtualLineList lines = (VirtualLineList) getListView().getItems();
+            lineIndex = lines.lineAt(row);
+            hiddenLines = lines.hiddenAfter(row);
+            approximate = lines.isApproximate(lineIndex);
+            totalLines = lines.lineCount();
+        }
+        
+        // Calculate line number width based on total lines
         int lineNumberWidth = Math.max(60, String.valueOf(totalLines).length() * 10 + 20);
         lineNumber.setWrappingWidth(lineNumberWidth);
 
-        // Format line number with proper width
+        // Format line number with proper width; "~" marks a number estimated before the line index reached it
         int digitCount = String.valueOf(totalLines).length();
-        String lineNumberFormat = String.format("%%%dd │", digitCount);
-        lineNumber.setText(String.format(lineNumberFormat, getIndex() + 1));
+        String lineNumberFormat = String.format("%%%ds │", digitCount);
+        lineNumber.setText(String.format(lineNumberFormat, (approximate ? "~" : "") + (lineIndex + 1)));
         lineNumber.setStyle("-fx-font-family: 'monospace';");
         
-        textFlow.getChildren().clear();
-        List<XmlTokenizer.Token> tokens = tokenizer.tokenize(line);
+        // Resume from the state the previous line ended in, e.g. inside a comment
+        tokenizer.tokenize(line, stateSource.startState(lineIndex), spans);
         
-        for (XmlTokenizer.Token token : tokens) {
-            Text text = new Text(token.text);
-            text.getStyleClass().add(token.styleClass);
-            text.setTextOrigin(VPos.CENTER);
-            text.setTranslateY(2); // Fine-tune vertical position
-            textFlow.getChildren().add(text);
+        int count = spans.count();
+        for (int i = 0; i < count; i++) {
+            Text text = tokenNode(i);
+            int start = spans.start(i);
+            text.setText(line.substring(start, start + spans.length(i)));
+            String styleClass = XmlTokenizer.styleClass(spans.style(i));
+            if (!text.getStyleClass().contains(styleClass) || text.getStyleClass().size() != 1) {
+                text.getStyleClass().setAll(styleClass);
+            }
+        }
+        foldMarker.setText(hiddenLines > 0 ? " … " + hiddenLines + " lines folded" : "");
+        int children = hiddenLines > 0 ? count + 1 : count;
+        if (textFlow.getChildren().size() != children || (hiddenLines > 0) != textFlow.getChildren().contains(foldMarker)) {
+            List<Text> nodes = new ArrayList<>(tokenNodes.subList(0, count));
+            if (hiddenLines > 0) {
+                nodes.add(foldMarker);
+            }
+            textFlow.getChildren().setAll(nodes);
         }
         
         setGraphic(container);
     }
+    
+    /**
+     * Returns the Text node for a token position, creating it on first use
+     */
+    private Text tokenNode(int index) {
+        while (tokenNodes.size() <= index) {
+            Text text = new Text();
+            text.setTextOrigin(VPos.CENTER);
+            text.setTranslateY(2); // Fine-tune vertical position
+            tokenNodes.add(text);
+        }
+        return tokenNodes.get(index);
+    }
 }
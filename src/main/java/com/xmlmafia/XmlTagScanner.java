@@ -0,0 +1,509 @@
+package com.xmlmafia;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Finds the start and end tags in a stream of file bytes, with their element
+ * names and attributes, skipping comments, CDATA sections, processing
+ * instructions and declarations.
+ * <p>
+ * Bytes are fed in consecutive ranges of any size and the scanner keeps its
+ * state in between, so a file can be scanned buffer by buffer and a scan can
+ * be stopped and resumed at any offset. In ASCII-safe encodings each byte is
+ * taken as one char, as {@link AsciiChars} does, so names and values are
+ * reported as the ISO-8859-1 view of their encoded bytes; in UTF-16 they are
+ * the decoded chars. Entity references are not expanded. Encodings that are
+ * not {@link LineDecoder#isSelfSynchronizing self-synchronizing} cannot be
+ * scanned byte by byte.
+ * <p>
+ * Not thread-safe; each scan uses its own scanner.
+ */
+public class XmlTagScanner {
+    private static final int MAX_NAME_LENGTH = 1024; // Longer names are truncated
+    private static final int MAX_VALUE_LENGTH = 64 * 1024; // Longer attribute values are truncated
+
+    // Scanner states
+    private static final int TEXT = 0;
+    private static final int MARKUP = 1; // After '<'
+    private static final int BANG = 2; // After "<!", deciding between comment, CDATA and declaration
+    private static final int COMMENT = 3;
+    private static final int CDATA = 4;
+    private static final int DECLARATION = 5;
+    private static final int PROCESSING_INSTRUCTION = 6;
+    private static final int START_NAME = 7;
+    private static final int IN_TAG = 8; // Between attributes
+    private static final int ATTRIBUTE_NAME = 9;
+    private static final int AFTER_ATTRIBUTE_NAME = 10;
+    private static final int BEFORE_VALUE = 11;
+    private static final int QUOTED_VALUE = 12;
+    private static final int UNQUOTED_VALUE = 13;
+    private static final int END_NAME = 14;
+    private static final int AFTER_END_NAME = 15;
+    private static final int COMMENT_START = 16; // After "<!-"
+    private static final int CDATA_START = 17; // Inside "<![CDATA["
+    private static final String CDATA_OPENING = "[CDATA[";
+
+    /**
+     * Receives the tags found by a scanner. The scanner's accessors describe
+     * the tag only for the duration of the call.
+     */
+    public interface TagListener {
+        /**
+         * @param scanner The scanner, positioned on a start tag or empty-element tag
+         */
+        void onStartTag(XmlTagScanner scanner);
+
+        /**
+         * @param scanner The scanner, positioned on an end tag
+         */
+        void onEndTag(XmlTagScanner scanner);
+    }
+
+    private final int charWidth;
+    private final boolean bigEndian;
+    private TagListener listener;
+
+    private int state = TEXT;
+    private int matched; // Characters of a terminator, or of "[CDATA[", seen so far
+    private int depth; // Bracket depth inside a declaration
+    private char quote;
+    private int pendingByte = -1; // First byte of a UTF-16 unit split across ranges
+    private long tagStart;
+    private long tagEnd;
+    private boolean emptyElement;
+    private final Chars name = new Chars();
+    private Chars[] attributeNames = new Chars[8];
+    private Chars[] attributeValues = new Chars[8];
+    private int attributeCount;
+
+    /**
+     * @param charset The file encoding; ASCII-compatible or UTF-16
+     * @param listener Receives the tags
+     */
+    public XmlTagScanner(Charset charset, TagListener listener) {
+        boolean utf16 = charset.equals(StandardCharsets.UTF_16LE) || charset.equals(StandardCharsets.UTF_16BE);
+        this.charWidth = utf16 ? 2 : 1;
+        this.bigEndian = charset.equals(StandardCharsets.UTF_16BE);
+        this.listener = listener;
+        for (int i = 0; i < attributeNames.length; i++) {
+            attributeNames[i] = new Chars();
+            attributeValues[i] = new Chars();
+        }
+    }
+
+    /**
+     * @param listener Receives the tags found from now on
+     */
+    public void setListener(TagListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return Whether the scanner is in character data, outside of any markup
+     */
+    public boolean isInText() {
+        return state == TEXT && pendingByte < 0;
+    }
+
+    /**
+     * Scans the next range of the file
+     * @param buffer Holds the bytes
+     * @param from Start of the range in the buffer
+     * @param to End of the range in the buffer
+     * @param fileOffset File offset of the byte at {@code from}
+     */
+    public void scan(byte[] buffer, int from, int to, long fileOffset) {
+        long base = fileOffset - from;
+        int i = from;
+        if (charWidth == 2 && pendingByte >= 0 && i < to) {
+            accept(unit(pendingByte, buffer[i] & 0xFF), base + i - 1);
+            pendingByte = -1;
+            i++;
+        }
+        for (; i + charWidth <= to; i += charWidth) {
+            if (charWidth == 1) {
+                // Character data is skipped up to the next '<' without going through the state machine
+                if (state == TEXT) {
+                    while (i < to && buffer[i] != '<') {
+                        i++;
+                    }
+                    if (i == to) {
+                        break;
+                    }
+                } else if (state == QUOTED_VALUE) {
+                    // Copy the value up to its closing quote in one go
+                    int end = i;
+                    while (end < to && buffer[end] != quote) {
+                        end++;
+                    }
+                    attributeValues[attributeCount - 1].append(buffer, i, end, MAX_VALUE_LENGTH);
+                    i = end;
+                    if (i == to) {
+                        break;
+                    }
+                }
+                accept((char) (buffer[i] & 0xFF), base + i);
+            } else {
+                accept(unit(buffer[i] & 0xFF, buffer[i + 1] & 0xFF), base + i);
+            }
+        }
+        if (i < to) {
+            pendingByte = buffer[i] & 0xFF;
+        }
+    }
+
+    /**
+     * @return File offset of the tag's '&lt;'
+     */
+    public long tagStart() {
+        return tagStart;
+    }
+
+    /**
+     * @return Length of the tag in bytes, up to and including its '&gt;'
+     */
+    public long tagLength() {
+        return tagEnd - tagStart;
+    }
+
+    /**
+     * @return The element name, including any namespace prefix
+     */
+    public CharSequence name() {
+        return name;
+    }
+
+    /**
+     * @return Whether a start tag closes itself, as in {@code <a/>}
+     */
+    public boolean isEmptyElement() {
+        return emptyElement;
+    }
+
+    public int attributeCount() {
+        return attributeCount;
+    }
+
+    /**
+     * @param index Attribute number, 0 <= index < attributeCount()
+     * @return The attribute name
+     */
+    public CharSequence attributeName(int index) {
+        return attributeNames[index];
+    }
+
+    /**
+     * @param index Attribute number, 0 <= index < attributeCount()
+     * @return The attribute value without its quotes, empty if it has none
+     */
+    public CharSequence attributeValue(int index) {
+        return attributeValues[index];
+    }
+
+    private char unit(int first, int second) {
+        return (char) (bigEndian ? first << 8 | second : second << 8 | first);
+    }
+
+    private void accept(char c, long offset) {
+        switch (state) {
+            case TEXT:
+                if (c == '<') {
+                    tagStart = offset;
+                    state = MARKUP;
+                }
+                break;
+
+            case MARKUP:
+                if (c == '/') {
+                    name.clear();
+                    state = END_NAME;
+                } else if (c == '!') {
+                    matched = 0;
+                    state = BANG;
+                } else if (c == '?') {
+                    matched = 0;
+                    state = PROCESSING_INSTRUCTION;
+                } else if (isWhitespace(c) || c == '>' || c == '<') {
+                    // Not markup; a stray '<' in malformed text
+                    state = c == '<' ? MARKUP : TEXT;
+                    tagStart = offset;
+                } else {
+                    name.clear();
+                    name.append(c, MAX_NAME_LENGTH);
+                    attributeCount = 0;
+                    emptyElement = false;
+                    state = START_NAME;
+                }
+                break;
+
+            case BANG:
+                if (c == '-') {
+                    state = COMMENT_START;
+                } else if (c == '[') {
+                    matched = 1;
+                    state = CDATA_START;
+                } else {
+                    startDeclaration(0, c, offset);
+                }
+                break;
+
+            case COMMENT_START:
+                if (c == '-') {
+                    matched = 0;
+                    state = COMMENT;
+                } else {
+                    startDeclaration(0, c, offset);
+                }
+                break;
+
+            case CDATA_START:
+                if (CDATA_OPENING.charAt(matched) == c) {
+                    if (++matched == CDATA_OPENING.length()) {
+                        matched = 0;
+                        state = CDATA;
+                    }
+                } else {
+                    startDeclaration(1, c, offset);
+                }
+                break;
+
+            case COMMENT:
+                if (c == '>' && matched == 2) {
+                    state = TEXT;
+                }
+                matched = c == '-' ? Math.min(matched + 1, 2) : 0;
+                break;
+
+            case CDATA:
+                if (c == '>' && matched == 2) {
+                    state = TEXT;
+                }
+                matched = c == ']' ? Math.min(matched + 1, 2) : 0;
+                break;
+
+            case DECLARATION:
+                if (c == '[') {
+                    depth++;
+                } else if (c == ']') {
+                    depth = Math.max(0, depth - 1);
+                } else if (c == '>' && depth == 0) {
+                    state = TEXT;
+                }
+                break;
+
+            case PROCESSING_INSTRUCTION:
+                if (c == '>' && matched == 1) {
+                    state = TEXT;
+                }
+                matched = c == '?' ? 1 : 0;
+                break;
+
+            case START_NAME:
+                if (isWhitespace(c)) {
+                    state = IN_TAG;
+                } else if (c == '/') {
+                    emptyElement = true;
+                    state = IN_TAG;
+                } else if (c == '>') {
+                    finishStartTag(offset);
+                } else {
+                    name.append(c, MAX_NAME_LENGTH);
+                }
+                break;
+
+            case IN_TAG:
+                if (c == '>') {
+                    finishStartTag(offset);
+                } else if (c == '/') {
+                    emptyElement = true;
+                } else if (!isWhitespace(c) && c != '"' && c != '\'') {
+                    emptyElement = false;
+                    startAttribute(c);
+                }
+                break;
+
+            case ATTRIBUTE_NAME:
+                if (c == '=') {
+                    state = BEFORE_VALUE;
+                } else if (isWhitespace(c)) {
+                    state = AFTER_ATTRIBUTE_NAME;
+                } else if (c == '>') {
+                    finishStartTag(offset);
+                } else if (c == '/') {
+                    emptyElement = true;
+                    state = IN_TAG;
+                } else {
+                    attributeNames[attributeCount - 1].append(c, MAX_NAME_LENGTH);
+                }
+                break;
+
+            case AFTER_ATTRIBUTE_NAME:
+                if (c == '=') {
+                    state = BEFORE_VALUE;
+                } else if (c == '>') {
+                    finishStartTag(offset);
+                } else if (c == '/') {
+                    emptyElement = true;
+                    state = IN_TAG;
+                } else if (!isWhitespace(c)) {
+                    startAttribute(c);
+                }
+                break;
+
+            case BEFORE_VALUE:
+                if (c == '"' || c == '\'') {
+                    quote = c;
+                    state = QUOTED_VALUE;
+                } else if (c == '>') {
+                    finishStartTag(offset);
+                } else if (!isWhitespace(c)) {
+                    attributeValues[attributeCount - 1].append(c, MAX_VALUE_LENGTH);
+                    state = UNQUOTED_VALUE;
+                }
+                break;
+
+            case QUOTED_VALUE:
+                if (c == quote) {
+                    state = IN_TAG;
+                } else {
+                    attributeValues[attributeCount - 1].append(c, MAX_VALUE_LENGTH);
+                }
+                break;
+
+            case UNQUOTED_VALUE:
+                if (c == '>') {
+                    finishStartTag(offset);
+                } else if (isWhitespace(c)) {
+                    state = IN_TAG;
+                } else {
+                    attributeValues[attributeCount - 1].append(c, MAX_VALUE_LENGTH);
+                }
+                break;
+
+            case END_NAME:
+                if (c == '>') {
+                    finishEndTag(offset);
+                } else if (isWhitespace(c)) {
+                    state = AFTER_END_NAME;
+                } else {
+                    name.append(c, MAX_NAME_LENGTH);
+                }
+                break;
+
+            case AFTER_END_NAME:
+                if (c == '>') {
+                    finishEndTag(offset);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Treats the markup as a declaration, continuing with the current char
+     */
+    private void startDeclaration(int openBrackets, char c, long offset) {
+        matched = 0;
+        depth = openBrackets;
+        state = DECLARATION;
+        accept(c, offset);
+    }
+
+    private void startAttribute(char first) {
+        if (attributeCount == attributeNames.length) {
+            Chars[] names = new Chars[attributeCount * 2];
+            Chars[] values = new Chars[attributeCount * 2];
+            System.arraycopy(attributeNames, 0, names, 0, attributeCount);
+            System.arraycopy(attributeValues, 0, values, 0, attributeCount);
+            for (int i = attributeCount; i < names.length; i++) {
+                names[i] = new Chars();
+                values[i] = new Chars();
+            }
+            attributeNames = names;
+            attributeValues = values;
+        }
+        attributeNames[attributeCount].clear();
+        attributeNames[attributeCount].append(first, MAX_NAME_LENGTH);
+        attributeValues[attributeCount].clear();
+        attributeCount++;
+        state = ATTRIBUTE_NAME;
+    }
+
+    private void finishStartTag(long offset) {
+        tagEnd = offset + charWidth;
+        state = TEXT;
+        listener.onStartTag(this);
+    }
+
+    private void finishEndTag(long offset) {
+        tagEnd = offset + charWidth;
+        emptyElement = false;
+        attributeCount = 0;
+        state = TEXT;
+        listener.onEndTag(this);
+    }
+
+    /**
+     * Growable text of a name or value, truncated at a maximum length
+     */
+    private static final class Chars implements CharSequence {
+        private char[] chars = new char[32];
+        private int length;
+
+        void clear() {
+            length = 0;
+        }
+
+        void append(char c, int maxLength) {
+            if (length < maxLength) {
+                ensureCapacity(length + 1);
+                chars[length++] = c;
+            }
+        }
+
+        /**
+         * Appends bytes taken as ISO-8859-1 chars
+         */
+        void append(byte[] bytes, int from, int to, int maxLength) {
+            int count = Math.min(to - from, maxLength - length);
+            if (count > 0) {
+                ensureCapacity(length + count);
+                for (int i = 0; i < count; i++) {
+                    chars[length + i] = (char) (bytes[from + i] & 0xFF);
+                }
+                length += count;
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(capacity, chars.length * 2));
+            }
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+}
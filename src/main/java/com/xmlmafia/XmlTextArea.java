@@ -9,7 +9,6 @@ import javafx.geometry.Pos;
 import javafx.scene.Node;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -71,14 +70,17 @@ public class XmlTextArea extends StackPane {
     private void updateHighlighting(String text) {
         highlightingPane.getChildren().clear();
         String[] lines = text.split("\\R", -1);
+        TokenSpans spans = new TokenSpans();
+        int state = XmlTokenizer.INITIAL_STATE;
         
         for (int i = 0; i < lines.length; i++) {
             String line = lines[i];
-            List<XmlTokenizer.Token> tokens = tokenizer.tokenize(line);
+            state = tokenizer.tokenize(line, state, spans);
             
-            for (XmlTokenizer.Token token : tokens) {
-                Text textNode = new Text(token.text);
-                textNode.getStyleClass().add(token.styleClass);
+            for (int token = 0; token < spans.count(); token++) {
+                int start = spans.start(token);
+                Text textNode = new Text(line.substring(start, start + spans.length(token)));
+                textNode.getStyleClass().add(XmlTokenizer.styleClass(spans.style(token)));
                 highlightingPane.getChildren().add(textNode);
             }
             
@@ -3,10 +3,36 @@ package com.xmlmafia;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Splits lines into styled tokens for syntax highlighting.
+ * <p>
+ * Comments, CDATA sections and tags often span several lines, so a line has
+ * to be lexed starting from the state the previous line ended in. Lexer states
+ * are packed into a small int: the lexer state, whether an attribute
+ * value is open, and how much of a comment or CDATA terminator has been seen.
+ * {@link #INITIAL_STATE} is the state at the start of a document.
+ * <p>
+ * The span API writes tokens into a reusable {@link TokenSpans} buffer and
+ * does not allocate; the {@link Token} API is a convenience built on top.
+ */
 public class XmlTokenizer {
-    private enum State {
-        TEXT, TAG, ATTRIBUTE, COMMENT, CDATA
-    }
+    public static final int INITIAL_STATE = 0;
+    public static final int STYLE_TEXT = 0;
+    public static final int STYLE_TAG = 1;
+    public static final int STYLE_ATTRIBUTE = 2;
+    public static final int STYLE_COMMENT = 3;
+    public static final int STYLE_CDATA = 4;
+    private static final String[] STYLE_CLASSES = {"text", "tag", "attribute", "comment", "cdata"};
+    private static final int STATE_MASK = 0x7;
+    private static final int QUOTED = 0x8; // Inside an attribute value
+    private static final int MATCHED_SHIFT = 4; // Characters of "-->" or "]]>" already seen
+
+    // Lexer states; each doubles as the style of the text lexed in it
+    private static final int TEXT = STYLE_TEXT;
+    private static final int TAG = STYLE_TAG;
+    private static final int ATTRIBUTE = STYLE_ATTRIBUTE;
+    private static final int COMMENT = STYLE_COMMENT;
+    private static final int CDATA = STYLE_CDATA;
 
     public static class Token {
         public final String text;
@@ -18,101 +44,162 @@ public class XmlTokenizer {
         }
     }
 
+    /**
+     * @param style One of the {@code STYLE_} constants
+     * @return The CSS style class for the style
+     */
+    public static String styleClass(int style) {
+        return STYLE_CLASSES[style];
+    }
+
     public List<Token> tokenize(String line) {
-        List<Token> tokens = new ArrayList<>();
-        StringBuilder currentToken = new StringBuilder();
-        State state = State.TEXT;
-        boolean inQuotes = false;
-        
-        for (int i = 0; i < line.length(); i++) {
+        return tokenize(line, INITIAL_STATE);
+    }
+
+    /**
+     * Tokenizes a line that starts in the given lexer state
+     * @param line The line
+     * @param startState The state the previous line ended in
+     * @return The tokens of the line
+     */
+    public List<Token> tokenize(String line, int startState) {
+        TokenSpans spans = new TokenSpans();
+        tokenize(line, startState, spans);
+        List<Token> tokens = new ArrayList<>(spans.count());
+        for (int i = 0; i < spans.count(); i++) {
+            int start = spans.start(i);
+            tokens.add(new Token(line.substring(start, start + spans.length(i)), styleClass(spans.style(i))));
+        }
+        return tokens;
+    }
+
+    /**
+     * Tokenizes a line into spans without allocating
+     * @param line The line
+     * @param startState The state the previous line ended in
+     * @param spans Receives the tokens; previous content is discarded
+     * @return The state the next line starts in
+     */
+    public int tokenize(CharSequence line, int startState, TokenSpans spans) {
+        spans.clear();
+        return lex(line, startState, spans);
+    }
+
+    /**
+     * Lexes a line without producing tokens
+     * @param line The line
+     * @param startState The state the line starts in
+     * @return The state the next line starts in
+     */
+    public int endState(CharSequence line, int startState) {
+        return lex(line, startState, null);
+    }
+
+    private int lex(CharSequence line, int startState, TokenSpans spans) {
+        int state = startState & STATE_MASK;
+        boolean inQuotes = (startState & QUOTED) != 0;
+        int matched = startState >>> MATCHED_SHIFT;
+        int tokenStart = 0;
+        int length = line.length();
+
+        for (int i = 0; i < length; i++) {
             char c = line.charAt(i);
-            
+
             switch (state) {
                 case TEXT:
                     if (c == '<') {
-                        if (currentToken.length() > 0) {
-                            tokens.add(new Token(currentToken.toString(), "text"));
-                            currentToken.setLength(0);
-                        }
-                        currentToken.append(c);
-                        
-                        if (i + 3 < line.length() && line.substring(i, i + 4).equals("<!--")) {
-                            state = State.COMMENT;
+                        emit(spans, tokenStart, i, STYLE_TEXT);
+                        tokenStart = i;
+                        matched = 0;
+
+                        if (startsWith(line, i, "<!--")) {
+                            state = COMMENT;
                             i += 3;
-                            currentToken.append("!--");
-                        } else if (i + 8 < line.length() && line.substring(i, i + 9).equals("<![CDATA[")) {
-                            state = State.CDATA;
+                        } else if (startsWith(line, i, "<![CDATA[")) {
+                            state = CDATA;
                             i += 8;
-                            currentToken.append("![CDATA[");
                         } else {
-                            state = State.TAG;
+                            state = TAG;
                         }
-                    } else {
-                        currentToken.append(c);
                     }
                     break;
-                    
+
                 case TAG:
-                    currentToken.append(c);
-                    if (Character.isWhitespace(c)) {
-                        tokens.add(new Token(currentToken.toString(), "tag"));
-                        currentToken.setLength(0);
-                        state = State.ATTRIBUTE;
+                    if (isWhitespace(c)) {
+                        emit(spans, tokenStart, i + 1, STYLE_TAG);
+                        tokenStart = i + 1;
+                        state = ATTRIBUTE;
                     } else if (c == '>') {
-                        tokens.add(new Token(currentToken.toString(), "tag"));
-                        currentToken.setLength(0);
-                        state = State.TEXT;
+                        emit(spans, tokenStart, i + 1, STYLE_TAG);
+                        tokenStart = i + 1;
+                        state = TEXT;
                     }
                     break;
-                    
+
                 case ATTRIBUTE:
                     if (c == '"') {
-                        currentToken.append(c);
                         inQuotes = !inQuotes;
                         if (!inQuotes) {
-                            tokens.add(new Token(currentToken.toString(), "attribute"));
-                            currentToken.setLength(0);
+                            emit(spans, tokenStart, i + 1, STYLE_ATTRIBUTE);
+                            tokenStart = i + 1;
                         }
                     } else if (c == '>' && !inQuotes) {
-                        if (currentToken.length() > 0) {
-                            tokens.add(new Token(currentToken.toString(), "attribute"));
-                            currentToken.setLength(0);
-                        }
-                        tokens.add(new Token(String.valueOf(c), "tag"));
-                        state = State.TEXT;
-                    } else {
-                        currentToken.append(c);
+                        emit(spans, tokenStart, i, STYLE_ATTRIBUTE);
+                        emit(spans, i, i + 1, STYLE_TAG);
+                        tokenStart = i + 1;
+                        state = TEXT;
                     }
                     break;
-                    
+
                 case COMMENT:
-                    currentToken.append(c);
-                    if (i >= 2 && line.substring(i - 2, i + 1).equals("-->")) {
-                        tokens.add(new Token(currentToken.toString(), "comment"));
-                        currentToken.setLength(0);
-                        state = State.TEXT;
+                    if (c == '>' && matched == 2) {
+                        emit(spans, tokenStart, i + 1, STYLE_COMMENT);
+                        tokenStart = i + 1;
+                        state = TEXT;
                     }
+                    matched = c == '-' ? Math.min(matched + 1, 2) : 0;
                     break;
-                    
+
                 case CDATA:
-                    currentToken.append(c);
-                    if (i >= 2 && line.substring(i - 2, i + 1).equals("]]>")) {
-                        tokens.add(new Token(currentToken.toString(), "cdata"));
-                        currentToken.setLength(0);
-                        state = State.TEXT;
+                    if (c == '>' && matched == 2) {
+                        emit(spans, tokenStart, i + 1, STYLE_CDATA);
+                        tokenStart = i + 1;
+                        state = TEXT;
                     }
+                    matched = c == ']' ? Math.min(matched + 1, 2) : 0;
                     break;
             }
         }
-        
-        if (currentToken.length() > 0) {
-            tokens.add(new Token(currentToken.toString(), 
-                state == State.TEXT ? "text" :
-                state == State.TAG ? "tag" :
-                state == State.ATTRIBUTE ? "attribute" :
-                state == State.COMMENT ? "comment" : "cdata"));
+
+        emit(spans, tokenStart, length, state);
+
+        // The terminator count only matters while inside a comment or CDATA section
+        if (state != COMMENT && state != CDATA) {
+            matched = 0;
+        }
+        return state | (inQuotes ? QUOTED : 0) | matched << MATCHED_SHIFT;
+    }
+
+    private static boolean isWhitespace(char c) {
+        // Printable ASCII, the bulk of tag names, needs no table lookup
+        return (c <= ' ' || c >= 0x7F) && Character.isWhitespace(c);
+    }
+
+    private static boolean startsWith(CharSequence line, int offset, String prefix) {
+        if (offset + prefix.length() > line.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line.charAt(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void emit(TokenSpans spans, int start, int end, int style) {
+        if (spans != null && end > start) {
+            spans.add(start, end, style);
         }
-        
-        return tokens;
     }
 }
@@ -1,5 +1,6 @@
 package com.xmlmafia;
 
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
@@ -11,6 +12,7 @@ import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 import javafx.stage.FileChooser;
+import javafx.util.Duration;
 import javafx.scene.text.Text;
 import java.io.File;
 import javafx.scene.image.ImageView;
@@ -39,6 +41,11 @@ public class XmlViewerApp extends Application {
     private ListView<String> xmlListView;
     private BorderPane root;
     private BooleanProperty isDarkTheme = new SimpleBooleanProperty(false);
+    private static final String[] SEARCH_MODE_NAMES = {"Text", "Regex", "XPath"};
+    private static final SearchEngine.Mode[] SEARCH_MODES = {SearchEngine.Mode.LITERAL, SearchEngine.Mode.REGEX, SearchEngine.Mode.XPATH};
+    private static final Duration TYPING_PAUSE = Duration.millis(250); // Search once typing pauses this long
+    private static final int MIN_TYPED_QUERY_LENGTH = 3; // Shorter queries are searched on Enter only
+    private static final String[] SEARCH_PROMPTS = {"Search text", "Regular expression", "Element path, e.g. //Item[@sku]"};
 
     @Override
     public void start(Stage primaryStage) {
@@ -70,6 +77,30 @@ public class XmlViewerApp extends Application {
         editMenu.getItems().add(findMenuItem);
         menuBar.getMenus().add(editMenu);
         
+        // Navigate menu, moving between elements
+        Menu navigateMenu = new Menu("Navigate");
+        MenuItem matchingTagMenuItem = new MenuItem("Matching Tag");
+        matchingTagMenuItem.setAccelerator(new KeyCodeCombination(KeyCode.M, KeyCombination.CONTROL_DOWN));
+        MenuItem parentMenuItem = new MenuItem("Parent Element");
+        parentMenuItem.setAccelerator(new KeyCodeCombination(KeyCode.LEFT, KeyCombination.ALT_DOWN));
+        MenuItem nextSiblingMenuItem = new MenuItem("Next Sibling");
+        nextSiblingMenuItem.setAccelerator(new KeyCodeCombination(KeyCode.DOWN, KeyCombination.ALT_DOWN));
+        MenuItem previousSiblingMenuItem = new MenuItem("Previous Sibling");
+        previousSiblingMenuItem.setAccelerator(new KeyCodeCombination(KeyCode.UP, KeyCombination.ALT_DOWN));
+        navigateMenu.getItems().addAll(matchingTagMenuItem, parentMenuItem, nextSiblingMenuItem, previousSiblingMenuItem);
+        menuBar.getMenus().add(navigateMenu);
+        
+        // View menu with the outline and folding
+        Menu viewMenu = new Menu("View");
+        CheckMenuItem outlineMenuItem = new CheckMenuItem("Outline");
+        outlineMenuItem.setAccelerator(new KeyCodeCombination(KeyCode.O, KeyCombination.CONTROL_DOWN, KeyCombination.SHIFT_DOWN));
+        MenuItem foldMenuItem = new MenuItem("Fold/Unfold Element");
+        foldMenuItem.setAccelerator(new KeyCodeCombination(KeyCode.MINUS, KeyCombination.CONTROL_DOWN));
+        MenuItem unfoldAllMenuItem = new MenuItem("Unfold All");
+        unfoldAllMenuItem.setAccelerator(new KeyCodeCombination(KeyCode.MINUS, KeyCombination.CONTROL_DOWN, KeyCombination.SHIFT_DOWN));
+        viewMenu.getItems().addAll(outlineMenuItem, new SeparatorMenuItem(), foldMenuItem, unfoldAllMenuItem);
+        menuBar.getMenus().add(viewMenu);
+        
         // Create theme toggle button
         ToggleButton themeToggle = new ToggleButton();
         themeToggle.setTooltip(new Tooltip("Toggle Dark/Light Theme"));
@@ -129,8 +160,20 @@ public class XmlViewerApp extends Application {
         scrollButtons.setPickOnBounds(false);
         centerPane.setPickOnBounds(false);
         
+        // Outline of the elements, shown beside the lines on demand
+        TreeView<String> outline = createOutline();
+        SplitPane splitPane = new SplitPane(centerPane);
+        outlineMenuItem.selectedProperty().addListener((obs, wasShown, isShown) -> {
+            if (isShown) {
+                splitPane.getItems().add(0, outline);
+                splitPane.setDividerPositions(0.25);
+            } else {
+                splitPane.getItems().remove(outline);
+            }
+        });
+        
         root.setTop(topContainer);
-        root.setCenter(centerPane);
+        root.setCenter(splitPane);
         
         Scene scene = new Scene(root, 1200, 800);
         root.getStyleClass().add("light-theme");
@@ -156,6 +199,15 @@ public class XmlViewerApp extends Application {
         // Add find action to menu item
         findMenuItem.setOnAction(e -> showFindDialog(primaryStage));
         
+        // Element moves do nothing until the element index is built
+        matchingTagMenuItem.setOnAction(e -> controller.moveToElement(XmlViewerController.ElementMove.MATCHING_TAG));
+        parentMenuItem.setOnAction(e -> controller.moveToElement(XmlViewerController.ElementMove.PARENT));
+        nextSiblingMenuItem.setOnAction(e -> controller.moveToElement(XmlViewerController.ElementMove.NEXT_SIBLING));
+        previousSiblingMenuItem.setOnAction(e -> controller.moveToElement(XmlViewerController.ElementMove.PREVIOUS_SIBLING));
+        
+        foldMenuItem.setOnAction(e -> controller.toggleFold());
+        unfoldAllMenuItem.setOnAction(e -> controller.unfoldAll());
+        
         // Add scroll button actions
         scrollUpButton.setOnAction(e -> xmlListView.scrollTo(0));
         scrollDownButton.setOnAction(e -> xmlListView.scrollTo(xmlListView.getItems().size() - 1));
@@ -165,6 +217,33 @@ public class XmlViewerApp extends Application {
         primaryStage.show();
     }
     
+    /**
+     * Creates the outline tree, which shows the elements of each document
+     * once its element index is built
+     */
+    private TreeView<String> createOutline() {
+        TreeView<String> outline = new TreeView<>();
+        outline.setShowRoot(false);
+        SplitPane.setResizableWithParent(outline, false);
+        
+        controller.setStructureListener(elements -> outline.setRoot(
+            elements == null ? null : ElementTreeItem.root(elements, controller::elementLabel)));
+        
+        // Jump to the selected element; a "more" node loads the next page of its siblings
+        outline.getSelectionModel().selectedItemProperty().addListener((obs, oldItem, newItem) -> {
+            if (!(newItem instanceof ElementTreeItem)) {
+                return;
+            }
+            ElementTreeItem item = (ElementTreeItem) newItem;
+            if (item.isMore()) {
+                Platform.runLater(() -> ((ElementTreeItem) item.getParent()).showMore(item));
+            } else {
+                controller.showElement(item.element());
+            }
+        });
+        return outline;
+    }
+    
     private void showFindDialog(Stage parentStage) {
         // Create dialog
         Dialog<String> dialog = new Dialog<>();
@@ -197,8 +276,18 @@ public class XmlViewerApp extends Application {
         Label statusLabel = new Label("");
         statusLabel.setMaxWidth(Double.MAX_VALUE);
         
+        Label snippetLabel = new Label("");
+        snippetLabel.setMaxWidth(400);
+        
         CheckBox caseSensitiveCheck = new CheckBox("Case sensitive");
         
+        ChoiceBox<String> modeChoice = new ChoiceBox<>();
+        modeChoice.getItems().addAll(SEARCH_MODE_NAMES);
+        modeChoice.getSelectionModel().select(0);
+        modeChoice.setTooltip(new Tooltip("Text, regular expression, or elements such as /Order/Item[@sku='A1']"));
+        modeChoice.getSelectionModel().selectedIndexProperty().addListener((observable, oldValue, newValue) ->
+            searchField.setPromptText(SEARCH_PROMPTS[newValue.intValue()]));
+        
         grid.add(new Label("Find:"), 0, 0);
         grid.add(searchField, 1, 0);
         
@@ -206,8 +295,12 @@ public class XmlViewerApp extends Application {
         navigationButtons.getChildren().addAll(findPrevButton, findNextButton);
         grid.add(navigationButtons, 2, 0);
         
-        grid.add(caseSensitiveCheck, 1, 1);
+        HBox options = new HBox(10);
+        options.setAlignment(Pos.CENTER_LEFT);
+        options.getChildren().addAll(caseSensitiveCheck, modeChoice);
+        grid.add(options, 1, 1);
         grid.add(statusLabel, 1, 2, 2, 1);
+        grid.add(snippetLabel, 1, 3, 2, 1);
         
         // Enable/Disable find button depending on whether text was entered
         Node findButton = dialog.getDialogPane().lookupButton(findButtonType);
@@ -217,8 +310,32 @@ public class XmlViewerApp extends Application {
             findButton.setDisable(newValue.trim().isEmpty());
         });
         
+        // Search as the query is typed, once typing pauses
+        PauseTransition typingPause = new PauseTransition(TYPING_PAUSE);
+        typingPause.setOnFinished(e -> {
+            String searchText = searchField.getText();
+            if (searchText.length() >= MIN_TYPED_QUERY_LENGTH) {
+                search(searchText, caseSensitiveCheck.isSelected(), modeChoice, null, statusLabel, snippetLabel);
+            }
+        });
+        searchField.textProperty().addListener((observable, oldValue, newValue) -> typingPause.playFromStart());
+        caseSensitiveCheck.selectedProperty().addListener((observable, oldValue, newValue) -> typingPause.playFromStart());
+        modeChoice.getSelectionModel().selectedIndexProperty().addListener((observable, oldValue, newValue) -> typingPause.playFromStart());
+        
         dialog.getDialogPane().setContent(grid);
         
+        // Show matches as the background search streams them in
+        controller.setSearchListener((matches, fraction, done) -> {
+            if (done) {
+                updateSearchStatus(statusLabel, snippetLabel, matches);
+            } else {
+                statusLabel.setText(String.format("%d matches found, searching... %d%%", matches, (int) (fraction * 100)));
+                statusLabel.getStyleClass().removeAll("search-no-results");
+                snippetLabel.setText(controller.currentSearchSnippet());
+            }
+        });
+        dialog.setOnHidden(e -> controller.setSearchListener(null));
+        
         // Request focus on the search field by default
         Platform.runLater(searchField::requestFocus);
         
@@ -226,38 +343,22 @@ public class XmlViewerApp extends Application {
         Button findDialogButton = (Button) findButton;
         findDialogButton.setOnAction(event -> {
             event.consume(); // Prevent default button action (closing dialog)
-            String searchText = searchField.getText();
-            if (!searchText.isEmpty()) {
-                int count = controller.findNext(searchText, caseSensitiveCheck.isSelected());
-                updateSearchStatus(statusLabel, count);
-            }
+            search(searchField.getText(), caseSensitiveCheck.isSelected(), modeChoice, true, statusLabel, snippetLabel);
         });
         
         // Handle the search for navigation buttons
         findNextButton.setOnAction(e -> {
-            String searchText = searchField.getText();
-            if (!searchText.isEmpty()) {
-                int count = controller.findNext(searchText, caseSensitiveCheck.isSelected());
-                updateSearchStatus(statusLabel, count);
-            }
+            search(searchField.getText(), caseSensitiveCheck.isSelected(), modeChoice, true, statusLabel, snippetLabel);
         });
         
         findPrevButton.setOnAction(e -> {
-            String searchText = searchField.getText();
-            if (!searchText.isEmpty()) {
-                int count = controller.findPrevious(searchText, caseSensitiveCheck.isSelected());
-                updateSearchStatus(statusLabel, count);
-            }
+            search(searchField.getText(), caseSensitiveCheck.isSelected(), modeChoice, false, statusLabel, snippetLabel);
         });
         
         // Add keyboard support for Enter key to search
         searchField.setOnKeyPressed(e -> {
             if (e.getCode() == KeyCode.ENTER) {
-                String searchText = searchField.getText();
-                if (!searchText.isEmpty()) {
-                    int count = controller.findNext(searchText, caseSensitiveCheck.isSelected());
-                    updateSearchStatus(statusLabel, count);
-                }
+                search(searchField.getText(), caseSensitiveCheck.isSelected(), modeChoice, true, statusLabel, snippetLabel);
             }
         });
         
@@ -265,12 +366,45 @@ public class XmlViewerApp extends Application {
         dialog.show();
     }
     
-    private void updateSearchStatus(Label statusLabel, int count) {
-        if (count == 0) {
+    /**
+     * @param forward True to move to the next match, false for the previous, null to only start the search
+     */
+    private void search(String searchText, boolean caseSensitive, ChoiceBox<String> modeChoice, Boolean forward,
+                        Label statusLabel, Label snippetLabel) {
+        if (searchText.isEmpty()) {
+            return;
+        }
+        SearchEngine.Mode mode = SEARCH_MODES[modeChoice.getSelectionModel().getSelectedIndex()];
+        try {
+            long count;
+            if (forward == null) {
+                count = controller.search(searchText, caseSensitive, mode);
+            } else if (forward) {
+                count = controller.findNext(searchText, caseSensitive, mode);
+            } else {
+                count = controller.findPrevious(searchText, caseSensitive, mode);
+            }
+            updateSearchStatus(statusLabel, snippetLabel, count);
+        } catch (IllegalArgumentException e) {
+            // A malformed regular expression or path
+            statusLabel.setText("Invalid query: " + e.getMessage().split("\n")[0]);
+            statusLabel.getStyleClass().add("search-no-results");
+            snippetLabel.setText("");
+        }
+    }
+    
+    private void updateSearchStatus(Label statusLabel, Label snippetLabel, long count) {
+        // Snippets are decoded only for the match being shown
+        snippetLabel.setText(controller.currentSearchSnippet());
+        if (count == 0 && controller.isSearchRunning()) {
+            statusLabel.setText("Searching...");
+            statusLabel.getStyleClass().removeAll("search-no-results");
+        } else if (count == 0) {
             statusLabel.setText("No matches found");
             statusLabel.getStyleClass().add("search-no-results");
         } else {
-            statusLabel.setText(count + " matches found");
+            long index = controller.currentSearchIndex();
+            statusLabel.setText(index < 0 ? count + " matches found" : "Match " + (index + 1) + " of " + count);
             statusLabel.getStyleClass().removeAll("search-no-results");
         }
     }
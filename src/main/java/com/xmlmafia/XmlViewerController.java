@@ -1,75 +1,140 @@
 package com.xmlmafia;
 
 import javafx.application.Platform;
+import javafx.scene.Node;
 import javafx.scene.control.ListView;
 import javafx.scene.control.ScrollBar;
 import javafx.geometry.Orientation;
+import javafx.scene.input.MouseEvent;
 import java.io.File;
-import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.io.IOException;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class XmlViewerController {
     private static final Logger logger = LoggerFactory.getLogger(XmlViewerController.class);
     private static final int CHUNK_SIZE = 1024 * 1024; // 1MB chunks
-    private static final int BUFFER_SIZE = 8192;
     private static final int INITIAL_VISIBLE_LINES = 100;
-    private static final int INDEX_INTERVAL = 1000; // Store position every 1000 lines
+    private static final int LINE_INDEX_DENSITY = LineOffsetIndex.DEFAULT_DENSITY; // Store the start of every line
+    private static final long PUBLISH_INTERVAL_MS = 200; // Minimum delay between line count updates while indexing
+    private static final long MIN_TRIGRAM_INDEXED_SIZE = 64L * 1024 * 1024; // Smaller files are searched in full quickly enough
+    private static final boolean TRIGRAM_INDEX_ENABLED = !Boolean.getBoolean("xmlmafia.noTrigramIndex");
+    private static final int SNIPPET_CONTEXT = 60; // Bytes of context shown on each side of a search match
+    private static final int MAX_LABEL_BYTES = 256; // Bytes of a start tag read to describe an element
+    private static final int IO_WORKERS = 4; // Threads for line loads, indexing and search; one is kept for line loads
+    private static final long MAX_YIELD_MS = 50; // Longest pause of indexing or search for each wave while visible lines load
+    private static final String VIEWPORT_LOAD = "viewport"; // Key of the latest viewport load, which replaces queued ones
+    private static final String PREFETCH_LOAD = "prefetch";
+    private static final String READ_AHEAD = "read-ahead";
+    private static final int MAX_INLINE_LEXING_LINES = 16 * 1024; // Lines a line load lexes itself to highlight the lines it shows
+    private static final String LEXER_STATES = "lexer-states"; // Key of the latest lexing of lines far past the lexed part
+    private static final String APPROXIMATE_LOAD = "approximate"; // Key of the latest load of lines past the line index
     
     private final ListView<String> xmlListView;
-    private final ExecutorService executor;
+    private final IoScheduler scheduler;
     private final XmlTokenizer tokenizer;
+    private final LineIndexer lineIndexer;
+    private final LineIndexCache lineIndexCache;
     private final AtomicLong totalLines;
-    private final ObservableList<String> items;
-    private final Map<Integer, Long> linePositionIndex;
-    private final ConcurrentHashMap<Integer, String> lineCache;
-    private final LinkedHashMap<Integer, String> recentLines;
-    private static final int MAX_CACHE_SIZE = 10000;
-    
-    private MappedByteBuffer mappedBuffer;
-    private FileChannel fileChannel;
+    private final AtomicInteger loadGeneration;
+    private final VirtualLineList items;
+    private final LineUpdateBatcher lineUpdates;
+    private final ScrollPrefetcher prefetcher;
+    private final Set<Integer> requestedLines;
+    private final AtomicBoolean requestDrainScheduled;
+    private final LineCache lineCache;
+    
+    private final FileBackend.Factory backendFactory;
+    private volatile XmlDocument document;
+    private volatile LexerStateTable lexerStates;
+    private volatile ApproximateLines approximateLines; // Lines shown past the line index, at estimated numbers
     private volatile boolean isLoading;
+    private boolean thumbDragged; // Set by a drag of the scroll bar thumb until the value it moves is handled
+    private boolean aligningToOffset; // Set while the list scrolls to the line at the thumb's byte offset
+    private volatile int viewportStart;
+    private volatile int viewportEnd = INITIAL_VISIBLE_LINES - 1;
     private long fileSize;
+    private Future<?> indexTask;
+    private volatile Future<?> structureTask;
     
     // Search related fields
-    private final List<SearchResult> searchResults = new ArrayList<>();
-    private final AtomicInteger currentSearchIndex = new AtomicInteger(-1);
+    private volatile SearchResultStore searchResults = new SearchResultStore();
+    private final AtomicLong currentSearchIndex = new AtomicLong(-1);
     private String currentSearchText = "";
     private boolean currentCaseSensitive = false;
-    private Future<?> searchTask;
+    private SearchEngine.Mode currentSearchMode = SearchEngine.Mode.LITERAL;
+    private final SearchEngine searchEngine;
+    private final AtomicInteger searchGeneration = new AtomicInteger(0);
+    private volatile Future<?> searchTask;
+    private volatile SearchEngine.Cancellation searchCancellation; // Stops the running search without interrupting its thread
+    private volatile SearchListener searchListener;
+    private volatile StructureListener structureListener;
+    private volatile FinishedSearch finishedSearch; // The last search that covered the whole file
+    
+    /**
+     * Moves between elements, relative to the element at the selected line
+     */
+    public enum ElementMove {
+        MATCHING_TAG, // From the start tag to the end tag and back
+        PARENT,
+        NEXT_SIBLING,
+        PREVIOUS_SIBLING
+    }
     
     public XmlViewerController(ListView<String> xmlListView) {
+        this(xmlListView, SegmentedFileBackend::open);
+    }
+    
+    public XmlViewerController(ListView<String> xmlListView, FileBackend.Factory backendFactory) {
         this.xmlListView = xmlListView;
-        this.executor = Executors.newFixedThreadPool(2);
+        this.backendFactory = backendFactory;
+        this.scheduler = new IoScheduler(IO_WORKERS);
         this.tokenizer = new XmlTokenizer();
+        this.lineIndexer = new LineIndexer();
+        this.lineIndexCache = new LineIndexCache();
+        this.searchEngine = new SearchEngine();
         this.totalLines = new AtomicLong(0);
-        this.items = FXCollections.observableArrayList();
-        this.linePositionIndex = new HashMap<>();
-        this.lineCache = new ConcurrentHashMap<>();
-        this.recentLines = new LinkedHashMap<Integer, String>(MAX_CACHE_SIZE, 0.75f, true) {
+        this.loadGeneration = new AtomicInteger(0);
+        this.items = new VirtualLineList(new VirtualLineList.LineSource() {
             @Override
-            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
-                return size() > MAX_CACHE_SIZE;
+            public String cachedLine(int index) {
+                String line = lineCache.get(index);
+                if (line == null) {
+                    line = approximateLine(index);
+                }
+                prefetcher.recordLookup(line != null);
+                return line;
             }
-        };
+            
+            @Override
+            public boolean isApproximate(int index) {
+                return approximateLine(index) != null;
+            }
+            
+            @Override
+            public void requestLine(int index) {
+                requestLoad(index);
+            }
+        });
+        this.lineUpdates = new LineUpdateBatcher(items, xmlListView);
+        this.prefetcher = new ScrollPrefetcher();
+        this.requestedLines = ConcurrentHashMap.newKeySet();
+        this.requestDrainScheduled = new AtomicBoolean(false);
+        this.lineCache = new LineCache(LineCache.DEFAULT_MAX_BYTES);
+        this.lexerStates = new LexerStateTable();
         this.xmlListView.setItems(items);
         
         setupListView();
     }
     
     private void setupListView() {
-        xmlListView.setCellFactory(list -> new XmlLineCell(tokenizer));
+        xmlListView.setCellFactory(list -> new XmlLineCell(tokenizer, this::startState));
         
         xmlListView.skinProperty().addListener((obs, oldSkin, newSkin) -> {
             if (newSkin != null) {
@@ -84,168 +149,497 @@ public class XmlViewerController {
     }
     
     private void setupScrollBar(ScrollBar scrollBar) {
+        // The skin consumes the thumb's drag events, so they are seen on their way to it
+        scrollBar.addEventFilter(MouseEvent.MOUSE_DRAGGED, event -> {
+            if (event.getTarget() instanceof Node && ((Node) event.getTarget()).getStyleClass().contains("thumb")) {
+                thumbDragged = true;
+                // A drag that leaves the value unchanged must not mark a later change
+                Platform.runLater(() -> thumbDragged = false);
+            }
+        });
+        
         // Update scroll bar to represent full file size
         scrollBar.valueProperty().addListener((obs, oldVal, newVal) -> {
-            if (!isLoading) {
+            if (!isLoading && !aligningToOffset) {
                 double scrollPosition = newVal.doubleValue();
                 handleScrollChange(scrollPosition);
             }
         });
     }
     
+    /**
+     * Loads the lines around a scroll position. Dragging the thumb maps the
+     * position to a byte offset and scrolls the line there to the top, so a
+     * file with very uneven line lengths scrolls evenly through its bytes;
+     * past the line index the line is estimated and read at its estimated
+     * offset. Other scrolling maps the position to a row.
+     * @param scrollPosition The scroll bar value, 0 at the top and 1 at the bottom
+     */
     private void handleScrollChange(double scrollPosition) {
-        // Calculate the target line based on total lines and scroll position
-        int targetLine = (int) (scrollPosition * totalLines.get());
+        int rows = items.size();
+        int targetRow;
+        XmlDocument current = document;
+        if (thumbDragged && current != null && rows > 0) {
+            thumbDragged = false;
+            long offset = (long) (scrollPosition * current.size());
+            long line = ApproximateLines.lineAt(current, offset, totalLines.get());
+            targetRow = items.rowOf((int) Math.min(line, items.lineCount() - 1));
+            
+            // The list moves by rows; put the row there, ignoring the value change it causes
+            aligningToOffset = true;
+            try {
+                xmlListView.scrollTo(targetRow);
+            } finally {
+                aligningToOffset = false;
+            }
+        } else {
+            // Calculate the target row based on visible rows and scroll position
+            targetRow = (int) (scrollPosition * rows);
+        }
         
         // Ensure we stay within bounds
-        targetLine = Math.max(0, Math.min(targetLine, (int)totalLines.get() - 1));
+        targetRow = Math.max(0, Math.min(targetRow, rows - 1));
         
-        // Load content around the target line
-        int windowSize = 100; // Number of lines to load above and below
-        int startLine = Math.max(0, targetLine - windowSize);
-        int endLine = Math.min((int)totalLines.get() - 1, targetLine + windowSize);
+        // Load content around the target row, skipping folded lines; more ahead the faster the scrolling
+        long now = System.nanoTime();
+        prefetcher.scrolled(targetRow, now);
+        int before = prefetcher.marginBefore(now);
+        int after = prefetcher.marginAfter(now);
+        int startLine = items.lineAt(Math.max(0, targetRow - before));
+        int endLine = items.lineAt(Math.max(0, Math.min(rows - 1, targetRow + after)));
+        
+        // Remember the viewport so it can be filled in as the index grows
+        viewportStart = startLine;
+        viewportEnd = endLine;
         
         loadLinesRange(startLine, endLine);
+        loadApproximateLines(startLine, endLine);
+        
+        // Page in the lines the scrolling reaches next
+        double velocity = prefetcher.velocity(now);
+        if (velocity > 0) {
+            readAhead(endLine + 1, endLine + 1 + after);
+        } else if (velocity < 0) {
+            readAhead(startLine - before, startLine);
+        }
     }
     
-    private void loadLinesRange(int startLine, int endLine) {
-        executor.submit(() -> {
+    /**
+     * Reads the lines of a range that the line index has not reached yet at
+     * their estimated byte offset, so any part of the file shows right away,
+     * under approximate line numbers
+     * @param startLine First line, inclusive
+     * @param endLine Last line, inclusive
+     */
+    private void loadApproximateLines(int startLine, int endLine) {
+        XmlDocument current = document;
+        if (current == null || endLine < current.indexedLines()) {
+            return;
+        }
+        scheduler.submit(IoScheduler.Lane.VISIBLE, APPROXIMATE_LOAD, () -> {
             try {
-                for (int i = startLine; i <= endLine; i++) {
-                    if (!lineCache.containsKey(i)) {
-                        final int index = i;
-                        String line = readLine(index);
-                        if (line != null) {
-                            lineCache.put(index, line);
-                            Platform.runLater(() -> {
-                                if (index < items.size()) {
-                                    items.set(index, line);
-                                }
-                            });
-                        }
-                    }
+                int first = (int) Math.max(startLine, current.indexedLines());
+                ApproximateLines loaded = approximateLines;
+                if (document != current || first > endLine
+                        || (loaded != null && loaded.covers(current, first) && loaded.covers(current, endLine))) {
+                    return;
+                }
+                
+                // Resync to the line after the estimated offset and read on from there
+                long offset = ApproximateLines.estimateOffset(current, first, totalLines.get());
+                List<String> lines = new ArrayList<>();
+                current.readLinesAfter(offset, endLine - first + 1, lines);
+                if (document == current && !lines.isEmpty()) {
+                    approximateLines = new ApproximateLines(current, first, lines);
+                    lineUpdates.linesArrived(first, first + lines.size());
                 }
+            } catch (Exception e) {
+                if (document == current) {
+                    logger.error("Error reading lines " + startLine + " to " + endLine + " at their estimated offset", e);
+                }
+            }
+        });
+    }
+    
+    /**
+     * @param index A line number
+     * @return The line read at an estimated offset, or null if the line is indexed or was not read that way
+     */
+    private String approximateLine(int index) {
+        XmlDocument current = document;
+        ApproximateLines approximate = approximateLines;
+        if (current == null || approximate == null || index < current.indexedLines() || !approximate.covers(current, index)) {
+            return null;
+        }
+        return approximate.get(index);
+    }
+    
+    /**
+     * Hints the OS to page in a range of lines, replacing a queued hint
+     * @param startLine First line, inclusive
+     * @param endLine Last line, exclusive
+     */
+    private void readAhead(int startLine, int endLine) {
+        XmlDocument current = document;
+        if (current == null) {
+            return;
+        }
+        scheduler.submit(IoScheduler.Lane.PREFETCH, READ_AHEAD, () -> {
+            try {
+                current.readAhead(startLine, endLine);
+            } catch (Exception e) {
+                // The document may have been closed by another load meanwhile
+                logger.debug("Read-ahead of lines " + startLine + " to " + endLine + " failed", e);
+            }
+        });
+    }
+    
+    private void loadLinesRange(int startLine, int endLine) {
+        // Only the latest viewport matters; a queued load for an earlier one is dropped
+        scheduler.submit(IoScheduler.Lane.VISIBLE, VIEWPORT_LOAD, () -> {
+            try {
+                loadLines(startLine, endLine + 1, false);
             } catch (Exception e) {
                 logger.error("Error loading lines range: " + startLine + " to " + endLine, e);
             }
         });
     }
     
+    /**
+     * Reads the lines of a range that are not cached yet and queues every
+     * contiguous run of lines that became available for the next frame
+     * @param start First line, inclusive
+     * @param end Last line, exclusive
+     * @param includeCached Also notify for lines that were already cached, e.g. because a cell asked for them before they arrived
+     */
+    private void loadLines(int start, int end, boolean includeCached) {
+        // Lines close to the lexed part are highlighted exactly right away; far ones are
+        // shown from the initial state and redrawn once the lexing catches up
+        LexerStateTable states = lexerStates;
+        if (end - states.checkpointedLines() <= MAX_INLINE_LEXING_LINES) {
+            resolveStartStates(states, start, end);
+        } else {
+            resolveStartStatesLater(states, start, end);
+        }
+        
+        int runStart = -1;
+        for (int i = start; i < end; i++) {
+            boolean available = lineCache.contains(i) ? includeCached : readLine(i) != null;
+            if (available && runStart < 0) {
+                runStart = i;
+            } else if (!available && runStart >= 0) {
+                lineUpdates.linesArrived(runStart, i);
+                runStart = -1;
+            }
+        }
+        if (runStart >= 0) {
+            lineUpdates.linesArrived(runStart, end);
+        }
+    }
+    
+    /**
+     * Lexes forward as far as needed to know the lexer state at the start of
+     * every line in a range
+     * @param states The state table of the current document
+     * @param start First line, inclusive
+     * @param end Last line, exclusive
+     * @return Whether the states of all lines in the range are known
+     */
+    private boolean resolveStartStates(LexerStateTable states, int start, int end) {
+        XmlDocument current = document;
+        if (current == null) {
+            return false;
+        }
+        try {
+            // Stop lexing as soon as another file is loaded
+            return states.resolve(start, end, (firstLine, count, startState, endStates) ->
+                document == current ? current.lexLines(tokenizer, firstLine, count, startState, endStates) : 0);
+        } catch (Exception e) {
+            logger.error("Error resolving lexer states for lines " + start + " to " + end, e);
+            return false;
+        }
+    }
+    
+    /**
+     * Lexes up to a range of lines in the background, replacing a queued
+     * range, and redraws the range once its lexer states are known. Lines
+     * that cannot be read yet are lexed again when the viewport is reloaded.
+     * @param states The state table of the current document
+     * @param start First line, inclusive
+     * @param end Last line, exclusive
+     */
+    private void resolveStartStatesLater(LexerStateTable states, int start, int end) {
+        scheduler.submit(IoScheduler.Lane.HIGHLIGHT, LEXER_STATES, () -> {
+            if (resolveStartStates(states, start, end) && states == lexerStates) {
+                lineUpdates.linesArrived(start, end);
+            }
+        });
+    }
+    
+    /**
+     * Returns the lexer state a line starts in for highlighting. If it is not
+     * known yet, the line is queued so it is redrawn once it has been resolved.
+     * @param index The line number
+     * @return The lexer state, or the initial state while it is unknown
+     */
+    private int startState(int index) {
+        // Lines read past the line index are highlighted from the initial state
+        if (approximateLine(index) != null) {
+            return XmlTokenizer.INITIAL_STATE;
+        }
+        LexerStateTable states = lexerStates;
+        int state = states.startState(index);
+        if (state == LexerStateTable.UNKNOWN) {
+            if (index - states.checkpointedLines() < MAX_INLINE_LEXING_LINES) {
+                requestLoad(index);
+            } else {
+                // Lex the whole viewport the cell belongs to, so its other lines are redrawn too
+                resolveStartStatesLater(states, Math.min(index, viewportStart), Math.max(index, viewportEnd) + 1);
+            }
+            return XmlTokenizer.INITIAL_STATE;
+        }
+        return state;
+    }
+    
+    /**
+     * Queues a line a cell is waiting for. Requests are collected and loaded
+     * together by a single background task.
+     * @param index The line number
+     */
+    private void requestLoad(int index) {
+        if (requestedLines.add(index) && requestDrainScheduled.compareAndSet(false, true)) {
+            scheduler.submit(IoScheduler.Lane.VISIBLE, this::drainRequestedLines);
+        }
+    }
+    
+    private void drainRequestedLines() {
+        requestDrainScheduled.set(false);
+        Integer[] lines = requestedLines.toArray(new Integer[0]);
+        requestedLines.removeAll(Arrays.asList(lines));
+        Arrays.sort(lines);
+        
+        try {
+            // Load consecutive requests as one range
+            int runStart = 0;
+            for (int i = 1; i <= lines.length; i++) {
+                if (i == lines.length || lines[i] != lines[i - 1] + 1) {
+                    loadLines(lines[runStart], lines[i - 1] + 1, true);
+                    runStart = i;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error loading requested lines", e);
+        }
+    }
+    
     public void loadFile(File file) {
         isLoading = true;
+        int generation = loadGeneration.incrementAndGet();
+        if (indexTask != null && !indexTask.isDone()) {
+            indexTask.cancel(true);
+        }
+        if (structureTask != null && !structureTask.isDone()) {
+            structureTask.cancel(true);
+        }
         Platform.runLater(() -> {
-            items.clear();
+            items.setSize(0);
             xmlListView.setItems(null); // Temporarily detach items
         });
         
+        logger.debug("Line cache before loading " + file.getName() + ": " + lineCache);
+        logger.debug("I/O before loading " + file.getName() + ": " + scheduler);
+        logger.debug("Line updates before loading " + file.getName() + ": " + lineUpdates);
+        logger.debug("Prefetch before loading " + file.getName() + ": " + prefetcher);
+        scheduler.clear(IoScheduler.Lane.VISIBLE);
+        scheduler.clear(IoScheduler.Lane.PREFETCH);
+        lineUpdates.clear();
+        prefetcher.reset();
         lineCache.clear();
-        linePositionIndex.clear();
+        XmlDocument previous = document;
+        document = null;
+        approximateLines = null;
+        lexerStates = new LexerStateTable();
+        totalLines.set(0);
+        viewportStart = 0;
+        viewportEnd = INITIAL_VISIBLE_LINES - 1;
         
         // Clear search results when loading a new file
         clearSearchResults();
+        finishedSearch = null;
+        publishElementIndex(generation, null);
         
-        executor.submit(() -> {
+        indexTask = scheduler.submit(IoScheduler.Lane.INDEXING, () -> {
             try {
-                if (fileChannel != null) {
-                    fileChannel.close();
+                if (previous != null) {
+                    previous.close();
                 }
                 
-                fileChannel = new RandomAccessFile(file, "r").getChannel();
-                fileSize = fileChannel.size();
-                mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                XmlDocument opened = XmlDocument.open(file, backendFactory);
+                ensureCurrentLoad(generation, opened);
+                document = opened;
+                fileSize = opened.size();
+                logger.info("Reading " + file.getName() + " as " + opened.decoder().charset());
                 
-                // Build line index and count lines
-                buildLineIndex();
+                // Index the elements alongside the lines
+                structureTask = scheduler.submit(IoScheduler.Lane.INDEXING, () -> buildElementIndex(opened, generation));
                 
-                // Create placeholder items for the entire file
-                Platform.runLater(() -> {
-                    for (int i = 0; i < totalLines.get(); i++) {
-                        items.add(null);
-                    }
-                    xmlListView.setItems(items);
-                });
+                // Reuse a cached index when the file is unchanged since it was last indexed
+                long cachedLines = opened.restoreIndex(lineIndexCache);
+                if (cachedLines >= 0) {
+                    ensureCurrentLoad(generation);
+                    logger.info("Reusing cached line index for " + file.getName() + " (" + cachedLines + " lines)");
+                    publishLineCount(cachedLines);
+                } else {
+                    // Build the line index progressively; the first batch of lines is shown as soon as it is found
+                    long lineCount = buildLineIndex(opened, generation);
+                    opened.storeIndex(lineIndexCache, lineCount);
+                }
                 
-                // Load initial viewport content
-                loadInitialView();
-                isLoading = false;
+                // Searches started before the trigram index is ready scan every block
+                if (TRIGRAM_INDEX_ENABLED && opened.size() >= MIN_TRIGRAM_INDEXED_SIZE) {
+                    ensureCurrentLoad(generation);
+                    opened.loadTrigramIndex(lineIndexCache, ForkJoinPool.commonPool());
+                }
                 
+            } catch (CancellationException e) {
+                logger.debug("Indexing of " + file.getName() + " superseded by a newer load");
             } catch (Exception e) {
-                logger.error("Error loading file: " + file.getName(), e);
-                isLoading = false;
+                if (generation == loadGeneration.get()) {
+                    logger.error("Error loading file: " + file.getName(), e);
+                    isLoading = false;
+                }
             }
         });
     }
     
     private void loadInitialView() {
-        int initialLines = Math.min(INITIAL_VISIBLE_LINES, (int) totalLines.get());
-        
-        for (int i = 0; i < initialLines; i++) {
-            final int index = i;
-            String line = readLine(index);
-            if (line != null) {
-                lineCache.put(index, line);
-                Platform.runLater(() -> {
-                    if (index < items.size()) {
-                        items.set(index, line);
-                    }
-                });
-            }
-        }
+        XmlDocument current = document;
+        int initialLines = current == null ? 0 : (int) Math.min(INITIAL_VISIBLE_LINES, current.indexedLines());
+        loadLines(0, initialLines, false);
     }
     
-    private void buildLineIndex() {
-        long position = 0;
-        long lineCount = 0;
-        byte[] buffer = new byte[BUFFER_SIZE];
-        mappedBuffer.position(0);
+    /**
+     * Scans the file for line starts, publishing the line count as it grows
+     * @param opened The document being loaded
+     * @param generation The load this scan belongs to
+     * @return The number of lines in the file
+     */
+    private long buildLineIndex(XmlDocument opened, int generation) {
+        long[] lastPublished = {0};
         
-        // Store the start position
-        linePositionIndex.put(0, 0L);
+        long lineCount = opened.buildLineIndex(lineIndexer, LINE_INDEX_DENSITY, (scannedBytes, readableLines) -> {
+            ensureCurrentLoad(generation);
+            long now = System.currentTimeMillis();
+            if (scannedBytes < fileSize && now - lastPublished[0] >= PUBLISH_INTERVAL_MS) {
+                lastPublished[0] = now;
+                publishLineCount(estimateTotalLines(scannedBytes, readableLines));
+            }
+            scheduler.awaitVisibleIdle(MAX_YIELD_MS);
+        });
         
-        while (mappedBuffer.hasRemaining()) {
-            int bytesRead = Math.min(mappedBuffer.remaining(), BUFFER_SIZE);
-            mappedBuffer.get(buffer, 0, bytesRead);
-            
-            for (int i = 0; i < bytesRead; i++) {
-                if (buffer[i] == '\n') {
-                    lineCount++;
-                    if (lineCount % INDEX_INTERVAL == 0) {
-                        linePositionIndex.put((int)lineCount, position + i + 1);
-                    }
-                }
+        ensureCurrentLoad(generation);
+        publishLineCount(lineCount);
+        return lineCount;
+    }
+    
+    /**
+     * Scans the file for its elements, for structure navigation
+     * @param opened The document being loaded
+     * @param generation The load this scan belongs to
+     */
+    private void buildElementIndex(XmlDocument opened, int generation) {
+        try {
+            ensureCurrentLoad(generation);
+            if (opened.buildElementIndex(ForkJoinPool.commonPool())) {
+                publishElementIndex(generation, opened.elementIndex());
+            }
+        } catch (CancellationException e) {
+            logger.debug("Element indexing of " + opened.file().getName() + " superseded by a newer load");
+        } catch (OutOfMemoryError e) {
+            // The partial index is garbage once this returns; the lines stay readable without navigation
+            logger.warn("Not enough memory to index the elements of " + opened.file().getName());
+        } catch (Exception e) {
+            // A superseded load's document may be closed while it is being scanned
+            if (generation == loadGeneration.get()) {
+                logger.error("Error indexing elements of " + opened.file().getName(), e);
             }
-            position += bytesRead;
         }
+    }
+    
+    private void publishElementIndex(int generation, ElementIndex elements) {
+        Platform.runLater(() -> {
+            StructureListener listener = structureListener;
+            if (listener != null && generation == loadGeneration.get()) {
+                listener.onElementIndexChanged(elements);
+            }
+        });
+    }
+    
+    private void ensureCurrentLoad(int generation) {
+        if (generation != loadGeneration.get()) {
+            throw new CancellationException();
+        }
+    }
+    
+    /**
+     * Closes a document opened by a load that has been superseded meanwhile
+     */
+    private void ensureCurrentLoad(int generation, XmlDocument opened) throws IOException {
+        if (generation != loadGeneration.get()) {
+            opened.close();
+            throw new CancellationException();
+        }
+    }
+    
+    /**
+     * Extrapolates the total line count from the part of the file scanned so far
+     * @param scannedBytes Length of the scanned prefix
+     * @param newlines Newlines found in the scanned prefix
+     * @return Estimated number of lines in the whole file
+     */
+    private long estimateTotalLines(long scannedBytes, long newlines) {
+        if (scannedBytes >= fileSize || scannedBytes == 0) {
+            return newlines + 1;
+        }
+        return Math.max(newlines + 1, (long) ((double) newlines * fileSize / scannedBytes));
+    }
+    
+    /**
+     * Resizes the placeholder list to a new (estimated or final) line count and
+     * fills in the lines that became readable since the last update
+     * @param lineCount The line count to publish
+     */
+    private void publishLineCount(long lineCount) {
+        totalLines.set(lineCount);
+        int size = (int) Math.min(lineCount, Integer.MAX_VALUE);
+        
+        Platform.runLater(() -> {
+            items.setSize(size);
+            if (xmlListView.getItems() != items) {
+                xmlListView.setItems(items);
+            }
+        });
         
-        totalLines.set(lineCount + 1);
-        mappedBuffer.position(0);
+        if (isLoading) {
+            // First batch: show the start of the file right away
+            loadInitialView();
+            isLoading = false;
+        } else {
+            loadLinesRange(viewportStart, viewportEnd);
+        }
     }
     
     private void prefetchLines(int index) {
-        if (isLoading || index < 0 || index >= items.size()) {
+        if (isLoading || index < 0 || index >= items.lineCount()) {
             return;
         }
         
-        executor.submit(() -> {
+        long now = System.nanoTime();
+        int start = Math.max(0, index - prefetcher.marginBefore(now));
+        int end = Math.min(items.lineCount(), index + prefetcher.marginAfter(now));
+        scheduler.submit(IoScheduler.Lane.PREFETCH, PREFETCH_LOAD, () -> {
             try {
-                int start = Math.max(0, index - 50);
-                int end = Math.min(items.size(), index + 150);
-                
-                for (int i = start; i < end; i++) {
-                    final int lineNum = i;
-                    String currentLine = items.get(lineNum);
-                    if (currentLine == null) {
-                        String line = readLine(lineNum);
-                        if (line != null) {
-                            lineCache.put(lineNum, line);
-                            Platform.runLater(() -> {
-                                if (lineNum < items.size()) {
-                                    items.set(lineNum, line);
-                                }
-                            });
-                        }
-                    }
-                }
+                loadLines(start, end, false);
             } catch (Exception e) {
                 logger.error("Error in prefetch", e);
             }
@@ -259,45 +653,17 @@ public class XmlViewerController {
             return cachedLine;
         }
         
+        XmlDocument current = document;
+        if (current == null) {
+            return null;
+        }
+        
         try {
-            // Find nearest indexed position
-            int indexedLine = lineNumber - (lineNumber % INDEX_INTERVAL);
-            long startPosition = linePositionIndex.getOrDefault(indexedLine, 0L);
-            
-            // Read from the nearest indexed position
-            mappedBuffer.position((int)startPosition);
-            StringBuilder line = new StringBuilder();
-            int currentLine = indexedLine;
-            
-            while (mappedBuffer.hasRemaining() && currentLine <= lineNumber) {
-                char c = (char) mappedBuffer.get();
-                if (c == '\n') {
-                    if (currentLine == lineNumber) {
-                        String result = line.toString();
-                        lineCache.put(lineNumber, result);
-                        synchronized(recentLines) {
-                            recentLines.put(lineNumber, result);
-                        }
-                        return result;
-                    }
-                    currentLine++;
-                    line.setLength(0);
-                } else if (currentLine == lineNumber) {
-                    line.append(c);
-                }
-            }
-            
-            // Handle last line if it doesn't end with newline
-            if (line.length() > 0 && currentLine == lineNumber) {
-                String result = line.toString();
+            String result = current.readLine(lineNumber);
+            if (result != null) {
                 lineCache.put(lineNumber, result);
-                synchronized(recentLines) {
-                    recentLines.put(lineNumber, result);
-                }
-                return result;
             }
-            
-            return null;
+            return result;
         } catch (Exception e) {
             logger.error("Error reading line: " + lineNumber, e);
             return null;
@@ -305,18 +671,40 @@ public class XmlViewerController {
     }
     
     /**
-     * Search class to represent search results
+     * Notified on the FX thread while a search streams in its results
      */
-    private static class SearchResult {
-        final int lineNumber;
-        final int position;
-        final String lineText;
-        
-        SearchResult(int lineNumber, int position, String lineText) {
-            this.lineNumber = lineNumber;
-            this.position = position;
-            this.lineText = lineText;
-        }
+    public interface SearchListener {
+        /**
+         * @param matches Number of matches found so far
+         * @param fraction Part of the searchable file scanned so far, 0 to 1
+         * @param done Whether the search has finished or was stopped
+         */
+        void onSearchProgress(long matches, double fraction, boolean done);
+    }
+    
+    public void setSearchListener(SearchListener listener) {
+        this.searchListener = listener;
+    }
+    
+    /**
+     * Notified on the FX thread when the element index of the document changes
+     */
+    public interface StructureListener {
+        /**
+         * @param elements The element index of the current document, or null while it is being built
+         */
+        void onElementIndexChanged(ElementIndex elements);
+    }
+    
+    public void setStructureListener(StructureListener listener) {
+        this.structureListener = listener;
+    }
+    
+    /**
+     * @return Whether a search is still scanning the file
+     */
+    public boolean isSearchRunning() {
+        return searchTask != null && !searchTask.isDone();
     }
     
     /**
@@ -325,206 +713,467 @@ public class XmlViewerController {
      * @param caseSensitive Whether the search is case sensitive
      * @return The number of matches found
      */
-    public int findNext(String searchText, boolean caseSensitive) {
+    public long findNext(String searchText, boolean caseSensitive) {
+        return findNext(searchText, caseSensitive, SearchEngine.Mode.LITERAL);
+    }
+    
+    /**
+     * Performs a search for the next match of a query
+     * @param searchText The query
+     * @param caseSensitive Whether the search is case sensitive
+     * @param mode How the query is interpreted
+     * @return The number of matches found
+     * @throws IllegalArgumentException If the query is not valid in its mode
+     */
+    public long findNext(String searchText, boolean caseSensitive, SearchEngine.Mode mode) {
         // If search parameters changed, restart search
-        if (!searchText.equals(currentSearchText) || caseSensitive != currentCaseSensitive) {
-            return startNewSearch(searchText, caseSensitive);
+        if (isNewSearch(searchText, caseSensitive, mode)) {
+            return startNewSearch(searchText, caseSensitive, mode);
         }
         
         // If we have results, move to next one
-        if (!searchResults.isEmpty()) {
-            int nextIndex = currentSearchIndex.get() + 1;
-            if (nextIndex >= searchResults.size()) {
+        SearchResultStore results = searchResults;
+        long count = results.size();
+        if (count > 0) {
+            long nextIndex = currentSearchIndex.get() + 1;
+            if (nextIndex >= count) {
                 nextIndex = 0; // Wrap around
             }
             currentSearchIndex.set(nextIndex);
-            navigateToSearchResult(searchResults.get(nextIndex));
-            return searchResults.size();
+            navigateToSearchResult(results, nextIndex);
+            return count;
         }
         
         return 0;
     }
     
+    /**
+     * Starts a search unless the query is already the current one, without
+     * moving to another match; for searching while the query is typed
+     * @param searchText The query
+     * @param caseSensitive Whether the search is case sensitive
+     * @param mode How the query is interpreted
+     * @return The number of matches found so far
+     * @throws IllegalArgumentException If the query is not valid in its mode
+     */
+    public long search(String searchText, boolean caseSensitive, SearchEngine.Mode mode) {
+        if (isNewSearch(searchText, caseSensitive, mode)) {
+            return startNewSearch(searchText, caseSensitive, mode);
+        }
+        return searchResults.size();
+    }
+    
     /**
      * Performs a search for the previous occurrence of text
      * @param searchText The text to search for
      * @param caseSensitive Whether the search is case sensitive
      * @return The number of matches found
      */
-    public int findPrevious(String searchText, boolean caseSensitive) {
+    public long findPrevious(String searchText, boolean caseSensitive) {
+        return findPrevious(searchText, caseSensitive, SearchEngine.Mode.LITERAL);
+    }
+    
+    /**
+     * Performs a search for the previous match of a query
+     * @param searchText The query
+     * @param caseSensitive Whether the search is case sensitive
+     * @param mode How the query is interpreted
+     * @return The number of matches found
+     * @throws IllegalArgumentException If the query is not valid in its mode
+     */
+    public long findPrevious(String searchText, boolean caseSensitive, SearchEngine.Mode mode) {
         // If search parameters changed, restart search
-        if (!searchText.equals(currentSearchText) || caseSensitive != currentCaseSensitive) {
-            return startNewSearch(searchText, caseSensitive);
+        if (isNewSearch(searchText, caseSensitive, mode)) {
+            return startNewSearch(searchText, caseSensitive, mode);
         }
         
         // If we have results, move to previous one
-        if (!searchResults.isEmpty()) {
-            int prevIndex = currentSearchIndex.get() - 1;
-            if (prevIndex < 0) {
-                prevIndex = searchResults.size() - 1; // Wrap around
+        SearchResultStore results = searchResults;
+        long count = results.size();
+        if (count > 0) {
+            long prevIndex = currentSearchIndex.get() - 1;
+            if (prevIndex < 0 || prevIndex >= count) {
+                prevIndex = count - 1; // Wrap around
             }
             currentSearchIndex.set(prevIndex);
-            navigateToSearchResult(searchResults.get(prevIndex));
-            return searchResults.size();
+            navigateToSearchResult(results, prevIndex);
+            return count;
         }
         
         return 0;
     }
     
+    /**
+     * @return The position of the current match among all matches, or -1 if there is none
+     */
+    public long currentSearchIndex() {
+        return currentSearchIndex.get();
+    }
+    
+    /**
+     * Decodes the text around the current match for display
+     * @return The snippet, or an empty string if there is no current match
+     */
+    public String currentSearchSnippet() {
+        XmlDocument current = document;
+        SearchResultStore results = searchResults;
+        long index = currentSearchIndex.get();
+        if (current == null || index < 0 || index >= results.size()) {
+            return "";
+        }
+        try {
+            return current.snippet(results.offset(index), results.length(index), SNIPPET_CONTEXT);
+        } catch (Exception e) {
+            logger.error("Error reading search result snippet", e);
+            return "";
+        }
+    }
+    
+    private boolean isNewSearch(String searchText, boolean caseSensitive, SearchEngine.Mode mode) {
+        return !searchText.equals(currentSearchText) || caseSensitive != currentCaseSensitive || mode != currentSearchMode;
+    }
+    
     /**
      * Starts a new search operation
-     * @param searchText The text to search for
+     * @param searchText The query
      * @param caseSensitive Whether the search is case sensitive
-     * @return Currently found results count (may increase as background search completes)
+     * @param mode How the query is interpreted
+     * @return Currently found results count (increases as the background search streams in results)
      */
-    private int startNewSearch(String searchText, boolean caseSensitive) {
-        // Cancel any existing search task
-        if (searchTask != null && !searchTask.isDone()) {
-            searchTask.cancel(true);
-        }
-        
+    private long startNewSearch(String searchText, boolean caseSensitive, SearchEngine.Mode mode) {
         clearSearchResults();
         
+        // Report a malformed query to the caller rather than from the search thread
+        SearchEngine.validate(searchText, mode);
+        
         currentSearchText = searchText;
         currentCaseSensitive = caseSensitive;
+        currentSearchMode = mode;
         
-        // First search in visible/cached content immediately
-        searchInVisibleContent(searchText, caseSensitive);
-        
-        // Then start background search for the entire file
-        startBackgroundSearch(searchText, caseSensitive);
-        
-        // If we found any results, navigate to the first one
-        if (!searchResults.isEmpty()) {
-            currentSearchIndex.set(0);
-            navigateToSearchResult(searchResults.get(0));
-            return searchResults.size();
+        XmlDocument current = document;
+        if (current != null) {
+            startBackgroundSearch(current, searchText, caseSensitive, mode);
         }
-        
         return 0;
     }
     
     /**
-     * Clears all search results
+     * Clears all search results and stops a running search
      */
     private void clearSearchResults() {
-        searchResults.clear();
+        searchGeneration.incrementAndGet();
+        // An interrupt would stop reads of the file in the search thread; the search checks the flag instead
+        SearchEngine.Cancellation cancellation = searchCancellation;
+        if (cancellation != null) {
+            cancellation.cancel();
+        }
+        if (searchTask != null && !searchTask.isDone()) {
+            searchTask.cancel(false);
+        }
+        searchResults = new SearchResultStore();
         currentSearchIndex.set(-1);
         currentSearchText = "";
     }
     
     /**
-     * Search in the currently visible/cached content for immediate results
-     * @param searchText The text to search for
-     * @param caseSensitive Whether the search is case sensitive
+     * All matches of a query in a document, kept so that a longer query can be
+     * checked against them instead of scanning the file again
      */
-    private void searchInVisibleContent(String searchText, boolean caseSensitive) {
-        // Create pattern with case sensitivity option
-        Pattern pattern = Pattern.compile(Pattern.quote(searchText), 
-                                         caseSensitive ? 0 : Pattern.CASE_INSENSITIVE);
+    private static final class FinishedSearch {
+        final XmlDocument document;
+        final String text;
+        final boolean caseSensitive;
+        final SearchEngine.Mode mode;
+        final SearchResultStore results;
         
-        // Search in cached lines first for immediate results
-        synchronized(lineCache) {
-            for (Map.Entry<Integer, String> entry : lineCache.entrySet()) {
-                int lineNumber = entry.getKey();
-                String lineText = entry.getValue();
-                
-                Matcher matcher = pattern.matcher(lineText);
-                while (matcher.find()) {
-                    searchResults.add(new SearchResult(lineNumber, matcher.start(), lineText));
-                }
-            }
+        FinishedSearch(XmlDocument document, String text, boolean caseSensitive, SearchEngine.Mode mode, SearchResultStore results) {
+            this.document = document;
+            this.text = text;
+            this.caseSensitive = caseSensitive;
+            this.mode = mode;
+            this.results = results;
         }
         
-        // Sort results by line number
-        searchResults.sort(Comparator.comparingInt(r -> r.lineNumber));
+        /**
+         * @return Whether a new literal search can be answered from these matches
+         */
+        boolean isRefinedBy(XmlDocument current, String searchText, boolean caseSensitive, SearchEngine.Mode mode) {
+            return document == current && mode == SearchEngine.Mode.LITERAL && this.mode == SearchEngine.Mode.LITERAL
+                && this.caseSensitive == caseSensitive && SearchEngine.canRefine(text, searchText, caseSensitive);
+        }
     }
     
     /**
-     * Start a background task to search the entire file
-     * @param searchText The text to search for
+     * Start a background task that scans the whole file and streams matches
+     * to the FX thread as each batch of chunks is searched. A query extending
+     * the previous finished one, as while typing, only checks the previous matches.
+     * @param current The document to search
+     * @param searchText The query
      * @param caseSensitive Whether the search is case sensitive
+     * @param mode How the query is interpreted
      */
-    private void startBackgroundSearch(String searchText, boolean caseSensitive) {
-        // Create a set of lines we've already searched in the visible content
-        Set<Integer> searchedLines = new HashSet<>();
-        for (SearchResult result : searchResults) {
-            searchedLines.add(result.lineNumber);
-        }
-        
-        // Start background search task for the rest of the file
-        searchTask = executor.submit(() -> {
+    private void startBackgroundSearch(XmlDocument current, String searchText, boolean caseSensitive, SearchEngine.Mode mode) {
+        int generation = searchGeneration.get();
+        SearchResultStore results = searchResults;
+        FinishedSearch previous = finishedSearch;
+        boolean refine = previous != null && previous.isRefinedBy(current, searchText, caseSensitive, mode);
+        SearchEngine.Cancellation cancellation = new SearchEngine.Cancellation();
+        searchCancellation = cancellation;
+        searchTask = scheduler.submit(IoScheduler.Lane.SEARCH, () -> {
             try {
-                Pattern pattern = Pattern.compile(Pattern.quote(searchText), 
-                                                 caseSensitive ? 0 : Pattern.CASE_INSENSITIVE);
-                List<SearchResult> newResults = new ArrayList<>();
-                
-                // Search remaining lines (not already searched in visible content)
-                for (int i = 0; i < totalLines.get(); i++) {
-                    // Skip already searched lines
-                    if (searchedLines.contains(i)) {
-                        continue;
+                // Results cover the whole file only if it was fully indexed when the search started
+                boolean wholeFile = current.indexedBytes() == current.size();
+                SearchEngine.MatchSink sink = (offsets, lengths, lines, count) -> {
+                    boolean first = results.isEmpty();
+                    for (int i = 0; i < count; i++) {
+                        results.add(offsets[i], lengths[i]);
                     }
                     
-                    // Read the line (uses our efficient line reading approach)
-                    String line = readLine(i);
-                    if (line != null) {
-                        Matcher matcher = pattern.matcher(line);
-                        while (matcher.find()) {
-                            newResults.add(new SearchResult(i, matcher.start(), line));
-                        }
+                    // Jump to the first match as soon as it is found
+                    if (first) {
+                        Platform.runLater(() -> {
+                            if (generation == searchGeneration.get() && currentSearchIndex.compareAndSet(-1, 0)) {
+                                navigateToSearchResult(results, 0);
+                            }
+                        });
                     }
-                    
-                    // Check if search was cancelled
-                    if (Thread.currentThread().isInterrupted()) {
-                        return;
-                    }
-                }
+                };
+                SearchEngine.ProgressListener progress = (scannedBytes, totalBytes, matches) -> {
+                    double fraction = totalBytes == 0 ? 1 : (double) scannedBytes / totalBytes;
+                    publishSearchProgress(generation, fraction, false);
+                    scheduler.awaitVisibleIdle(MAX_YIELD_MS);
+                };
                 
-                // Add new results to the list
-                if (!newResults.isEmpty()) {
-                    Platform.runLater(() -> {
-                        searchResults.addAll(newResults);
-                        // Sort results by line number
-                        searchResults.sort(Comparator.comparingInt(r -> r.lineNumber));
-                        
-                        // If this is the first result, navigate to it
-                        if (searchResults.size() == newResults.size() && !searchResults.isEmpty()) {
-                            currentSearchIndex.set(0);
-                            navigateToSearchResult(searchResults.get(0));
-                        }
-                    });
+                if (refine) {
+                    searchEngine.refine(current, previous.text, previous.results, searchText, caseSensitive, cancellation, sink, progress);
+                } else {
+                    searchEngine.search(current, searchText, mode, caseSensitive, cancellation, sink, progress);
                 }
+                if (wholeFile && !cancellation.isCancelled()) {
+                    finishedSearch = new FinishedSearch(current, searchText, caseSensitive, mode, results);
+                }
+                logger.info("Search results for \"" + searchText + "\" hold " + results.size() + " matches in "
+                    + results.memoryBytes() + " bytes");
             } catch (Exception e) {
                 logger.error("Error in background search", e);
+            } finally {
+                publishSearchProgress(generation, 1, true);
+            }
+        });
+    }
+    
+    /**
+     * Reports the search progress to the listener after the results delivered so far
+     */
+    private void publishSearchProgress(int generation, double fraction, boolean done) {
+        Platform.runLater(() -> {
+            SearchListener listener = searchListener;
+            if (generation == searchGeneration.get() && listener != null) {
+                listener.onSearchProgress(searchResults.size(), fraction, done);
             }
         });
     }
     
     /**
      * Navigate to a specific search result
-     * @param result The search result to navigate to
+     * @param results The results of the search
+     * @param index The number of the result to navigate to
+     */
+    private void navigateToSearchResult(SearchResultStore results, long index) {
+        XmlDocument current = document;
+        if (current == null) {
+            return;
+        }
+        showLine((int) current.lineOf(results.offset(index), 0));
+    }
+    
+    /**
+     * Moves the selection from the element at the selected line, or at the
+     * first line if none is selected
+     * @param move Where to move
+     * @return Whether the selection moved; false while the element index is
+     * being built or if there is no such element
+     */
+    public boolean moveToElement(ElementMove move) {
+        XmlDocument current = document;
+        ElementIndex elements = current == null ? null : current.elementIndex();
+        int line = selectedLine();
+        if (elements == null || line >= current.indexedLines()) {
+            return false;
+        }
+        int element = elementOnLine(current, elements, line);
+        if (element < 0) {
+            return false;
+        }
+        
+        long target;
+        switch (move) {
+            case MATCHING_TAG:
+                long start = elements.start(element);
+                long end = elements.end(element);
+                if (end < 0) {
+                    return false;
+                }
+                target = current.lineOf(start, 0) == line ? end - 1 : start;
+                break;
+            case PARENT:
+                int parent = elements.parent(element);
+                target = parent < 0 ? -1 : elements.start(parent);
+                break;
+            case NEXT_SIBLING:
+                int next = elements.nextSibling(element);
+                target = next < 0 ? -1 : elements.start(next);
+                break;
+            case PREVIOUS_SIBLING:
+                int previous = elements.previousSibling(element);
+                target = previous < 0 ? -1 : elements.start(previous);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown move: " + move);
+        }
+        if (target < 0 || target >= current.indexedBytes()) {
+            return false;
+        }
+        showLine((int) current.lineOf(target, 0));
+        return true;
+    }
+    
+    /**
+     * Scrolls to the start tag of an element, e.g. one picked in the outline
+     * @param element An element of the current document's index
+     * @return Whether the element's line could be shown
      */
-    private void navigateToSearchResult(SearchResult result) {
+    public boolean showElement(int element) {
+        XmlDocument current = document;
+        ElementIndex elements = current == null ? null : current.elementIndex();
+        if (elements == null || element < 0 || element >= elements.size()) {
+            return false;
+        }
+        long start = elements.start(element);
+        if (start >= current.indexedBytes()) {
+            return false;
+        }
+        showLine((int) current.lineOf(start, 0));
+        return true;
+    }
+    
+    /**
+     * Describes an element for the outline by its start tag, shortened
+     * @param element An element of the current document's index
+     * @return The start tag, or an empty string if it cannot be read
+     */
+    public String elementLabel(int element) {
+        XmlDocument current = document;
+        ElementIndex elements = current == null ? null : current.elementIndex();
+        if (elements == null) {
+            return "";
+        }
+        try {
+            long start = elements.start(element);
+            long end = elements.end(element) < 0 ? current.size() : elements.end(element);
+            String tag = current.decoder().decodeLine(current.backend(), start, Math.min(end, start + MAX_LABEL_BYTES));
+            int close = tag.indexOf('>');
+            return (close >= 0 ? tag.substring(0, close + 1) : tag + "…").replaceAll("\\s+", " ");
+        } catch (Exception e) {
+            logger.error("Error reading element " + element, e);
+            return elements.nameOf(element);
+        }
+    }
+    
+    /**
+     * Folds the lines of the element at the selected line, or unfolds them if
+     * the line starts a fold. An element on a single line folds its parent.
+     * @return Whether the folds changed; false while the element index is being built
+     */
+    public boolean toggleFold() {
+        XmlDocument current = document;
+        ElementIndex elements = current == null ? null : current.elementIndex();
+        int line = selectedLine();
+        if (items.unfold(line)) {
+            return true;
+        }
+        if (elements == null || line >= current.indexedLines()) {
+            return false;
+        }
+        for (int element = elementOnLine(current, elements, line); element >= 0; element = elements.parent(element)) {
+            long end = elements.end(element);
+            if (end < 0 || end > current.indexedBytes()) {
+                return false;
+            }
+            int startLine = (int) current.lineOf(elements.start(element), 0);
+            int endLine = (int) current.lineOf(end - 1, startLine);
+            if (endLine > startLine) {
+                int row = items.rowOf(startLine);
+                boolean folded = items.fold(startLine, endLine + 1);
+                xmlListView.getSelectionModel().select(row);
+                xmlListView.getFocusModel().focus(row);
+                return folded;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Shows all folded lines again
+     */
+    public void unfoldAll() {
+        int line = selectedLine();
+        items.unfoldAll();
+        showLine(line);
+    }
+    
+    /**
+     * @return The line of the selected row, or the first line if no row is selected
+     */
+    private int selectedLine() {
+        int row = xmlListView.getSelectionModel().getSelectedIndex();
+        return row < 0 || row >= items.size() ? 0 : items.lineAt(row);
+    }
+    
+    /**
+     * @return The first element starting on a line, or else the innermost one enclosing the line
+     */
+    private int elementOnLine(XmlDocument current, ElementIndex elements, int line) {
+        long lineStart = current.lineStart(line);
+        long lineEnd = line + 1 < current.indexedLines() ? current.lineStart(line + 1) : current.size();
+        int first = elements.firstStartingAtOrAfter(lineStart);
+        if (first >= 0 && elements.start(first) < lineEnd) {
+            return first;
+        }
+        return elements.elementAt(lineStart);
+    }
+    
+    /**
+     * Scrolls to a line and selects it
+     * @param lineNumber The line to show
+     */
+    private void showLine(int lineNumber) {
+        // A folded line is unfolded to give it a row
+        items.reveal(lineNumber);
+        int row = items.rowOf(lineNumber);
+        
         // Scroll to the line
-        xmlListView.scrollTo(result.lineNumber);
+        xmlListView.scrollTo(row);
         
         // Ensure line is loaded and visible
-        prefetchLines(result.lineNumber);
+        prefetchLines(lineNumber);
         
         // Select the item in the list
-        xmlListView.getSelectionModel().select(result.lineNumber);
-        xmlListView.getFocusModel().focus(result.lineNumber);
+        xmlListView.getSelectionModel().select(row);
+        xmlListView.getFocusModel().focus(row);
     }
     
     public void shutdown() {
-        executor.shutdown();
+        logger.debug("I/O at shutdown: " + scheduler);
+        logger.debug("Line updates at shutdown: " + lineUpdates);
+        logger.debug("Prefetch at shutdown: " + prefetcher);
+        scheduler.shutdown();
         try {
-            if (fileChannel != null) {
-                fileChannel.close();
+            if (document != null) {
+                document.close();
             }
         } catch (Exception e) {
-            logger.error("Error closing file channel", e);
+            logger.error("Error closing document", e);
         }
     }
 }
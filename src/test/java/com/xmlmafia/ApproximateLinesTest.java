@@ -0,0 +1,60 @@
+package com.xmlmafia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ApproximateLinesTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void mapsOffsetsToLinesByBytesRatherThanLineCount() throws IOException {
+        // One long line between short ones: its bytes take most of the scroll range
+        StringBuilder xml = new StringBuilder("<root>\n<a/>\n<long>");
+        for (int i = 0; i < 1000; i++) {
+            xml.append("text ");
+        }
+        xml.append("</long>\n<b/>\n</root>");
+        String text = xml.toString();
+        try (XmlDocument document = open(text)) {
+            long lines = document.indexedLines();
+            assertEquals(5, lines);
+            assertEquals(0, ApproximateLines.lineAt(document, 0, lines));
+            assertEquals(1, ApproximateLines.lineAt(document, text.indexOf("<a/>"), lines));
+            assertEquals(2, ApproximateLines.lineAt(document, text.length() / 2, lines));
+            assertEquals(2, ApproximateLines.lineAt(document, text.indexOf("</long>"), lines));
+            assertEquals(3, ApproximateLines.lineAt(document, text.indexOf("<b/>"), lines));
+            assertEquals(4, ApproximateLines.lineAt(document, text.length() - 1, lines));
+            // The bottom of the scroll bar is the end of the file
+            assertEquals(4, ApproximateLines.lineAt(document, text.length(), lines));
+        }
+    }
+
+    @Test
+    void estimatesLinesPastTheIndexAsInverseOfOffsets() throws IOException {
+        try (XmlDocument document = open("")) {
+            assertEquals(0, ApproximateLines.lineAt(document, 0, 1));
+        }
+        String text = "<a/>\n<b/>\n<c/>\n";
+        try (XmlDocument document = open(text)) {
+            // Past the index, lines are estimated; with nothing left to index the last line is exact
+            assertEquals(3, ApproximateLines.lineAt(document, text.length(), 4));
+            assertEquals(text.length(), ApproximateLines.estimateOffset(document, 3, 4));
+        }
+    }
+
+    private XmlDocument open(String xml) throws IOException {
+        File file = Files.createTempFile(directory, "lines", ".xml").toFile();
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        XmlDocument document = XmlDocument.open(file, SegmentedFileBackend::open);
+        document.buildLineIndex(new LineIndexer(), 1, null);
+        return document;
+    }
+}
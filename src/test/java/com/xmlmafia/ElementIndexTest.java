@@ -0,0 +1,112 @@
+package com.xmlmafia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ElementIndexTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void linksParentsAndSiblings() throws IOException {
+        String xml = "<root>\n  <a id=\"1\"><b/><c>text</c></a>\n  <d/>\n</root>\n";
+        try (XmlDocument document = open(xml)) {
+            ElementIndex elements = document.elementIndex();
+            assertEquals(5, elements.size());
+            int root = 0;
+            int a = 1;
+            int b = 2;
+            int c = 3;
+            int d = 4;
+            assertEquals("a", elements.name(a));
+            assertEquals(xml.indexOf("<a"), elements.start(a));
+            assertEquals(xml.indexOf("</a>") + 4, elements.end(a));
+            assertEquals(xml.indexOf("<b/>") + 4, elements.end(b));
+
+            assertEquals(-1, elements.parent(root));
+            assertEquals(root, elements.parent(a));
+            assertEquals(a, elements.parent(b));
+            assertEquals(a, elements.parent(c));
+            assertEquals(root, elements.parent(d));
+            assertEquals(2, elements.depth(c));
+
+            assertEquals(d, elements.nextSibling(a));
+            assertEquals(c, elements.nextSibling(b));
+            assertEquals(-1, elements.nextSibling(c));
+            assertEquals(-1, elements.nextSibling(d));
+            assertEquals(a, elements.previousSibling(d));
+            assertEquals(b, elements.previousSibling(c));
+            assertEquals(-1, elements.previousSibling(b));
+            assertEquals(-1, elements.previousSibling(root));
+
+            assertEquals(c, elements.elementAt(xml.indexOf("text")));
+            assertEquals(root, elements.elementAt(xml.indexOf("<d/>") - 1));
+        }
+    }
+
+    @Test
+    void ignoresStrayEndTag() throws IOException {
+        String xml = "<root><a></x><b/></a><c/></root>";
+        try (XmlDocument document = open(xml)) {
+            ElementIndex elements = document.elementIndex();
+            int root = 0;
+            int a = 1;
+            int b = 2;
+            int c = 3;
+            assertEquals(a, elements.parent(b));
+            assertEquals(xml.indexOf("</a>") + 4, elements.end(a));
+            assertEquals(root, elements.parent(c));
+            assertEquals(1, elements.depth(c));
+            assertEquals(c, elements.nextSibling(a));
+            assertEquals(a, elements.previousSibling(c));
+            assertEquals(xml.length(), elements.end(root));
+        }
+    }
+
+    @Test
+    void endsUnclosedElementsAtTheirParentsEndTag() throws IOException {
+        String xml = "<root><a><b>text</a><c/></root>";
+        try (XmlDocument document = open(xml)) {
+            ElementIndex elements = document.elementIndex();
+            int root = 0;
+            int a = 1;
+            int b = 2;
+            int c = 3;
+            assertEquals(xml.indexOf("</a>"), elements.end(b));
+            assertEquals(xml.indexOf("</a>") + 4, elements.end(a));
+            assertEquals(root, elements.parent(c));
+            assertEquals(c, elements.nextSibling(a));
+            assertEquals(-1, elements.nextSibling(b));
+            assertEquals(root, elements.elementAt(xml.indexOf("<c/>") + 4));
+            assertEquals(xml.length(), elements.end(root));
+        }
+    }
+
+    @Test
+    void leavesElementsOpenAtEndOfFileWithoutEnd() throws IOException {
+        String xml = "<root><a/><b>";
+        try (XmlDocument document = open(xml)) {
+            ElementIndex elements = document.elementIndex();
+            assertEquals(3, elements.size());
+            assertEquals(-1, elements.end(0));
+            assertEquals(-1, elements.end(2));
+            assertEquals(2, elements.nextSibling(1));
+        }
+    }
+
+    private XmlDocument open(String xml) throws IOException {
+        File file = Files.createTempFile(directory, "elements", ".xml").toFile();
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        XmlDocument document = XmlDocument.open(file, SegmentedFileBackend::open);
+        document.buildElementIndex(ForkJoinPool.commonPool());
+        return document;
+    }
+}
@@ -0,0 +1,95 @@
+package com.xmlmafia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.core.read.ListAppender;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+class IoSchedulerTest {
+    private final Logger logger = (Logger) LoggerFactory.getLogger(IoScheduler.class);
+    private final ListAppender<ILoggingEvent> appender = new ListAppender<>();
+    private IoScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        appender.start();
+        logger.addAppender(appender);
+        scheduler = new IoScheduler(2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdown();
+        logger.detachAppender(appender);
+    }
+
+    @Test
+    void logsFailureOfTaskNobodyWaitsFor() throws Exception {
+        IllegalStateException failure = new IllegalStateException("broken line");
+        scheduler.submit(IoScheduler.Lane.VISIBLE, () -> {
+            throw failure;
+        });
+        List<ILoggingEvent> logged = awaitErrors(1);
+        assertEquals(1, logged.size());
+        assertEquals("Unexpected error in VISIBLE task", logged.get(0).getFormattedMessage());
+        assertSame(failure, ((ThrowableProxy) logged.get(0).getThrowableProxy()).getThrowable());
+
+        // The worker survives the failure and runs the next task
+        scheduler.submit(IoScheduler.Lane.VISIBLE, () -> { }).get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void doesNotLogCancelledTask() throws Exception {
+        // Hold the only background worker so the search stays queued
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(IoScheduler.Lane.INDEXING, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        scheduler.submit(IoScheduler.Lane.SEARCH, "search", () -> {
+            throw new IllegalStateException("not run");
+        });
+        // Replacing the queued task cancels it
+        Future<?> replacement = scheduler.submit(IoScheduler.Lane.SEARCH, "search", () -> { });
+        release.countDown();
+        replacement.get(10, TimeUnit.SECONDS);
+        assertEquals(0, awaitErrors(0).size());
+    }
+
+    /**
+     * Waits a moment for errors to be logged, since a task's failure is
+     * logged after its waiters are woken
+     */
+    private List<ILoggingEvent> awaitErrors(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(expected == 0 ? 1 : 10);
+        while (true) {
+            List<ILoggingEvent> errors;
+            // The appender appends while holding its own monitor
+            synchronized (appender) {
+                errors = appender.list.stream()
+                    .filter(event -> event.getLevel() == Level.ERROR)
+                    .collect(Collectors.toList());
+            }
+            if ((expected > 0 && errors.size() >= expected) || System.nanoTime() > deadline) {
+                return errors;
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.xmlmafia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class LineCacheTest {
+    private static final long MAX_BYTES = 1024 * 1024;
+    private static final int VIEWPORT_START = 500_000;
+    private static final int VIEWPORT_LINES = 60;
+    private static final int THREADS = 4;
+
+    @Test
+    void keepsViewportResidentThroughFullScan() {
+        LineCache cache = new LineCache(MAX_BYTES);
+        // A few repaints of the visible lines, each loading the lines it misses
+        for (int pass = 0; pass < 5; pass++) {
+            for (int line = VIEWPORT_START; line < VIEWPORT_START + VIEWPORT_LINES; line++) {
+                read(cache, line);
+            }
+        }
+
+        // Reading every line of a file five times the size of the cache once
+        int fileLines = 30_000;
+        for (int line = 0; line < fileLines; line++) {
+            read(cache, line);
+        }
+        assertTrue(cache.evictionCount() > fileLines / 2, cache.toString());
+        assertTrue(cache.weightedSize() <= MAX_BYTES, cache.toString());
+
+        long hitsBefore = cache.hitCount();
+        for (int line = VIEWPORT_START; line < VIEWPORT_START + VIEWPORT_LINES; line++) {
+            assertTrue(cache.contains(line), "line " + line);
+            assertEquals(text(line), cache.get(line));
+        }
+        assertEquals(hitsBefore + VIEWPORT_LINES, cache.hitCount());
+    }
+
+    @Test
+    void replacesAndClearsLines() {
+        LineCache cache = new LineCache(MAX_BYTES);
+        cache.put(1, "old");
+        assertEquals("old", cache.get(1));
+        cache.put(1, "new");
+        assertEquals("new", cache.get(1));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.snapshot().size());
+
+        // Lines larger than the whole cache are not stored
+        cache.put(2, "x".repeat((int) MAX_BYTES));
+        assertNull(cache.get(2));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weightedSize());
+        assertNull(cache.get(1));
+        // Hits buffered before the clear are dropped rather than requeued
+        cache.put(3, "three");
+        assertEquals("three", cache.get(3));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void staysConsistentUnderConcurrentReadsAndPuts() throws Exception {
+        LineCache cache = new LineCache(64 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int worker = 0; worker < THREADS; worker++) {
+            int seed = worker;
+            workers.add(executor.submit(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                start.await();
+                for (int i = 0; i < 200_000; i++) {
+                    // A hot range every thread keeps reading and a long tail of one-off lines
+                    long line = random.nextInt(4) == 0 ? random.nextInt(10_000) : random.nextInt(40);
+                    String cached = cache.get(line);
+                    if (cached == null) {
+                        cache.put(line, text(line));
+                    } else {
+                        assertEquals(text(line), cached);
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        try {
+            for (Future<?> worker : workers) {
+                worker.get(2, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long weight = 0;
+        for (String text : cache.snapshot().values()) {
+            weight += 96 + 2L * text.length();
+        }
+        assertEquals(weight, cache.weightedSize());
+        assertTrue(cache.weightedSize() <= 64 * 1024, cache.toString());
+        assertEquals(THREADS * 200_000L, cache.hitCount() + cache.missCount());
+    }
+
+    private static void read(LineCache cache, long line) {
+        if (cache.get(line) == null) {
+            cache.put(line, text(line));
+        }
+    }
+
+    private static String text(long line) {
+        return "  <item id=\"" + line + "\">value " + line + "</item>";
+    }
+}
@@ -0,0 +1,208 @@
+package com.xmlmafia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LineDecoderTest {
+    private static final int SMALL_WINDOW = 16; // Window size that puts buffer edges inside short lines
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void detectsEncodingFromByteOrderMark() throws IOException {
+        assertDetected(StandardCharsets.UTF_8, bytes(new int[] {0xEF, 0xBB, 0xBF}, "<a/>", StandardCharsets.UTF_8));
+        assertDetected(StandardCharsets.UTF_16BE, bytes(new int[] {0xFE, 0xFF}, "<a/>", StandardCharsets.UTF_16BE));
+        assertDetected(StandardCharsets.UTF_16LE, bytes(new int[] {0xFF, 0xFE}, "<a/>", StandardCharsets.UTF_16LE));
+    }
+
+    @Test
+    void detectsEncodingWithoutByteOrderMark() throws IOException {
+        assertDetected(StandardCharsets.UTF_16BE, "<?xml version=\"1.0\"?>".getBytes(StandardCharsets.UTF_16BE));
+        assertDetected(StandardCharsets.UTF_16LE, "<?xml version=\"1.0\"?>".getBytes(StandardCharsets.UTF_16LE));
+        assertDetected(StandardCharsets.ISO_8859_1,
+            "<?xml version=\"1.0\" encoding='ISO-8859-1'?>".getBytes(StandardCharsets.ISO_8859_1));
+        assertDetected(StandardCharsets.UTF_8, "<?xml version=\"1.0\" encoding=\"nonsense\"?>".getBytes(StandardCharsets.UTF_8));
+        assertDetected(StandardCharsets.UTF_8, new byte[0]);
+    }
+
+    @Test
+    void dropsByteOrderMarkFromFirstLine() throws IOException {
+        try (FileBackend backend = open(bytes(new int[] {0xEF, 0xBB, 0xBF}, "<a/>\n<b/>", StandardCharsets.UTF_8))) {
+            LineDecoder decoder = LineDecoder.detect(backend);
+            assertEquals(Arrays.asList("<a/>", "<b/>"), lines(backend, decoder));
+            assertEquals(3, decoder.contentStart(0));
+            assertEquals(8, decoder.contentStart(8));
+        }
+        try (FileBackend backend = open(bytes(new int[] {0xFF, 0xFE}, "<a/>\n<b/>", StandardCharsets.UTF_16LE))) {
+            assertEquals(Arrays.asList("<a/>", "<b/>"), lines(backend, LineDecoder.detect(backend)));
+        }
+    }
+
+    @Test
+    void findsUtf16LittleEndianLineBoundaries() throws IOException {
+        // U+010A is 0A 01 and U+0A41 is 41 0A: both hold a '\n' byte that is not a newline
+        String text = "<a>\nĊੁ</a>\r\n\nend";
+        try (FileBackend backend = open(bytes(new int[] {0xFF, 0xFE}, text, StandardCharsets.UTF_16LE))) {
+            LineDecoder decoder = LineDecoder.detect(backend);
+            assertEquals(2, decoder.newlineWidth());
+            assertFalse(decoder.isAsciiCompatible());
+            assertEquals(Arrays.asList("<a>", "Ċੁ</a>", "", "end"), lines(backend, decoder));
+        }
+    }
+
+    @Test
+    void findsUtf16BigEndianLineBoundaries() throws IOException {
+        // U+0A41 is 0A 41 and U+410A is 41 0A: both hold a '\n' byte that is not a newline
+        String text = "<a>\nੁ䄊</a>\r\n\nend";
+        try (FileBackend backend = open(bytes(new int[] {0xFE, 0xFF}, text, StandardCharsets.UTF_16BE))) {
+            LineDecoder decoder = LineDecoder.detect(backend);
+            assertEquals(2, decoder.newlineWidth());
+            assertEquals(Arrays.asList("<a>", "ੁ䄊</a>", "", "end"), lines(backend, decoder));
+        }
+    }
+
+    @Test
+    void stripsCarriageReturnOfCrlfLines() throws IOException {
+        try (FileBackend backend = open("a\r\nb\r\n\r\nc\r".getBytes(StandardCharsets.UTF_8))) {
+            assertEquals(Arrays.asList("a", "b", "", "c"), lines(backend, LineDecoder.detect(backend)));
+        }
+        byte[] line = "x\r".getBytes(StandardCharsets.UTF_8);
+        assertEquals("x", LineDecoder.UTF_8.decode(line, 0, line.length));
+        assertEquals("", LineDecoder.UTF_8.decode(line, 1, 1));
+    }
+
+    @Test
+    void decodesMultiByteSequenceSplitAcrossWindowEdge() throws IOException {
+        // The euro sign takes offsets 15 to 17 and the emoji 30 to 33, across the edges at 16 and 32
+        String text = "0123456789abcde€0123456789ab😀z";
+        byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+        assertEquals((byte) 0xE2, encoded[15]);
+        assertEquals((byte) 0xF0, encoded[30]);
+        try (FileBackend backend = open(encoded)) {
+            assertEquals(text, LineDecoder.UTF_8.decodeLine(backend, 0, backend.size()));
+            assertEquals("€0", LineDecoder.UTF_8.decodeLine(backend, 15, 19));
+        }
+    }
+
+    @Test
+    void replacesMalformedInput() {
+        byte[] invalid = {'a', 'b', (byte) 0xFF, 'c', 'd'};
+        assertEquals("ab�cd", LineDecoder.UTF_8.decode(invalid, 0, invalid.length));
+        byte[] truncated = {'a', 'b', (byte) 0xE2, (byte) 0x82};
+        assertEquals("ab�", LineDecoder.UTF_8.decode(truncated, 0, truncated.length));
+        byte[] oddUtf16 = {'a', 0, 'b'};
+        assertEquals("a�", new LineDecoder(StandardCharsets.UTF_16LE, 0).decode(oddUtf16, 0, oddUtf16.length));
+    }
+
+    @Test
+    void detectsAsciiInWholeWordsAndTail() {
+        byte[] ascii = "<element attribute=\"value\">".getBytes(StandardCharsets.US_ASCII);
+        assertTrue(LineDecoder.isAscii(ascii, 0, ascii.length));
+        for (int i = 0; i < ascii.length; i++) {
+            byte[] mixed = ascii.clone();
+            mixed[i] = (byte) 0xC3;
+            assertFalse(LineDecoder.isAscii(mixed, 0, mixed.length), "high byte at " + i);
+            assertTrue(LineDecoder.isAscii(mixed, i + 1, mixed.length - i - 1), "range after " + i);
+        }
+    }
+
+    @Test
+    void decodesAsciiAndLatin1WithoutDecoder() {
+        byte[] ascii = "<a href=\"x\">text</a>".getBytes(StandardCharsets.US_ASCII);
+        assertEquals("<a href=\"x\">text</a>", LineDecoder.UTF_8.decode(ascii, 0, ascii.length));
+        assertEquals("href", LineDecoder.UTF_8.decode(ascii, 3, 4));
+        byte[] latin1 = {'c', 'a', 'f', (byte) 0xE9};
+        assertEquals("café", new LineDecoder(StandardCharsets.ISO_8859_1, 0).decode(latin1, 0, latin1.length));
+    }
+
+    @Test
+    void decodesMultiByteLegacyEncodingsWithDecoder() throws IOException {
+        Charset shiftJis = Charset.forName("Shift_JIS");
+        // The trail bytes of U+30BD and U+8868 look like '\\' and that of U+30BE like ']'
+        String text = "<a>ソ表ゾ]></a>";
+        byte[] encoded = ("<?xml version=\"1.0\" encoding=\"Shift_JIS\"?>\n" + text).getBytes(shiftJis);
+        try (FileBackend backend = open(encoded)) {
+            LineDecoder decoder = LineDecoder.detect(backend);
+            assertEquals(shiftJis, decoder.charset());
+            assertTrue(decoder.isAsciiCompatible());
+            assertFalse(decoder.isAsciiSafe());
+            assertFalse(decoder.isSelfSynchronizing());
+            assertEquals(text, lines(backend, decoder).get(1));
+        }
+
+        // Seven-bit bytes that are not ASCII: the escape sequences switch to JIS X 0208
+        Charset iso2022 = Charset.forName("ISO-2022-JP");
+        byte[] jis = "<a>日本</a>".getBytes(iso2022);
+        assertTrue(LineDecoder.isAscii(jis, 0, jis.length));
+        assertEquals("<a>日本</a>", new LineDecoder(iso2022, 0).decode(jis, 0, jis.length));
+    }
+
+    @Test
+    void keepsFastPathForUtf8AndSingleByteEncodings() {
+        assertTrue(LineDecoder.UTF_8.isAsciiSafe());
+        assertTrue(new LineDecoder(StandardCharsets.US_ASCII, 0).isAsciiSafe());
+        assertTrue(new LineDecoder(Charset.forName("ISO-8859-15"), 0).isAsciiSafe());
+        assertTrue(new LineDecoder(Charset.forName("windows-1252"), 0).isAsciiSafe());
+        assertFalse(new LineDecoder(Charset.forName("GBK"), 0).isAsciiSafe());
+        assertFalse(new LineDecoder(Charset.forName("Big5"), 0).isAsciiSafe());
+        assertFalse(new LineDecoder(StandardCharsets.UTF_16LE, 0).isAsciiSafe());
+        assertTrue(new LineDecoder(StandardCharsets.UTF_16LE, 0).isSelfSynchronizing());
+    }
+
+    private void assertDetected(Charset expected, byte[] content) throws IOException {
+        try (FileBackend backend = open(content)) {
+            assertEquals(expected, LineDecoder.detect(backend).charset());
+        }
+    }
+
+    /**
+     * Splits a file into lines the way the line index does: at every '\n'
+     * byte the decoder accepts as a line break
+     */
+    private static List<String> lines(FileBackend backend, LineDecoder decoder) {
+        List<String> lines = new ArrayList<>();
+        long start = 0;
+        for (long offset = 0; offset < backend.size(); offset++) {
+            if (backend.get(offset) == '\n') {
+                long next = decoder.lineStartAfter(backend, offset);
+                if (next >= 0) {
+                    lines.add(decoder.decodeLine(backend, start, next - decoder.newlineWidth()));
+                    start = next;
+                }
+            }
+        }
+        lines.add(decoder.decodeLine(backend, start, backend.size()));
+        return lines;
+    }
+
+    private FileBackend open(byte[] content) throws IOException {
+        File file = Files.createTempFile(directory, "lines", ".xml").toFile();
+        Files.write(file.toPath(), content);
+        return new SegmentedFileBackend(file, SMALL_WINDOW, 2);
+    }
+
+    private static byte[] bytes(int[] prefix, String text, Charset charset) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int b : prefix) {
+            out.write(b);
+        }
+        byte[] encoded = text.getBytes(charset);
+        out.write(encoded, 0, encoded.length);
+        return out.toByteArray();
+    }
+}
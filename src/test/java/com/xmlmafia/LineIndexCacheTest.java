@@ -0,0 +1,292 @@
+package com.xmlmafia;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LineIndexCacheTest {
+    private static final int FILE_SIZE = (int) LineIndexCache.MIN_CACHED_FILE_SIZE;
+    private static final byte[] LINE = "<a/>\n".getBytes(StandardCharsets.US_ASCII);
+    private static final long LINE_COUNT = FILE_SIZE / LINE.length + 1;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void restoresStoredIndex() throws IOException {
+        LineIndexCache cache = cache(Long.MAX_VALUE);
+        File file = xmlFile("restored.xml");
+        try (FileBackend backend = SegmentedFileBackend.open(file)) {
+            LineOffsetIndex index = lineIndex();
+            cache.store(file, backend, index, LINE_COUNT);
+            LineIndexCache.Entry entry = cache.load(file, backend);
+            assertNotNull(entry);
+            assertEquals(LINE_COUNT, entry.totalLines);
+            assertEquals(index.size(), entry.index.size());
+            for (long i = 0; i < index.size(); i += 997) {
+                assertEquals(index.get(i), entry.index.get(i), "entry " + i);
+            }
+
+            TrigramIndex trigrams = TrigramIndex.build(backend, ForkJoinPool.commonPool());
+            cache.storeTrigrams(file, backend, trigrams);
+            TrigramIndex restored = cache.loadTrigrams(file, backend);
+            assertNotNull(restored);
+            assertEquals(trigrams.blockCount(), restored.blockCount());
+            assertEquals(2, sidecars().size());
+        }
+    }
+
+    @Test
+    void refusesSidecarOfChangedFile() throws IOException {
+        File file = xmlFile("changed.xml");
+
+        // A byte appended
+        storeIndex(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(FILE_SIZE + 1);
+        }
+        assertRefused(file);
+
+        // Touched without changing content
+        storeIndex(file);
+        touch(file.toPath(), file.lastModified() - 60_000);
+        assertRefused(file);
+
+        // Edited in place, keeping both size and modification time
+        storeIndex(file);
+        long modified = file.lastModified();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write("<b/>".getBytes(StandardCharsets.US_ASCII));
+        }
+        touch(file.toPath(), modified);
+        assertRefused(file);
+    }
+
+    @Test
+    void refusesSidecarWithBadHeader() throws IOException {
+        File file = xmlFile("header.xml");
+        // Offsets of the magic, the version, and the sampled content hash
+        for (int offset : new int[] {0, 8, 32}) {
+            Path sidecar = storeIndex(file);
+            corrupt(sidecar, offset);
+            assertRefused(file);
+        }
+
+        // Truncated inside the header
+        Path sidecar = storeIndex(file);
+        try (RandomAccessFile raf = new RandomAccessFile(sidecar.toFile(), "rw")) {
+            raf.setLength(20);
+        }
+        assertRefused(file);
+
+        // Truncated inside the body, past a valid header
+        sidecar = storeIndex(file);
+        try (RandomAccessFile raf = new RandomAccessFile(sidecar.toFile(), "rw")) {
+            raf.setLength(raf.length() - Long.BYTES);
+        }
+        assertRefused(file);
+
+        // Another file's sidecar under this file's name
+        File other = xmlFile("other.xml");
+        Path otherSidecar = storeIndex(other);
+        sidecar = storeIndex(file);
+        Files.copy(otherSidecar, sidecar, StandardCopyOption.REPLACE_EXISTING);
+        assertRefused(file);
+    }
+
+    @Test
+    void replacesSidecarOnlyOnceFullyWritten() throws IOException {
+        LineIndexCache cache = cache(Long.MAX_VALUE);
+        File file = xmlFile("replaced.xml");
+        Path sidecar = storeIndex(file);
+        byte[] stored = Files.readAllBytes(sidecar);
+
+        // A failed write leaves the previous sidecar and no temporary file behind
+        try (FileBackend backend = SegmentedFileBackend.open(file)) {
+            cache.store(file, backend, new FailingIndex(), LINE_COUNT);
+        }
+        assertArrayEquals(stored, Files.readAllBytes(sidecar));
+        assertEquals(List.of(sidecar), entries());
+
+        // A successful write replaces it
+        try (FileBackend backend = SegmentedFileBackend.open(file)) {
+            LineOffsetIndex sparse = new LineOffsetIndex(8, false);
+            sparse.add(0);
+            cache.store(file, backend, sparse, LINE_COUNT);
+            assertEquals(List.of(sidecar), entries());
+            assertEquals(8, cache.load(file, backend).index.density());
+        }
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedSidecars() throws IOException {
+        File first = xmlFile("first.xml");
+        File second = xmlFile("second.xml");
+        File third = xmlFile("third.xml");
+        Path firstSidecar = storeIndex(first);
+        Path secondSidecar = storeIndex(second);
+        long sidecarBytes = Files.size(firstSidecar);
+        long now = System.currentTimeMillis();
+        touch(firstSidecar, now - 3_600_000);
+        touch(secondSidecar, now - 1_800_000);
+
+        // Loading the older sidecar makes it the most recently used
+        LineIndexCache cache = cache(2 * sidecarBytes + sidecarBytes / 2);
+        try (FileBackend backend = SegmentedFileBackend.open(first)) {
+            assertNotNull(cache.load(first, backend));
+        }
+        try (FileBackend backend = SegmentedFileBackend.open(third)) {
+            cache.store(third, backend, lineIndex(), LINE_COUNT);
+        }
+        assertTrue(Files.exists(firstSidecar));
+        assertFalse(Files.exists(secondSidecar));
+        assertEquals(2, sidecars().size());
+
+        // The sidecar just stored is kept even when it alone exceeds the budget
+        LineIndexCache tiny = cache(1);
+        try (FileBackend backend = SegmentedFileBackend.open(second)) {
+            tiny.store(second, backend, lineIndex(), LINE_COUNT);
+        }
+        assertEquals(List.of(secondSidecar), sidecars());
+    }
+
+    @Test
+    void skipsSmallFiles() throws IOException {
+        LineIndexCache cache = cache(Long.MAX_VALUE);
+        File file = Files.createTempFile(directory, "small", ".xml").toFile();
+        Files.write(file.toPath(), LINE);
+        try (FileBackend backend = SegmentedFileBackend.open(file)) {
+            cache.store(file, backend, lineIndex(), 2);
+            assertNull(cache.load(file, backend));
+        }
+        assertFalse(Files.exists(cacheDirectory()));
+    }
+
+    /**
+     * A line index whose body fails partway through being written
+     */
+    private static final class FailingIndex extends LineOffsetIndex {
+        @Override
+        void write(WritableByteChannel channel) throws IOException {
+            channel.write(ByteBuffer.allocate(64));
+            throw new IOException("disk full");
+        }
+    }
+
+    /**
+     * @return The sidecar the store added to the cache
+     */
+    private Path storeIndex(File file) throws IOException {
+        List<Path> before = sidecars();
+        try (FileBackend backend = SegmentedFileBackend.open(file)) {
+            cache(Long.MAX_VALUE).store(file, backend, lineIndex(), LINE_COUNT);
+        }
+        List<Path> added = sidecars();
+        added.removeAll(before);
+        assertEquals(1, added.size());
+        return added.get(0);
+    }
+
+    private void assertRefused(File file) throws IOException {
+        List<Path> before = sidecars();
+        try (FileBackend backend = SegmentedFileBackend.open(file)) {
+            assertNull(cache(Long.MAX_VALUE).load(file, backend));
+        }
+        // The refused sidecar is deleted
+        assertEquals(before.size() - 1, sidecars().size());
+        restore(file);
+    }
+
+    private LineIndexCache cache(long maxCacheBytes) {
+        return new LineIndexCache(cacheDirectory(), maxCacheBytes);
+    }
+
+    private Path cacheDirectory() {
+        return directory.resolve("cache");
+    }
+
+    private File xmlFile(String name) throws IOException {
+        File file = directory.resolve(name).toFile();
+        restore(file);
+        return file;
+    }
+
+    /**
+     * (Re)writes the test content, leaving the file with a modification time
+     * distinct from any earlier write
+     */
+    private static void restore(File file) throws IOException {
+        byte[] content = new byte[FILE_SIZE];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = LINE[i % LINE.length];
+        }
+        long previous = file.exists() ? file.lastModified() : 0;
+        Files.write(file.toPath(), content);
+        touch(file.toPath(), Math.max(System.currentTimeMillis(), previous + 2000) / 1000 * 1000);
+    }
+
+    private static LineOffsetIndex lineIndex() {
+        LineOffsetIndex index = new LineOffsetIndex();
+        for (long line = 0; line < LINE_COUNT; line++) {
+            index.add(line * LINE.length);
+        }
+        return index;
+    }
+
+    private static void corrupt(Path sidecar, int offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(sidecar.toFile(), "rw")) {
+            raf.seek(offset);
+            int value = raf.read();
+            raf.seek(offset);
+            raf.write(value ^ 0xFF);
+        }
+    }
+
+    private static void touch(Path path, long millis) throws IOException {
+        Files.setLastModifiedTime(path, FileTime.fromMillis(millis));
+    }
+
+    private List<Path> sidecars() throws IOException {
+        List<Path> sidecars = new ArrayList<>();
+        for (Path entry : entries()) {
+            String name = entry.getFileName().toString();
+            if (name.endsWith(".lidx") || name.endsWith(".tidx")) {
+                sidecars.add(entry);
+            }
+        }
+        return sidecars;
+    }
+
+    private List<Path> entries() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        if (!Files.isDirectory(cacheDirectory())) {
+            return entries;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDirectory())) {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+}
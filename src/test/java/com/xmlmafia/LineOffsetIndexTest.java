@@ -0,0 +1,166 @@
+package com.xmlmafia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LineOffsetIndexTest {
+    private static final int READERS = 4;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void getsEntriesOnBothSidesOfBlockBoundaries() {
+        for (boolean offHeap : new boolean[] {false, true}) {
+            long[] offsets = lineStarts(10 * LineOffsetIndex.BLOCK_SIZE + 17, 40, 120, 1);
+            LineOffsetIndex index = filled(offsets, 1, offHeap);
+            assertEquals(offsets.length, index.size());
+            // Sealed blocks, their first and last slots, and the pending block
+            for (int i = 0; i < offsets.length; i++) {
+                assertEquals(offsets[i], index.get(i), "entry " + i);
+            }
+            for (int i = 0; i < offsets.length; i++) {
+                assertEquals(i, index.entryOf(offsets[i], 0));
+                assertEquals(i, index.entryOf(offsets[i] + 1, Math.max(0, i - 3)));
+            }
+            assertThrows(IndexOutOfBoundsException.class, () -> index.get(offsets.length));
+            assertThrows(IndexOutOfBoundsException.class, () -> index.get(-1));
+        }
+    }
+
+    @Test
+    void packsLargeDeltas() {
+        LineOffsetIndex index = new LineOffsetIndex();
+        List<Long> offsets = new ArrayList<>();
+        SplittableRandom random = new SplittableRandom(3);
+        long offset = 0;
+        // Lines of a few GB, so deltas take 40 bits and more and straddle packed words
+        for (int i = 0; i < 3 * LineOffsetIndex.BLOCK_SIZE; i++) {
+            offsets.add(offset);
+            offset += 1 + random.nextLong(1L << 33);
+        }
+        // A block spanning nearly the whole long range, at 62 bits per delta
+        offset = Long.MAX_VALUE / 2;
+        for (int i = 0; i < LineOffsetIndex.BLOCK_SIZE; i++) {
+            offsets.add(offset);
+            offset += random.nextLong(1L << 55);
+        }
+        for (long start : offsets) {
+            index.add(start);
+        }
+        for (int i = 0; i < offsets.size(); i++) {
+            assertEquals((long) offsets.get(i), index.get(i), "entry " + i);
+        }
+    }
+
+    @Test
+    void readsConsistentlyWhileBlocksAreSealed() throws Exception {
+        LineOffsetIndex index = new LineOffsetIndex();
+        int entries = 4_000_000;
+        ExecutorService executor = Executors.newFixedThreadPool(READERS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> readers = new ArrayList<>();
+        for (int reader = 0; reader < READERS; reader++) {
+            int seed = reader;
+            readers.add(executor.submit(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                start.await();
+                long reads = 0;
+                while (index.size() < entries) {
+                    // Mostly the newest entries, which sit in the pending block until it is sealed
+                    long size = index.size();
+                    long entry = random.nextInt(4) == 0
+                        ? random.nextLong(Math.max(1, size))
+                        : Math.max(0, size - 1 - random.nextInt(4));
+                    if (entry < size) {
+                        assertEquals(offsetOf(entry), index.get(entry), "entry " + entry);
+                        reads++;
+                    }
+                }
+                return reads;
+            }));
+        }
+        start.countDown();
+        try {
+            for (long entry = 0; entry < entries; entry++) {
+                index.add(offsetOf(entry));
+            }
+            for (Future<Long> reader : readers) {
+                // Rethrows the first inconsistent read
+                reader.get(2, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void restoresWrittenIndex() throws IOException {
+        // Every fourth line start, in blocks of different widths and a partly filled last block
+        long[] offsets = lineStarts(5 * LineOffsetIndex.BLOCK_SIZE + 9, 1, 5000, 2);
+        LineOffsetIndex index = filled(offsets, 4, false);
+        Path data = directory.resolve("lines.bin");
+        try (FileChannel channel = FileChannel.open(data, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            index.write(channel);
+        }
+        ByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(data, StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        LineOffsetIndex restored = LineOffsetIndex.read(mapped);
+        assertEquals(4, restored.density());
+        assertEquals(offsets.length, restored.size());
+        for (int i = 0; i < offsets.length; i++) {
+            assertEquals(offsets[i], restored.get(i), "entry " + i);
+        }
+
+        ByteBuffer truncated = mapped.duplicate();
+        truncated.limit(truncated.limit() - Long.BYTES);
+        assertThrows(IllegalArgumentException.class, () -> LineOffsetIndex.read(truncated));
+    }
+
+    @Test
+    void takesUnderTwoBytesPerLine() {
+        // Lines of 40 to 120 bytes pack at 14 bits: 28 words and 16 bytes of block metadata per 128 lines
+        long[] offsets = lineStarts(1_000_000, 40, 120, 1);
+        LineOffsetIndex index = filled(offsets, 1, false);
+        assertEquals(1.875, index.bytesPerLine(), 0.002);
+    }
+
+    private static long offsetOf(long entry) {
+        return entry * 37 + (entry >>> 5) * 1000;
+    }
+
+    private static long[] lineStarts(int count, int minLength, int maxLength, int seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        long[] offsets = new long[count];
+        for (int i = 1; i < count; i++) {
+            offsets[i] = offsets[i - 1] + random.nextInt(minLength, maxLength + 1);
+        }
+        return offsets;
+    }
+
+    private static LineOffsetIndex filled(long[] offsets, int density, boolean offHeap) {
+        LineOffsetIndex index = new LineOffsetIndex(density, offHeap);
+        for (long offset : offsets) {
+            index.add(offset);
+        }
+        return index;
+    }
+}
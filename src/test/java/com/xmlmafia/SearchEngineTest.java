@@ -0,0 +1,124 @@
+package com.xmlmafia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SearchEngineTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void skipsTrailBytesOfMultiByteLegacyEncodings() throws IOException {
+        Charset shiftJis = Charset.forName("Shift_JIS");
+        // U+30BD is 83 5C and U+30BE is 83 5D: their trail bytes look like '\\' and ']'
+        String head = "<?xml version=\"1.0\" encoding=\"Shift_JIS\"?>\n<a>ソ\\";
+        String xml = head + "ゾ]</a>\n";
+        try (XmlDocument document = open(xml.getBytes(shiftJis))) {
+            SearchEngine engine = new SearchEngine();
+            long backslash = head.substring(0, head.length() - 1).getBytes(shiftJis).length;
+            assertEquals(Arrays.asList(backslash), offsets(engine, document, "\\", SearchEngine.Mode.LITERAL, true));
+            assertEquals(Arrays.asList(backslash + 3), offsets(engine, document, "]", SearchEngine.Mode.LITERAL, true));
+            assertEquals(Arrays.asList(backslash + 3), offsets(engine, document, "]", SearchEngine.Mode.LITERAL, false));
+            assertEquals(Arrays.asList(), offsets(engine, document, "a", SearchEngine.Mode.XPATH, true));
+            assertFalse(document.buildElementIndex(ForkJoinPool.commonPool()));
+        }
+    }
+
+    @Test
+    void mapsRegexMatchesPastByteOrderMarkAndMalformedBytes() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write(new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF});
+        content.write("<a>é x</a>\n<b>".getBytes(StandardCharsets.UTF_8));
+        // Decodes to one replacement character, which encodes to three bytes
+        content.write(0xFF);
+        content.write(" x</b>\n".getBytes(StandardCharsets.UTF_8));
+        byte[] bytes = content.toByteArray();
+        try (XmlDocument document = open(bytes)) {
+            SearchEngine engine = new SearchEngine();
+            assertEquals(indexesOf(bytes, "x"), offsets(engine, document, "x", SearchEngine.Mode.REGEX, true));
+            assertEquals(indexesOf(bytes, "<"), offsets(engine, document, "<", SearchEngine.Mode.REGEX, true));
+            assertEquals(Arrays.asList(3L), offsets(engine, document, "^<a", SearchEngine.Mode.REGEX, true));
+        }
+    }
+
+    @Test
+    void searchesRegexInLinesLongerThanOnePiece() throws IOException {
+        int pieceSize = XmlDocument.MAX_LINE_LENGTH;
+        // Matches before, across and after the edges of the line's first pieces, in non-ASCII text with malformed bytes
+        long[] needles = {100, pieceSize - 3, pieceSize + pieceSize / 2, 2L * pieceSize + 1, 3L * pieceSize};
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write("<root>".getBytes(StandardCharsets.UTF_8));
+        for (long needle : needles) {
+            byte[] filler = "é y \u00ff ".getBytes(StandardCharsets.UTF_8);
+            while (content.size() + filler.length + 1 < needle) {
+                content.write(filler);
+                if (content.size() % 7 == 0) {
+                    content.write(0xFF);
+                }
+            }
+            while (content.size() < needle) {
+                content.write(' ');
+            }
+            content.write("needle".getBytes(StandardCharsets.UTF_8));
+        }
+        content.write("</root>\nneedle\n".getBytes(StandardCharsets.UTF_8));
+        byte[] bytes = content.toByteArray();
+
+        try (XmlDocument document = open(bytes)) {
+            assertEquals(3, document.indexedLines());
+            // Chunks far smaller than the line, so most start inside it
+            SearchEngine engine = new SearchEngine(ForkJoinPool.commonPool(), 64 * 1024);
+            List<Long> expected = indexesOf(bytes, "needle");
+            assertEquals(needles.length + 1, expected.size());
+            assertEquals(expected, offsets(engine, document, "needle", SearchEngine.Mode.REGEX, true));
+            assertEquals(expected, offsets(engine, document, "NEEDLE", SearchEngine.Mode.REGEX, false));
+            assertEquals(Arrays.asList(expected.get(needles.length - 1)),
+                offsets(engine, document, "needle(?=</root>)", SearchEngine.Mode.REGEX, true));
+            assertEquals(Arrays.asList(expected.get(needles.length)), offsets(engine, document, "^needle$", SearchEngine.Mode.REGEX, true));
+        }
+    }
+
+    private static List<Long> indexesOf(byte[] bytes, String text) {
+        byte[] pattern = text.getBytes(StandardCharsets.UTF_8);
+        List<Long> indexes = new ArrayList<>();
+        for (int i = 0; i + pattern.length <= bytes.length; i++) {
+            if (Arrays.equals(bytes, i, i + pattern.length, pattern, 0, pattern.length)) {
+                indexes.add((long) i);
+            }
+        }
+        return indexes;
+    }
+
+    static List<Long> offsets(SearchEngine engine, XmlDocument document, String text, SearchEngine.Mode mode,
+                              boolean caseSensitive) {
+        List<Long> offsets = new ArrayList<>();
+        engine.search(document, text, mode, caseSensitive, (matches, lengths, lines, count) -> {
+            for (int i = 0; i < count; i++) {
+                offsets.add(matches[i]);
+            }
+        }, null);
+        return offsets;
+    }
+
+    private XmlDocument open(byte[] content) throws IOException {
+        File file = Files.createTempFile(directory, "search", ".xml").toFile();
+        Files.write(file.toPath(), content);
+        XmlDocument document = XmlDocument.open(file, SegmentedFileBackend::open);
+        document.buildLineIndex(new LineIndexer(), 1, null);
+        return document;
+    }
+}
@@ -0,0 +1,132 @@
+package com.xmlmafia;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentedFileBackendTest {
+    private static final int WINDOW_SIZE = 4096; // One page, so a read of a few KB spans windows
+    private static final int RESIDENT_WINDOWS = 2; // Far fewer than the threads need, so windows are evicted constantly
+    private static final int FILE_SIZE = 256 * WINDOW_SIZE + 123;
+    private static final int THREADS = 8;
+    private static final int READS_PER_THREAD = 10_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void concurrentReadsMatchFileWhileWindowsChurn() throws Exception {
+        byte[] content = randomContent(FILE_SIZE);
+        File file = write(content);
+
+        try (SegmentedFileBackend backend = new SegmentedFileBackend(file, WINDOW_SIZE, RESIDENT_WINDOWS)) {
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> readers = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                int seed = thread;
+                readers.add(executor.submit(() -> {
+                    start.await();
+                    readRandomRanges(backend, content, new SplittableRandom(seed));
+                    return null;
+                }));
+            }
+            start.countDown();
+            try {
+                for (Future<?> reader : readers) {
+                    // Rethrows the first mismatch a reader found
+                    reader.get(2, TimeUnit.MINUTES);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    void readsSpanWindowEdgesAndStopAtEndOfFile() throws IOException {
+        byte[] content = randomContent(FILE_SIZE);
+        try (SegmentedFileBackend backend = new SegmentedFileBackend(write(content), WINDOW_SIZE, RESIDENT_WINDOWS)) {
+            assertEquals(FILE_SIZE, backend.size());
+            byte[] buffer = new byte[3 * WINDOW_SIZE];
+            assertEquals(buffer.length, backend.read(WINDOW_SIZE - 1, buffer, 0, buffer.length));
+            assertArrayEquals(Arrays.copyOfRange(content, WINDOW_SIZE - 1, WINDOW_SIZE - 1 + buffer.length), buffer);
+
+            assertEquals(10, backend.read(FILE_SIZE - 10, buffer, 0, buffer.length));
+            assertArrayEquals(Arrays.copyOfRange(content, FILE_SIZE - 10, FILE_SIZE), Arrays.copyOf(buffer, 10));
+            assertEquals(-1, backend.read(FILE_SIZE, buffer, 0, buffer.length));
+        }
+    }
+
+    @Test
+    void interruptedReaderNeitherFailsNorClosesTheFile() throws IOException {
+        byte[] content = randomContent(FILE_SIZE);
+        try (SegmentedFileBackend backend = new SegmentedFileBackend(write(content), WINDOW_SIZE, RESIDENT_WINDOWS)) {
+            try {
+                // Each get maps a new window while the thread is interrupted
+                for (int window = 0; window < 16; window++) {
+                    Thread.currentThread().interrupt();
+                    int offset = window * WINDOW_SIZE;
+                    assertEquals(content[offset], backend.get(offset), "byte at " + offset);
+                    assertTrue(Thread.currentThread().isInterrupted(), "interrupt kept");
+                }
+            } finally {
+                Thread.interrupted();
+            }
+            // Later readers still find the file open
+            readRandomRanges(backend, content, new SplittableRandom(1));
+        }
+    }
+
+    /**
+     * Reads ranges of up to three windows, single bytes and read-ahead hints
+     * at random offsets, checking every result against the file contents
+     */
+    private static void readRandomRanges(FileBackend backend, byte[] content, SplittableRandom random) {
+        byte[] buffer = new byte[3 * WINDOW_SIZE];
+        for (int i = 0; i < READS_PER_THREAD; i++) {
+            int offset = random.nextInt(content.length);
+            int length = 1 + random.nextInt(buffer.length);
+            int dstOffset = random.nextInt(buffer.length - length + 1);
+            int expected = Math.min(length, content.length - offset);
+
+            int bytesRead = backend.read(offset, buffer, dstOffset, length);
+            assertEquals(expected, bytesRead, "bytes read at " + offset);
+            assertArrayEquals(Arrays.copyOfRange(content, offset, offset + expected),
+                Arrays.copyOfRange(buffer, dstOffset, dstOffset + bytesRead), "bytes at " + offset);
+            assertEquals(content[offset], backend.get(offset), "byte at " + offset);
+            if (i % 64 == 0) {
+                backend.readAhead(offset, length);
+            }
+        }
+    }
+
+    private static byte[] randomContent(int size) {
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+    private File write(byte[] content) throws IOException {
+        File file = Files.createTempFile(directory, "backend", ".bin").toFile();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+}
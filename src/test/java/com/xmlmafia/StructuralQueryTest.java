@@ -0,0 +1,137 @@
+package com.xmlmafia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class StructuralQueryTest {
+    private static final String XML = "<Order id=\"7\">\n"
+        + "  <Item sku='A1' qty=\"2\"/>\n"
+        + "  <Box>\n"
+        + "    <Item sku=\"B2\"/>\n"
+        + "    <ns:Item ns:id=\"9\" sku=\"A1\">\n"
+        + "      <Note id='7'/>\n"
+        + "    </ns:Item>\n"
+        + "  </Box>\n"
+        + "  <item sku=\"a1\"/>\n"
+        + "</Order>\n";
+
+    @Test
+    void matchesNamesAnywhere() {
+        List<String> items = Arrays.asList("<Item sku='A1' qty=\"2\"/>", "<Item sku=\"B2\"/>", "<ns:Item ns:id=\"9\" sku=\"A1\">");
+        assertEquals(items, matches("Item"));
+        assertEquals(items, matches("//Item"));
+        assertEquals(items, matches(" Item "));
+        assertEquals(Arrays.asList("<ns:Item ns:id=\"9\" sku=\"A1\">"), matches("ns:Item"));
+        assertEquals(Arrays.asList(), matches("other:Item"));
+        assertEquals(7, matches("*").size());
+    }
+
+    @Test
+    void distinguishesChildAndDescendantSteps() {
+        assertEquals(Arrays.asList("<Item sku='A1' qty=\"2\"/>"), matches("/Order/Item"));
+        assertEquals(Arrays.asList("<Item sku='A1' qty=\"2\"/>"), matches("Order/Item"));
+        assertEquals(3, matches("/Order//Item").size());
+        assertEquals(3, matches("Order//Item").size());
+        assertEquals(Arrays.asList("<Item sku=\"B2\"/>", "<ns:Item ns:id=\"9\" sku=\"A1\">"), matches("Box/Item"));
+        assertEquals(Arrays.asList("<Item sku=\"B2\"/>", "<ns:Item ns:id=\"9\" sku=\"A1\">"), matches("/Order/Box/Item"));
+        assertEquals(Arrays.asList("<Note id='7'/>"), matches("Box//Note"));
+        assertEquals(Arrays.asList(), matches("Box/Note"));
+        // The root is Order, so an absolute path starting elsewhere matches nothing
+        assertEquals(Arrays.asList(), matches("/Item"));
+        assertEquals(Arrays.asList("<Order id=\"7\">"), matches("/Order"));
+        // Siblings after an element closes are not below it
+        assertEquals(Arrays.asList(), matches("Box//item"));
+    }
+
+    @Test
+    void testsAttributes() {
+        List<String> a1 = Arrays.asList("<Item sku='A1' qty=\"2\"/>", "<ns:Item ns:id=\"9\" sku=\"A1\">");
+        assertEquals(3, matches("Item[@sku]").size());
+        assertEquals(a1, matches("Item[@sku='A1']"));
+        assertEquals(a1, matches("Item[@sku=\"A1\"]"));
+        assertEquals(a1, matches("Item[ @sku = A1 ]"));
+        assertEquals(Arrays.asList("<Item sku='A1' qty=\"2\"/>"), matches("Item[@sku='A1'][@qty='2']"));
+        assertEquals(Arrays.asList(), matches("Item[@sku='A']"));
+
+        List<String> id7 = Arrays.asList("<Order id=\"7\">", "<Note id='7'/>");
+        assertEquals(id7, matches("*[@id='7']"));
+        assertEquals(id7, matches("@id=7"));
+        assertEquals(id7, matches("@id='7'"));
+        assertEquals(id7, matches("id=7"));
+        assertEquals(id7, matches("id = \"7\""));
+        // An unprefixed attribute name also matches prefixed attributes
+        assertEquals(Arrays.asList("<Order id=\"7\">", "<ns:Item ns:id=\"9\" sku=\"A1\">", "<Note id='7'/>"), matches("@id"));
+        assertEquals(Arrays.asList("<ns:Item ns:id=\"9\" sku=\"A1\">"), matches("@ns:id"));
+        assertEquals(Arrays.asList("<Note id='7'/>"), matches("Box//id=7"));
+    }
+
+    @Test
+    void matchesCaseInsensitively() {
+        assertEquals(4, matches("item", StandardCharsets.UTF_8, false).size());
+        assertEquals(Arrays.asList("<item sku=\"a1\"/>"), matches("item", StandardCharsets.UTF_8, true));
+        assertEquals(3, matches("ITEM[@SKU='a1']", StandardCharsets.UTF_8, false).size());
+        assertEquals(4, matches("item", StandardCharsets.UTF_16LE, false).size());
+    }
+
+    @Test
+    void matchesNonAsciiNamesAndValues() {
+        String xml = "<Größe wert=\"ä\"/><Größe wert=\"b\"/>";
+        for (Charset charset : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.UTF_16BE}) {
+            assertEquals(Arrays.asList("<Größe wert=\"ä\"/>"), matches(xml, "Größe[@wert='ä']", charset, true));
+        }
+    }
+
+    @Test
+    void knowsWhichQueriesAreContextFree() {
+        assertTrue(StructuralQuery.parse("Item").isContextFree());
+        assertTrue(StructuralQuery.parse("//Item[@sku]").isContextFree());
+        assertTrue(StructuralQuery.parse("id=7").isContextFree());
+        assertFalse(StructuralQuery.parse("/Item").isContextFree());
+        assertFalse(StructuralQuery.parse("Order//Item").isContextFree());
+    }
+
+    @Test
+    void rejectsUnsupportedExpressions() {
+        String[] invalid = {
+            "", "  ", "/", "//", "Order/", "Order//", "Order///Item", "a b", "Item]", "Item[", "Item[sku]",
+            "Item[@sku='A1]", "Item[@sku='A1'", "Item[1]", "@*", "Item[@*]", "It*em", "Item()", "@"
+        };
+        for (String expression : invalid) {
+            assertThrows(IllegalArgumentException.class, () -> StructuralQuery.parse(expression), expression);
+        }
+        String tooDeep = String.join("/", Collections.nCopies(64, "a"));
+        assertThrows(IllegalArgumentException.class, () -> StructuralQuery.parse(tooDeep));
+        StructuralQuery.parse(String.join("/", Collections.nCopies(63, "a")));
+    }
+
+    private static List<String> matches(String query) {
+        return matches(query, StandardCharsets.UTF_8, true);
+    }
+
+    private static List<String> matches(String query, Charset charset, boolean caseSensitive) {
+        return matches(XML, query, charset, caseSensitive);
+    }
+
+    /**
+     * @return The start tags of the matching elements, as found through the reported offsets
+     */
+    private static List<String> matches(String xml, String query, Charset charset, boolean caseSensitive) {
+        byte[] bytes = xml.getBytes(charset);
+        List<String> found = new ArrayList<>();
+        StructuralQuery.MatchListener listener = (offset, length) ->
+            found.add(new String(bytes, (int) offset, (int) length, charset));
+        XmlTagScanner scanner = new XmlTagScanner(charset, StructuralQuery.parse(query).evaluator(charset, caseSensitive, listener));
+        scanner.scan(bytes, 0, bytes.length, 0);
+        return found;
+    }
+}
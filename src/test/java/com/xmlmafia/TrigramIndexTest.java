@@ -0,0 +1,152 @@
+package com.xmlmafia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TrigramIndexTest {
+    private static final int BLOCKS = 4;
+    private static final byte[] FILLER = "<a/>\n".getBytes(StandardCharsets.US_ASCII); // Few trigrams, so filters stay sparse
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void findsMatchesInsideAndAcrossBlockBoundaries() throws IOException {
+        byte[] content = filler(BLOCKS * TrigramIndex.BLOCK_SIZE);
+        // Inside block 1, and starting four bytes before the end of block 2
+        put(content, TrigramIndex.BLOCK_SIZE + 1000, "inside-needle");
+        put(content, 3 * TrigramIndex.BLOCK_SIZE - 4, "crossing-needle");
+
+        try (FileBackend backend = open(content)) {
+            TrigramIndex index = TrigramIndex.build(backend, ForkJoinPool.commonPool());
+            assertEquals(BLOCKS, index.blockCount());
+
+            int[] inside = TrigramIndex.queryBits(bytes("inside-needle"));
+            assertFalse(index.mayStartIn(0, inside));
+            assertTrue(index.mayStartIn(1, inside));
+            assertFalse(index.mayStartIn(2, inside));
+
+            // Only the first trigrams start in block 2; the rest start in block 3
+            int[] crossing = TrigramIndex.queryBits(bytes("crossing-needle"));
+            assertFalse(index.mayStartIn(1, crossing));
+            assertTrue(index.mayStartIn(2, crossing));
+            assertFalse(index.mayStartIn(3, crossing));
+
+            // "ssi" starts in the last byte of block 2 and ends two bytes into block 3
+            assertTrue(index.mayStartIn(2, TrigramIndex.queryBits(bytes("ssi"))));
+            assertTrue(index.mayStartIn(2, TrigramIndex.queryBits(bytes("CROSS"))));
+            assertNull(TrigramIndex.queryBits(bytes("ne")));
+        }
+    }
+
+    @Test
+    void neverRulesOutBlockHoldingMatch() throws IOException {
+        SplittableRandom random = new SplittableRandom(7);
+        byte[] content = new byte[BLOCKS * TrigramIndex.BLOCK_SIZE - 123];
+        // A small alphabet with upper case letters, so filters are neither empty nor full
+        byte[] alphabet = "<>/= abcdeABCDE\n\"".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < content.length; i++) {
+            content[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+
+        try (FileBackend backend = open(content)) {
+            TrigramIndex index = TrigramIndex.build(backend, ForkJoinPool.commonPool());
+            for (int i = 0; i < 20_000; i++) {
+                // Half the queries start within a few bytes of a block boundary
+                int start = i % 2 == 0
+                    ? random.nextInt(content.length - 64)
+                    : Math.max(0, (1 + random.nextInt(BLOCKS - 1)) * TrigramIndex.BLOCK_SIZE - random.nextInt(64));
+                int length = 3 + random.nextInt(62);
+                byte[] query = Arrays.copyOfRange(content, start, Math.min(content.length, start + length));
+                if (query.length < 3) {
+                    continue;
+                }
+                long block = start >>> TrigramIndex.BLOCK_SHIFT;
+                assertTrue(index.mayStartIn(block, TrigramIndex.queryBits(query)),
+                    "match of length " + query.length + " at " + start);
+            }
+        }
+    }
+
+    @Test
+    void restoresWrittenIndex() throws IOException {
+        byte[] content = filler(2 * TrigramIndex.BLOCK_SIZE + 5);
+        put(content, 10, "first-block");
+        put(content, 2 * TrigramIndex.BLOCK_SIZE, "last");
+
+        try (FileBackend backend = open(content)) {
+            TrigramIndex built = TrigramIndex.build(backend, ForkJoinPool.commonPool());
+            Path data = directory.resolve("trigrams.bin");
+            try (FileChannel channel = FileChannel.open(data, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                built.write(channel);
+            }
+            assertEquals(2 * Long.BYTES + built.memoryBytes(), Files.size(data));
+
+            ByteBuffer mapped;
+            try (FileChannel channel = FileChannel.open(data, StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            TrigramIndex restored = TrigramIndex.read(mapped);
+            assertEquals(content.length, restored.fileSize());
+            assertEquals(3, restored.blockCount());
+            for (String query : new String[] {"first-block", "last", "<a/>", "missing"}) {
+                int[] bits = TrigramIndex.queryBits(bytes(query));
+                for (long block = 0; block < 3; block++) {
+                    assertEquals(built.mayStartIn(block, bits), restored.mayStartIn(block, bits), query + " in block " + block);
+                }
+            }
+            assertTrue(restored.mayStartIn(0, TrigramIndex.queryBits(bytes("first-block"))));
+            assertTrue(restored.mayStartIn(2, TrigramIndex.queryBits(bytes("last"))));
+            assertFalse(restored.mayStartIn(1, TrigramIndex.queryBits(bytes("first-block"))));
+
+            // Truncated filters and a different filter size are rejected
+            ByteBuffer truncated = mapped.duplicate();
+            truncated.limit(truncated.limit() - 1);
+            assertThrows(IllegalArgumentException.class, () -> TrigramIndex.read(truncated));
+            ByteBuffer otherFilterBits = ByteBuffer.allocate(mapped.capacity());
+            otherFilterBits.put(mapped.duplicate()).flip();
+            otherFilterBits.put(Long.BYTES, (byte) 1);
+            assertThrows(IllegalArgumentException.class, () -> TrigramIndex.read(otherFilterBits));
+        }
+    }
+
+    private static byte[] filler(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = FILLER[i % FILLER.length];
+        }
+        return content;
+    }
+
+    private static void put(byte[] content, int offset, String text) {
+        byte[] encoded = bytes(text);
+        System.arraycopy(encoded, 0, content, offset, encoded.length);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private FileBackend open(byte[] content) throws IOException {
+        File file = Files.createTempFile(directory, "trigrams", ".xml").toFile();
+        Files.write(file.toPath(), content);
+        return SegmentedFileBackend.open(file);
+    }
+}
@@ -0,0 +1,182 @@
+package com.xmlmafia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+class XmlTagScannerTest {
+    private static final String XML = "<?xml version=\"1.0\"?>\n"
+        + "<!DOCTYPE catalog [\n"
+        + "  <!ELEMENT catalog (item)*>\n"
+        + "  <!ENTITY note \"<fake>\">\n"
+        + "]>\n"
+        + "<catalog xmlns:p=\"urn:p\">\n"
+        + "  <!-- <hidden a=\"1\"/> - -->\n"
+        + "  <p:item sku='A1' p:qty=\"2\" note=\"a > b / c\" flag=yes empty=\"\">text é</p:item>\n"
+        + "  <![CDATA[ <notATag/> ]] ]> ]]]]>\n"
+        + "  <?render <fake/> ?>\n"
+        + "  <item\n      id=\"ünï\"/>\n"
+        + "  <br   />\n"
+        + "</catalog >\n";
+    private static final List<String> TAGS = Arrays.asList(
+        "<catalog xmlns:p=\"urn:p\"> | catalog xmlns:p=[urn:p]",
+        "<p:item sku='A1' p:qty=\"2\" note=\"a > b / c\" flag=yes empty=\"\">"
+            + " | p:item sku=[A1] p:qty=[2] note=[a > b / c] flag=[yes] empty=[]",
+        "</p:item> | /p:item",
+        "<item\n      id=\"ünï\"/> | item id=[ünï] /",
+        "<br   /> | br /",
+        "</catalog > | /catalog");
+    private static final Charset[] CHARSETS = {
+        StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.UTF_16LE, StandardCharsets.UTF_16BE
+    };
+
+    @Test
+    void reportsTagsSkippingOtherMarkup() {
+        for (Charset charset : CHARSETS) {
+            byte[] bytes = XML.getBytes(charset);
+            Recorder recorder = new Recorder(bytes, charset);
+            XmlTagScanner scanner = new XmlTagScanner(charset, recorder);
+            scanner.scan(bytes, 0, bytes.length, 0);
+            assertEquals(TAGS, recorder.tags, charset.name());
+            assertTrue(scanner.isInText());
+        }
+    }
+
+    @Test
+    void matchesOneShotScanWhenFedInPieces() {
+        SplittableRandom random = new SplittableRandom(5);
+        for (Charset charset : CHARSETS) {
+            byte[] bytes = XML.getBytes(charset);
+
+            // One byte at a time, which splits every UTF-16 unit
+            int[] single = new int[bytes.length + 1];
+            for (int i = 0; i <= bytes.length; i++) {
+                single[i] = i;
+            }
+            assertEquals(TAGS, scanInPieces(bytes, charset, single), charset.name() + " byte by byte");
+
+            // Two ranges split at every offset, so every name and value is split somewhere
+            for (int split = 0; split <= bytes.length; split++) {
+                assertEquals(TAGS, scanInPieces(bytes, charset, new int[] {0, split, bytes.length}),
+                    charset.name() + " split at " + split);
+            }
+
+            // Random range lengths, including empty ranges
+            for (int run = 0; run < 100; run++) {
+                List<Integer> bounds = new ArrayList<>();
+                bounds.add(0);
+                int position = 0;
+                while (position < bytes.length) {
+                    position = Math.min(bytes.length, position + random.nextInt(8));
+                    bounds.add(position);
+                }
+                int[] pieces = bounds.stream().mapToInt(Integer::intValue).toArray();
+                assertEquals(TAGS, scanInPieces(bytes, charset, pieces), charset.name() + " in " + Arrays.toString(pieces));
+            }
+        }
+    }
+
+    @Test
+    void tracksWhetherScanIsInText() {
+        byte[] bytes = "<a x='1'>text</a>".getBytes(StandardCharsets.UTF_16LE);
+        XmlTagScanner scanner = new XmlTagScanner(StandardCharsets.UTF_16LE, new Recorder(bytes, StandardCharsets.UTF_16LE));
+        assertTrue(scanner.isInText());
+        scanner.scan(bytes, 0, 5, 0);
+        assertFalse(scanner.isInText());
+        // Past the start tag, but half way through the 't' of "text"
+        scanner.scan(bytes, 5, 19, 5);
+        assertFalse(scanner.isInText());
+        scanner.scan(bytes, 19, 20, 19);
+        assertTrue(scanner.isInText());
+    }
+
+    @Test
+    void truncatesLongNamesAndValues() {
+        String name = "n".repeat(2000);
+        String value = "v".repeat(100_000);
+        byte[] bytes = ("<" + name + " a=\"" + value + "\" b='x'/>").getBytes(StandardCharsets.UTF_8);
+        List<String> seen = new ArrayList<>();
+        XmlTagScanner scanner = new XmlTagScanner(StandardCharsets.UTF_8, new XmlTagScanner.TagListener() {
+            @Override
+            public void onStartTag(XmlTagScanner scanner) {
+                seen.add(scanner.name().length() + " " + scanner.attributeValue(0).length() + " " + scanner.attributeValue(1)
+                    + " " + scanner.tagLength());
+            }
+
+            @Override
+            public void onEndTag(XmlTagScanner scanner) {
+            }
+        });
+        scanner.scan(bytes, 0, bytes.length, 0);
+        assertEquals(Arrays.asList("1024 65536 x " + bytes.length), seen);
+    }
+
+    private static List<String> scanInPieces(byte[] bytes, Charset charset, int[] bounds) {
+        Recorder recorder = new Recorder(bytes, charset);
+        XmlTagScanner scanner = new XmlTagScanner(charset, recorder);
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            // Each range in a buffer of its own, away from the buffer's start
+            int length = bounds[i + 1] - bounds[i];
+            byte[] buffer = new byte[length + 3];
+            System.arraycopy(bytes, bounds[i], buffer, 3, length);
+            scanner.scan(buffer, 3, 3 + length, bounds[i]);
+        }
+        return recorder.tags;
+    }
+
+    /**
+     * Records each tag as its text in the file, found through the reported
+     * offset and length, and the name and attributes the scanner parsed
+     */
+    private static final class Recorder implements XmlTagScanner.TagListener {
+        final List<String> tags = new ArrayList<>();
+        private final byte[] bytes;
+        private final Charset charset;
+        private final boolean utf16;
+
+        Recorder(byte[] bytes, Charset charset) {
+            this.bytes = bytes;
+            this.charset = charset;
+            this.utf16 = charset.equals(StandardCharsets.UTF_16LE) || charset.equals(StandardCharsets.UTF_16BE);
+        }
+
+        @Override
+        public void onStartTag(XmlTagScanner scanner) {
+            StringBuilder parsed = new StringBuilder(decode(scanner.name()));
+            for (int i = 0; i < scanner.attributeCount(); i++) {
+                parsed.append(' ').append(decode(scanner.attributeName(i)))
+                    .append("=[").append(decode(scanner.attributeValue(i))).append(']');
+            }
+            if (scanner.isEmptyElement()) {
+                parsed.append(" /");
+            }
+            record(scanner, parsed.toString());
+        }
+
+        @Override
+        public void onEndTag(XmlTagScanner scanner) {
+            record(scanner, "/" + decode(scanner.name()));
+        }
+
+        private void record(XmlTagScanner scanner, String parsed) {
+            String text = new String(bytes, (int) scanner.tagStart(), (int) scanner.tagLength(), charset);
+            tags.add(text + " | " + parsed);
+        }
+
+        /**
+         * Undoes the ISO-8859-1 view of encoded bytes the scanner reports in ASCII-safe encodings
+         */
+        private String decode(CharSequence reported) {
+            String text = reported.toString();
+            return utf16 ? text : new String(text.getBytes(StandardCharsets.ISO_8859_1), charset);
+        }
+    }
+}